@@ -0,0 +1,104 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converts a whole generated extract with {@link FileWatchService#evaluateFile}: parsing,
+ * pre-validation, MQE validation, rendering, writing the outputs and archiving the input. Each
+ * invocation works on a fresh copy of the file in a scratch directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EvaluateFileBenchmark {
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int rows;
+
+  private File baseDir;
+  private File source;
+  private File input;
+  private PrintStream originalOut;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    baseDir = Files.createTempDirectory("puente-bench").toFile();
+    File dataDir = new File(baseDir, FileWatchService.DIR_DATA);
+    dataDir.mkdirs();
+    source = new File(baseDir, "source.csv");
+    SampleData.write(source, rows, 1);
+    input = new File(dataDir, "extract.csv");
+    FileWatchService.journal =
+        CheckpointJournal.open(new File(baseDir, "puente.journal"), dataDir);
+    // every invocation converts the same rows, so the duplicate check would reject them all
+    FileWatchService.duplicates = null;
+    // keep the progress lines off the console, in case log.level is set to DEBUG for the run
+    originalOut = System.out;
+    System.setOut(
+        new PrintStream(
+            new OutputStream() {
+              @Override
+              public void write(int b) {}
+
+              @Override
+              public void write(byte[] b, int off, int len) {}
+            }));
+  }
+
+  @Setup(Level.Invocation)
+  public void copyInput() throws IOException {
+    Files.copy(source.toPath(), input.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  @Benchmark
+  public void evaluateFile() throws IOException {
+    FileWatchService.evaluateFile(input);
+  }
+
+  @TearDown(Level.Invocation)
+  public void removeOutputs() throws IOException {
+    delete(new File(baseDir, FileWatchService.DIR_REQUEST));
+    File dataDir = new File(baseDir, FileWatchService.DIR_DATA);
+    delete(new File(dataDir, FileWatchService.DIR_DATA_READY));
+    delete(new File(dataDir, FileWatchService.DIR_DATA_ERROR));
+    delete(new File(dataDir, FileWatchService.DIR_DATA_ARCHIVE));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    System.setOut(originalOut);
+    FileWatchService.journal.close();
+    delete(baseDir);
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
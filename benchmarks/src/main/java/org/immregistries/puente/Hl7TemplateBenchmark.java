@@ -0,0 +1,126 @@
+package org.immregistries.puente;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.text.StringSubstitutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders the same VXU the old way, with a value map and a StringSubstitutor per message, and
+ * with the compiled {@link Hl7Template} into reused buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Hl7TemplateBenchmark {
+  private static final String[] RACES = {"2106-3", "2054-5", "", "", "", ""};
+
+  private Hl7Template template;
+  private StringBuilder[] values;
+  private StringBuilder message;
+
+  @Setup
+  public void setup() {
+    template = Hl7Template.compile(RecordConverter.vxuTemplate, RecordConverter.VXU_SLOTS);
+    values = new StringBuilder[RecordConverter.VXU_SLOTS.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new StringBuilder(64);
+    }
+    message = new StringBuilder(1024);
+  }
+
+  @Benchmark
+  public String stringSubstitutor() {
+    String pid10 = "";
+    for (String race : RACES) {
+      if (!"".equals(race)) {
+        if (!"".equals(pid10)) {
+          pid10 += "^";
+        }
+        pid10 += race + "^^CDCREC";
+      }
+    }
+    Map<String, String> valuesMap = new HashMap<>();
+    valuesMap.put("messageHeaderDate", "20201214120000-0500");
+    valuesMap.put("recipientId", "456");
+    valuesMap.put("lastName", "LastAIRA");
+    valuesMap.put("firstName", "FirstAIRA");
+    valuesMap.put("middleName", "MiddleAIRA");
+    valuesMap.put("birthDate", "19700101");
+    valuesMap.put("sex", "F");
+    valuesMap.put("street", "123 Main St");
+    valuesMap.put("street2", "");
+    valuesMap.put("city", "City");
+    valuesMap.put("state", "MI");
+    valuesMap.put("zipCode", "41010");
+    valuesMap.put("administrationDate", "20201201");
+    valuesMap.put("pid10", pid10);
+    valuesMap.put("lotNumber", "L123");
+    valuesMap.put("ethnicity", "2186-5" + "^^CDCREC");
+    valuesMap.put("vaccinationEventId", "123");
+    valuesMap.put("mvx", "MOD" + "^^MVX");
+    valuesMap.put("administeredCode", "208" + "^^CVX");
+    String resolvedString = new StringSubstitutor(valuesMap).replace(RecordConverter.vxuTemplate);
+    String rxr = "RXR|" + "C28161" + "^^NCIT|";
+    rxr += "LD" + "^^HL70163";
+    return resolvedString + rxr + "\n" + "\n";
+  }
+
+  @Benchmark
+  public String compiledTemplate() {
+    for (StringBuilder value : values) {
+      value.setLength(0);
+    }
+    message.setLength(0);
+    values[RecordConverter.SLOT_MESSAGE_HEADER_DATE].append("20201214120000-0500");
+    escape(RecordConverter.SLOT_RECIPIENT_ID, "456");
+    escape(RecordConverter.SLOT_LAST_NAME, "LastAIRA");
+    escape(RecordConverter.SLOT_FIRST_NAME, "FirstAIRA");
+    escape(RecordConverter.SLOT_MIDDLE_NAME, "MiddleAIRA");
+    escape(RecordConverter.SLOT_BIRTH_DATE, "19700101");
+    escape(RecordConverter.SLOT_SEX, "F");
+    StringBuilder pid10 = values[RecordConverter.SLOT_PID10];
+    for (String race : RACES) {
+      if (!"".equals(race)) {
+        if (pid10.length() > 0) {
+          pid10.append('^');
+        }
+        Hl7Template.appendEscaped(pid10, race).append("^^CDCREC");
+      }
+    }
+    escape(RecordConverter.SLOT_STREET, "123 Main St");
+    escape(RecordConverter.SLOT_STREET2, "");
+    escape(RecordConverter.SLOT_CITY, "City");
+    escape(RecordConverter.SLOT_STATE, "MI");
+    escape(RecordConverter.SLOT_ZIP_CODE, "41010");
+    escape(RecordConverter.SLOT_ETHNICITY, "2186-5").append("^^CDCREC");
+    escape(RecordConverter.SLOT_VACCINATION_EVENT_ID, "123");
+    escape(RecordConverter.SLOT_ADMINISTRATION_DATE, "20201201");
+    escape(RecordConverter.SLOT_ADMINISTERED_CODE, "208").append("^^CVX");
+    escape(RecordConverter.SLOT_LOT_NUMBER, "L123");
+    escape(RecordConverter.SLOT_MVX, "MOD").append("^^MVX");
+    template.render(message, values);
+    message.append("RXR|");
+    Hl7Template.appendEscaped(message, "C28161").append("^^NCIT|");
+    Hl7Template.appendEscaped(message, "LD").append("^^HL70163");
+    message.append('\n').append('\n');
+    return message.toString();
+  }
+
+  private StringBuilder escape(int slot, String value) {
+    return Hl7Template.appendEscaped(values[slot], value);
+  }
+}
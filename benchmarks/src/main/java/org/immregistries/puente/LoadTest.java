@@ -0,0 +1,474 @@
+package org.immregistries.puente;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs Puente in this process against a steady stream of generated pharmacy drops and reports how
+ * long each file takes from landing in data until it is converted, along with throughput and heap
+ * and GC use. A file counts as converted when it is archived, which happens once its HL7, ready and
+ * error files have been renamed into place; the time until its first HL7 file appears is reported
+ * as well.
+ *
+ * <p>Each file is written to loadtest-staging by {@link SampleData} and moved into data when it is
+ * due, whether or not Puente has caught up, so a conversion that falls behind shows up as growing
+ * latency rather than as a lower rate. Files dropped during the warm-up are converted but left out
+ * of the figures. The times for each file are written to puente-loadtest.csv.
+ *
+ * <p>Puente works in data and request under the current directory, so run this in an empty
+ * directory. Puente's settings are given as usual with -Dpuente.&lt;setting&gt;.
+ *
+ * <p>Usage: LoadTest [filesPerSecond] [rows or minRows-maxRows] [seconds] [invalidShare]
+ * [warmupSeconds] [p99Millis]. With p99Millis the exit status is 1 when the 99th percentile of the
+ * time to convert a file is longer, as it is when a file isn't converted at all.
+ */
+public class LoadTest {
+  private static final String PREFIX = "load-";
+  private static final int NUMBER_DIGITS = 6;
+  private static final File STAGING_DIR = new File("loadtest-staging");
+  private static final File RESULTS_FILE = new File("puente-loadtest.csv");
+  private static final long HEAP_SAMPLE_MILLIS = 100;
+  private static final long MIN_DRAIN_SECONDS = 60;
+
+  public static void main(String[] args) throws Exception {
+    double filesPerSecond = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+    String sizes = args.length > 1 ? args[1] : "1000-20000";
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+    double invalidShare =
+        args.length > 3 ? Double.parseDouble(args[3]) : SampleData.DEFAULT_INVALID_SHARE;
+    int warmupSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+    long p99Millis = args.length > 5 ? Long.parseLong(args[5]) : 0;
+    int dash = sizes.indexOf('-');
+    int minRows = Integer.parseInt(dash < 0 ? sizes : sizes.substring(0, dash));
+    int maxRows = dash < 0 ? minRows : Integer.parseInt(sizes.substring(dash + 1));
+
+    File data = new File(FileWatchService.DIR_DATA);
+    String[] existing = data.list();
+    if (existing != null && existing.length > 0) {
+      System.err.println(
+          "Run LoadTest in an empty directory; " + data.getAbsolutePath() + " has files in it");
+      System.exit(1);
+    }
+    File archive = new File(data, FileWatchService.DIR_DATA_ARCHIVE);
+    File request = new File(FileWatchService.DIR_REQUEST);
+    archive.mkdirs();
+    request.mkdirs();
+    STAGING_DIR.mkdirs();
+
+    int warmupFiles = (int) Math.ceil(warmupSeconds * filesPerSecond);
+    int fileCount = warmupFiles + (int) Math.ceil(seconds * filesPerSecond);
+    Outputs outputs = new Outputs(request, archive, fileCount);
+    Thread outputWatcher = new Thread(outputs, "loadtest-outputs");
+    outputWatcher.setDaemon(true);
+    outputWatcher.start();
+    HeapSampler heap = new HeapSampler();
+    Thread heapSampler = new Thread(heap, "loadtest-heap");
+    heapSampler.setDaemon(true);
+    heapSampler.start();
+
+    // load the validator now, so the first file isn't held up by it
+    RecordConverter.load();
+    Thread puente =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  FileWatchService.main(new String[0]);
+                } catch (IOException e) {
+                  System.err.println("Puente stopped: " + e);
+                  System.exit(1);
+                }
+              }
+            },
+            "loadtest-puente");
+    puente.setDaemon(true);
+    puente.start();
+
+    System.out.println(
+        String.format(
+            "Dropping %d files of %s rows, %.2f a second, %d of them to warm up",
+            fileCount, sizes, filesPerSecond, warmupFiles));
+    List<Drop> drops = new ArrayList<Drop>();
+    Random random = new Random(1);
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / filesPerSecond);
+    long startNanos = System.nanoTime();
+    long measureStartNanos = 0;
+    long[] gcAtStart = null;
+    long firstRow = 0;
+    long maxLagNanos = 0;
+    for (int i = 0; i < fileCount; i++) {
+      String number = String.valueOf(i + 1);
+      while (number.length() < NUMBER_DIGITS) {
+        number = "0" + number;
+      }
+      int rows = minRows + random.nextInt(maxRows - minRows + 1);
+      Drop drop = new Drop(PREFIX + number, rows, i < warmupFiles);
+      File staged = new File(STAGING_DIR, drop.name + ".csv");
+      SampleData.write(staged, rows, i + 1, firstRow, invalidShare);
+      firstRow += rows;
+      drop.bytes = staged.length();
+
+      long dueNanos = startNanos + i * intervalNanos;
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+      if (i == warmupFiles) {
+        measureStartNanos = System.nanoTime();
+        gcAtStart = gcTotals();
+        heap.reset();
+      }
+      outputs.expect(drop);
+      drop.droppedAt = System.nanoTime();
+      maxLagNanos = Math.max(maxLagNanos, drop.droppedAt - dueNanos);
+      Files.move(
+          staged.toPath(),
+          new File(data, staged.getName()).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      drops.add(drop);
+    }
+
+    long drainSeconds = Math.max(MIN_DRAIN_SECONDS, seconds);
+    if (!outputs.converted.await(drainSeconds, TimeUnit.SECONDS)) {
+      System.out.println("Gave up waiting " + drainSeconds + " s for the last files");
+    }
+    long[] gcAtEnd = gcTotals();
+    outputs.close();
+    STAGING_DIR.delete();
+
+    List<Drop> measured = drops.subList(warmupFiles, drops.size());
+    boolean passed =
+        report(measured, measureStartNanos, maxLagNanos, gcAtStart, gcAtEnd, heap, p99Millis);
+    writeResults(drops, startNanos);
+    System.out.println("Times for each file are in " + RESULTS_FILE);
+    System.exit(passed ? 0 : 1);
+  }
+
+  /** Prints the figures for the measured files and returns whether they met the target. */
+  private static boolean report(
+      List<Drop> measured,
+      long startNanos,
+      long maxLagNanos,
+      long[] gcAtStart,
+      long[] gcAtEnd,
+      HeapSampler heap,
+      long p99Millis) {
+    if (measured.isEmpty()) {
+      System.out.println("No files were dropped after the warm-up");
+      return false;
+    }
+    long rows = 0;
+    long bytes = 0;
+    long lastConvertedAt = startNanos;
+    List<Long> toHl7 = new ArrayList<Long>();
+    List<Long> toConverted = new ArrayList<Long>();
+    int notConverted = 0;
+    for (Drop drop : measured) {
+      if (drop.hl7At > 0) {
+        toHl7.add(drop.hl7At - drop.droppedAt);
+      }
+      if (drop.convertedAt > 0) {
+        toConverted.add(drop.convertedAt - drop.droppedAt);
+        lastConvertedAt = Math.max(lastConvertedAt, drop.convertedAt);
+        rows += drop.rows;
+        bytes += drop.bytes;
+      } else {
+        notConverted++;
+      }
+    }
+    double elapsedSeconds = (lastConvertedAt - startNanos) / 1e9;
+    System.out.println();
+    System.out.println(
+        String.format(
+            "Converted %d of %d files, %d rows in %.1f s",
+            toConverted.size(), measured.size(), rows, elapsedSeconds));
+    if (elapsedSeconds > 0) {
+      System.out.println(
+          String.format(
+              "Throughput: %.2f files/s, %.0f rows/s, %.2f MB/s",
+              toConverted.size() / elapsedSeconds,
+              rows / elapsedSeconds,
+              bytes / elapsedSeconds / (1024 * 1024)));
+    }
+    if (maxLagNanos > TimeUnit.SECONDS.toNanos(1)) {
+      System.out.println(
+          String.format(
+              "Drops fell up to %.1f s behind schedule; generating the files took longer than"
+                  + " the interval between them",
+              maxLagNanos / 1e9));
+    }
+    System.out.println();
+    System.out.println(
+        String.format("%-20s %9s %9s %9s %9s", "Latency (ms)", "p50", "p95", "p99", "max"));
+    printLatencies("Drop to first HL7", toHl7);
+    long p99 = printLatencies("Drop to converted", toConverted);
+
+    System.out.println();
+    System.out.println(
+        String.format(
+            "Heap: %d MB peak used, %d MB committed, %d MB max",
+            heap.peakUsed() / (1024 * 1024),
+            heap.committed() / (1024 * 1024),
+            heap.max() / (1024 * 1024)));
+    List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    long gcMillis = 0;
+    for (int i = 0; i < collectors.size(); i++) {
+      long collections = gcAtEnd[2 * i] - gcAtStart[2 * i];
+      long millis = gcAtEnd[2 * i + 1] - gcAtStart[2 * i + 1];
+      gcMillis += millis;
+      System.out.println(
+          String.format(
+              "GC %s: %d collections, %d ms", collectors.get(i).getName(), collections, millis));
+    }
+    if (elapsedSeconds > 0) {
+      System.out.println(
+          String.format("GC time: %.1f%% of the run", gcMillis / (elapsedSeconds * 10)));
+    }
+
+    boolean passed = notConverted == 0;
+    if (notConverted > 0) {
+      System.out.println(notConverted + " file(s) weren't converted");
+    }
+    if (p99Millis > 0) {
+      boolean met = !toConverted.isEmpty() && p99 <= p99Millis;
+      System.out.println(
+          String.format(
+              "Target: p99 drop to converted %d ms against %d ms, %s",
+              p99, p99Millis, met ? "met" : "missed"));
+      passed &= met;
+    }
+    return passed;
+  }
+
+  /** Prints a row of percentiles and returns the 99th, in millis. */
+  private static long printLatencies(String label, List<Long> nanos) {
+    if (nanos.isEmpty()) {
+      System.out.println(String.format("%-20s %9s", label, "none"));
+      return 0;
+    }
+    long[] sorted = new long[nanos.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = nanos.get(i);
+    }
+    Arrays.sort(sorted);
+    long p99 = millis(percentile(sorted, 0.99));
+    System.out.println(
+        String.format(
+            "%-20s %9d %9d %9d %9d",
+            label,
+            millis(percentile(sorted, 0.50)),
+            millis(percentile(sorted, 0.95)),
+            p99,
+            millis(sorted[sorted.length - 1])));
+    return p99;
+  }
+
+  /** The nearest-rank percentile of the sorted values. */
+  private static long percentile(long[] sorted, double fraction) {
+    int rank = (int) Math.ceil(sorted.length * fraction);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /** Collections and collection millis of each collector, in pairs. */
+  private static long[] gcTotals() {
+    List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    long[] totals = new long[2 * collectors.size()];
+    for (int i = 0; i < collectors.size(); i++) {
+      totals[2 * i] = Math.max(0, collectors.get(i).getCollectionCount());
+      totals[2 * i + 1] = Math.max(0, collectors.get(i).getCollectionTime());
+    }
+    return totals;
+  }
+
+  private static void writeResults(List<Drop> drops, long startNanos) throws IOException {
+    Writer out =
+        new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(RESULTS_FILE), StandardCharsets.UTF_8));
+    try {
+      out.write("File,Rows,Bytes,Warm-up,Dropped millis,To first HL7 millis,To converted millis\n");
+      for (Drop drop : drops) {
+        out.write(drop.name + ".csv," + drop.rows + "," + drop.bytes + "," + drop.warmup + ",");
+        out.write(millis(drop.droppedAt - startNanos) + ",");
+        out.write(drop.hl7At > 0 ? String.valueOf(millis(drop.hl7At - drop.droppedAt)) : "");
+        out.write(',');
+        out.write(
+            drop.convertedAt > 0 ? String.valueOf(millis(drop.convertedAt - drop.droppedAt)) : "");
+        out.write('\n');
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /** One generated file and when its outputs appeared, as {@link System#nanoTime} values. */
+  private static class Drop {
+    private final String name;
+    private final int rows;
+    private final boolean warmup;
+    private long bytes;
+    private volatile long droppedAt;
+    private volatile long hl7At;
+    private volatile long convertedAt;
+
+    Drop(String name, int rows, boolean warmup) {
+      this.name = name;
+      this.rows = rows;
+      this.warmup = warmup;
+    }
+  }
+
+  /**
+   * Watches request for each file's first HL7 file and data/archive for the file itself, which is
+   * moved there once all of its outputs are in place.
+   */
+  private static class Outputs implements Runnable {
+    private final WatchService watcher;
+    private final Path request;
+    private final Path archive;
+    private final ConcurrentMap<String, Drop> expected = new ConcurrentHashMap<String, Drop>();
+    private final CountDownLatch converted;
+    private final AtomicLong overflows = new AtomicLong();
+
+    Outputs(File request, File archive, int fileCount) throws IOException {
+      this.request = request.toPath();
+      this.archive = archive.toPath();
+      this.watcher = this.request.getFileSystem().newWatchService();
+      this.request.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+      this.archive.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+      this.converted = new CountDownLatch(fileCount);
+    }
+
+    void expect(Drop drop) {
+      expected.put(drop.name, drop);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          WatchKey key = watcher.take();
+          Path dir = (Path) key.watchable();
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              // events were lost, so look for the outputs in the directories, a little late
+              overflows.incrementAndGet();
+              rescan(request);
+              rescan(archive);
+            } else {
+              seen(dir, ((Path) event.context()).getFileName().toString());
+            }
+          }
+          key.reset();
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // the run is over
+      }
+    }
+
+    private void rescan(Path dir) {
+      String[] names = dir.toFile().list();
+      if (names != null) {
+        for (String name : names) {
+          seen(dir, name);
+        }
+      }
+    }
+
+    private void seen(Path dir, String name) {
+      if (!name.startsWith(PREFIX) || name.length() < PREFIX.length() + NUMBER_DIGITS) {
+        return;
+      }
+      Drop drop = expected.get(name.substring(0, PREFIX.length() + NUMBER_DIGITS));
+      if (drop == null) {
+        return;
+      }
+      long now = System.nanoTime();
+      synchronized (drop) {
+        if (dir.equals(request)) {
+          if (drop.hl7At == 0) {
+            drop.hl7At = now;
+          }
+        } else if (drop.convertedAt == 0) {
+          drop.convertedAt = now;
+          converted.countDown();
+        }
+      }
+    }
+
+    void close() throws IOException {
+      watcher.close();
+      if (overflows.get() > 0) {
+        System.out.println(
+            "Output events were lost " + overflows.get() + " time(s); some times are late");
+      }
+    }
+  }
+
+  /** Keeps the most heap in use, checked every {@link #HEAP_SAMPLE_MILLIS}. */
+  private static class HeapSampler implements Runnable {
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong peakUsed = new AtomicLong();
+
+    @Override
+    public void run() {
+      while (true) {
+        long used = memory.getHeapMemoryUsage().getUsed();
+        long peak = peakUsed.get();
+        while (used > peak && !peakUsed.compareAndSet(peak, used)) {
+          peak = peakUsed.get();
+        }
+        try {
+          Thread.sleep(HEAP_SAMPLE_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+
+    void reset() {
+      peakUsed.set(0);
+    }
+
+    long peakUsed() {
+      return peakUsed.get();
+    }
+
+    long committed() {
+      return memory.getHeapMemoryUsage().getCommitted();
+    }
+
+    long max() {
+      return memory.getHeapMemoryUsage().getMax();
+    }
+  }
+}
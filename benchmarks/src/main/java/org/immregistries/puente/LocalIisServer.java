@@ -0,0 +1,106 @@
+package org.immregistries.puente;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in IIS that answers submitSingleMessage requests with an ACK, for measuring send
+ * throughput without a real registry.
+ *
+ * <p>Usage: LocalIisServer [port] [rejectRate] [latencyMillis]. Point Puente at it with
+ * -Dpuente.send.url=http://localhost:port/iis. The given share of messages (0.0 to 1.0) is
+ * answered with AE, and every answer is delayed by the given latency.
+ */
+public class LocalIisServer {
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+    final double rejectRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.0;
+    final long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+    // answer in one packet rather than waiting on Nagle between headers and body
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    final AtomicLong received = new AtomicLong();
+    final Random random = new Random(42);
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+    server.createContext(
+        "/iis",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            String request = read(exchange.getRequestBody());
+            String message = IisClient.elementText(request, "hl7Message");
+            String controlId = field(message == null ? "" : message, "MSH", 10);
+            boolean reject;
+            synchronized (random) {
+              reject = random.nextDouble() < rejectRate;
+            }
+            if (latencyMillis > 0) {
+              try {
+                Thread.sleep(latencyMillis);
+              } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+              }
+            }
+            String ack =
+                "MSH|^~\\&|||||||ACK^V04^ACK|"
+                    + controlId
+                    + "|P|2.5.1\rMSA|"
+                    + (reject ? "AE" : "AA")
+                    + "|"
+                    + controlId
+                    + "\r"
+                    + (reject ? "ERR||PID^1^5|101^Required field missing^HL70357|E\r" : "");
+            byte[] body =
+                ("<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\">"
+                        + "<soap:Body><submitSingleMessageResponse xmlns=\"urn:cdc:iisb:2011\">"
+                        + "<return>"
+                        + ack.replace("&", "&amp;").replace("<", "&lt;").replace("\r", "&#13;")
+                        + "</return></submitSingleMessageResponse></soap:Body></soap:Envelope>")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/soap+xml");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+            long count = received.incrementAndGet();
+            if (count % 1000 == 0) {
+              System.out.println("Received " + count + " messages");
+            }
+          }
+        });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    System.out.println("Local IIS listening on http://localhost:" + port + "/iis");
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String field(String message, String segment, int index) {
+    for (String line : message.split("[\r\n]+")) {
+      if (line.startsWith(segment + "|")) {
+        String[] fields = line.split("\\|", -1);
+        return fields.length > index - 1 ? fields[index - 1] : "";
+      }
+    }
+    return "";
+  }
+}
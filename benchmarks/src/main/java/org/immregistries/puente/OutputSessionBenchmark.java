@@ -0,0 +1,86 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes one record at a time to each of the three outputs of an {@link OutputSession}: the HL7
+ * request file, the ready file and the error file. A new session is started for every iteration
+ * and thrown away at the end of it, so the part files never grow large.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputSessionBenchmark {
+  private File baseDir;
+  private Row row;
+  private String message;
+  private OutputSession session;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    baseDir = Files.createTempDirectory("puente-bench").toFile();
+    File file = new File(baseDir, "record.csv");
+    SampleData.write(file, 1, 1);
+    Reader reader = FileWatchService.openReader(file);
+    CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().withTrim().parse(reader);
+    ColumnMapping columns = ColumnMapping.forFile(file.getName(), parser.getHeaderNames());
+    row = Row.of(parser.iterator().next());
+    parser.close();
+    RecordConverter.Result result = new RecordConverter(columns).convert(row);
+    message = result.isError() ? result.getError() : result.getMessage();
+  }
+
+  @Setup(Level.Iteration)
+  public void openSession() {
+    List<String> headers = Arrays.asList(SampleData.HEADERS);
+    session = new OutputSession(baseDir, "extract.csv", headers, OutputSession.timestamp());
+  }
+
+  @Benchmark
+  public void writeMessage() throws IOException {
+    session.writeMessage(message);
+  }
+
+  @Benchmark
+  public void writeReady() throws IOException {
+    session.writeReady(row);
+  }
+
+  @Benchmark
+  public void writeError() throws IOException {
+    session.writeError("Missing required value: Recipient name: last", row);
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeSession() throws IOException {
+    session.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    EvaluateFileBenchmark.delete(baseDir);
+  }
+}
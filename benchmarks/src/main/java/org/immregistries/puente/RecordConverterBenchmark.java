@@ -0,0 +1,167 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.immregistries.mqe.validator.engine.MessageValidator;
+import org.immregistries.mqe.validator.engine.ValidationRuleResult;
+import org.immregistries.mqe.vxu.MqeAddress;
+import org.immregistries.mqe.vxu.MqeMessageReceived;
+import org.immregistries.mqe.vxu.MqePatient;
+import org.immregistries.mqe.vxu.MqeVaccination;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per-record steps of the conversion: reading the columns by header name, as the converter
+ * did before {@link ColumnMapping}, and by position with {@link ColumnMapping#get}, the MQE
+ * validator on its own, {@link RecordConverter#convert} as a whole, and {@link
+ * RecordConverter#convertPatient} for several doses sent as one message. Records come from a
+ * generated extract and are cycled through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordConverterBenchmark {
+  private static final int RECORDS = 1000;
+  private static final int DOSES_PER_PATIENT = 4;
+
+  private List<CSVRecord> records;
+  private List<Row> rows;
+  private ColumnMapping columns;
+  private RecordConverter converter;
+  private MessageValidator validator;
+  private int next = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    File file = File.createTempFile("puente-bench", ".csv");
+    try {
+      SampleData.write(file, RECORDS, 1);
+      Reader reader = FileWatchService.openReader(file);
+      CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().withTrim().parse(reader);
+      columns = ColumnMapping.forFile(file.getName(), parser.getHeaderNames());
+      records = new ArrayList<CSVRecord>(parser.getRecords());
+      rows = new ArrayList<Row>();
+      for (CSVRecord record : records) {
+        rows.add(Row.of(record));
+      }
+      parser.close();
+    } finally {
+      Files.delete(file.toPath());
+    }
+    converter = new RecordConverter(columns);
+    validator = MessageValidator.INSTANCE;
+  }
+
+  private CSVRecord nextRecord() {
+    CSVRecord record = records.get(next);
+    next = (next + 1) % records.size();
+    return record;
+  }
+
+  private Row nextRow() {
+    Row row = rows.get(next);
+    next = (next + 1) % rows.size();
+    return row;
+  }
+
+  @Benchmark
+  public void defaultedGet(Blackhole blackhole) {
+    CSVRecord record = nextRecord();
+    for (String header : SampleData.HEADERS) {
+      blackhole.consume(defaultedGet(record, header));
+    }
+  }
+
+  @Benchmark
+  public void columnGet(Blackhole blackhole) {
+    Row row = nextRow();
+    for (Column column : Column.values()) {
+      blackhole.consume(columns.get(row, column));
+    }
+  }
+
+  @Benchmark
+  public List<ValidationRuleResult> validateMessage() {
+    CSVRecord record = nextRecord();
+    MqeMessageReceived mmr = new MqeMessageReceived();
+    Date now = new Date();
+    mmr.getMessageHeader().setMessageDate(now);
+    MqePatient patient = mmr.getPatient();
+    patient.setIdSubmitterNumber(get(record, Column.RECIPIENT_ID.header));
+    patient.setNameFirst(get(record, Column.RECIPIENT_NAME_FIRST.header));
+    patient.setNameMiddle(get(record, Column.RECIPIENT_NAME_MIDDLE.header));
+    patient.setNameLast(get(record, Column.RECIPIENT_NAME_LAST.header));
+    patient.setBirthDateString(get(record, Column.RECIPIENT_DATE_OF_BIRTH.header));
+    patient.setSexCode(get(record, Column.RECIPIENT_SEX.header));
+    patient.setRace(get(record, Column.RECIPIENT_RACE_1.header));
+    patient.setEthnicity(get(record, Column.RECIPIENT_ETHNICITY.header));
+    MqeAddress address = patient.getPatientAddress();
+    address.setStreet(get(record, Column.RECIPIENT_ADDRESS_STREET.header));
+    address.setCity(get(record, Column.RECIPIENT_ADDRESS_CITY.header));
+    address.setStateCode(get(record, Column.RECIPIENT_ADDRESS_STATE.header));
+    address.setZip(get(record, Column.RECIPIENT_ADDRESS_ZIP_CODE.header));
+    MqeVaccination vaccination = new MqeVaccination();
+    vaccination.setAdminDateString(get(record, Column.ADMINISTRATION_DATE.header));
+    vaccination.setAdminCvxCode(get(record, Column.CVX.header));
+    vaccination.setManufacturerCode(get(record, Column.MVX.header));
+    vaccination.setLotNumber(get(record, Column.LOT_NUMBER.header));
+    vaccination.setActionCode("A");
+    mmr.getVaccinations().add(vaccination);
+    return validator.validateMessage(mmr);
+  }
+
+  @Benchmark
+  public RecordConverter.Result convert() {
+    return converter.convert(nextRow());
+  }
+
+  /** Reported per dose, so it compares directly with {@link #convert}. */
+  @Benchmark
+  @OperationsPerInvocation(DOSES_PER_PATIENT)
+  public RecordConverter.PatientResult convertPatient() {
+    List<Row> patient = new ArrayList<Row>(DOSES_PER_PATIENT);
+    for (int i = 0; i < DOSES_PER_PATIENT; i++) {
+      patient.add(nextRow());
+    }
+    return converter.convertPatient(patient);
+  }
+
+  private static String get(CSVRecord record, String name) {
+    return defaultedGet(record, name);
+  }
+
+  /** Looks a column up by its header name, the way every column was read before the mapping. */
+  static String defaultedGet(CSVRecord record, String name) {
+    String retStr = "";
+    if (record.isMapped(name)) {
+      retStr = record.get(name);
+    }
+    if (retStr == null) {
+      retStr = "";
+    }
+    return retStr.trim();
+  }
+}
@@ -0,0 +1,184 @@
+package org.immregistries.puente;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes synthetic vaccination extracts with the same columns as sample1.csv. The same seed always
+ * gives the same file, so runs of the benchmarks can be compared with each other.
+ *
+ * <p>About one row in fifty has a problem that the conversion rejects (a missing last name, a bad
+ * birth date or an unknown CVX), so the error path is exercised along with the message path. The
+ * load test asks for other shares of bad rows.
+ *
+ * <p>Usage: SampleData file rows [seed]
+ */
+public class SampleData {
+  static final String[] HEADERS = {
+    Column.VACCINATION_EVENT_ID.header,
+    Column.RECIPIENT_ID.header,
+    Column.RECIPIENT_NAME_FIRST.header,
+    Column.RECIPIENT_NAME_MIDDLE.header,
+    Column.RECIPIENT_NAME_LAST.header,
+    Column.RECIPIENT_DATE_OF_BIRTH.header,
+    Column.RECIPIENT_SEX.header,
+    Column.RECIPIENT_ADDRESS_STREET.header,
+    Column.RECIPIENT_ADDRESS_STREET_2.header,
+    Column.RECIPIENT_ADDRESS_CITY.header,
+    Column.RECIPIENT_ADDRESS_COUNTY.header,
+    Column.RECIPIENT_ADDRESS_STATE.header,
+    Column.RECIPIENT_ADDRESS_ZIP_CODE.header,
+    Column.RECIPIENT_RACE_1.header,
+    Column.RECIPIENT_RACE_2.header,
+    Column.RECIPIENT_RACE_3.header,
+    Column.RECIPIENT_RACE_4.header,
+    Column.RECIPIENT_RACE_5.header,
+    Column.RECIPIENT_RACE_6.header,
+    Column.RECIPIENT_ETHNICITY.header,
+    Column.ADMINISTRATION_DATE.header,
+    Column.CVX.header,
+    Column.NDC.header,
+    Column.MVX.header,
+    Column.LOT_NUMBER.header,
+    Column.VACCINE_EXPIRATION_DATE.header,
+    Column.VACCINE_ADMINISTERING_SITE.header,
+    Column.VACCINE_ROUTE_OF_ADMINISTRATION.header,
+    Column.RESPONSIBLE_ORGANIZATION.header,
+    Column.ADMINISTERED_AT_LOCATION.header
+  };
+
+  private static final String[] FIRST_NAMES = {
+    "Maria", "James", "Aiyana", "Wei", "Fatima", "Olivia", "Mateo", "Grace", "Kwame", "Sofia"
+  };
+  private static final String[] LAST_NAMES = {
+    "Garcia", "Smith", "Nguyen", "Johnson", "Okafor", "Brown", "Lopez", "Chen", "Miller", "Yazzie"
+  };
+  private static final String[] STREETS = {"Main St", "Oak Ave", "Elm St", "2nd St", "Park Rd"};
+  private static final String[] CITIES = {"Lansing", "Flint", "Detroit", "Kalamazoo", "Saginaw"};
+  private static final String[] SEXES = {"F", "M", "F", "M", "U"};
+  private static final String[] RACES = {
+    "2106-3", "2054-5", "2028-9", "1002-5", "2076-8", "2131-1"
+  };
+  private static final String[] ETHNICITIES = {"2186-5", "2135-2", ""};
+  private static final String[] CVX = {"208", "207", "212", "141", "150", "88", "133", "62"};
+  private static final String[] MVX = {"PFR", "MOD", "JSN", "SKB", "MSD"};
+  private static final String[] SITES = {"LA", "RA", "LD", "RD"};
+
+  // three problems, each in one row in 150
+  static final double DEFAULT_INVALID_SHARE = 3 / 150.0;
+
+  /** Writes the given number of rows to the file. */
+  static void write(File file, int rows, long seed) throws IOException {
+    write(file, rows, seed, 0, DEFAULT_INVALID_SHARE);
+  }
+
+  /**
+   * Writes the given number of rows to the file, numbering their vaccination events from firstRow
+   * so that the rows of different files aren't duplicates of each other, with about invalidShare
+   * of them (0.0 to 1.0) rejected by the conversion.
+   */
+  static void write(File file, int rows, long seed, long firstRow, double invalidShare)
+      throws IOException {
+    // each of the three problems is picked when a draw from this many comes up as its number
+    int problemSpace = invalidShare <= 0 ? 0 : Math.max(3, (int) Math.round(3 / invalidShare));
+    Random random = new Random(seed);
+    Writer out =
+        new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    try {
+      for (int i = 0; i < HEADERS.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(HEADERS[i]);
+      }
+      out.write('\n');
+      String[] row = new String[HEADERS.length];
+      for (int r = 0; r < rows; r++) {
+        fill(row, firstRow + r, random, problemSpace);
+        for (int i = 0; i < row.length; i++) {
+          if (i > 0) {
+            out.write(',');
+          }
+          out.write(row[i]);
+        }
+        out.write('\n');
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void fill(String[] row, long index, Random random, int problemSpace) {
+    row[0] = String.valueOf(1000000 + index);
+    row[1] = String.valueOf(5000000 + random.nextInt((int) Math.min(index + 1, Integer.MAX_VALUE)));
+    row[2] = pick(FIRST_NAMES, random);
+    row[3] = random.nextInt(3) == 0 ? "" : pick(FIRST_NAMES, random);
+    row[4] = pick(LAST_NAMES, random);
+    row[5] = date(1930 + random.nextInt(90), random);
+    row[6] = pick(SEXES, random);
+    row[7] = (1 + random.nextInt(9999)) + " " + pick(STREETS, random);
+    row[8] = random.nextInt(10) == 0 ? "Apt " + (1 + random.nextInt(40)) : "";
+    row[9] = pick(CITIES, random);
+    row[10] = "";
+    row[11] = "MI";
+    row[12] = String.valueOf(48001 + random.nextInt(1900));
+    row[13] = pick(RACES, random);
+    row[14] = random.nextInt(8) == 0 ? pick(RACES, random) : "";
+    for (int i = 15; i <= 18; i++) {
+      row[i] = "";
+    }
+    row[19] = pick(ETHNICITIES, random);
+    row[20] = date(2020 + random.nextInt(2), random);
+    row[21] = pick(CVX, random);
+    row[22] = "";
+    row[23] = pick(MVX, random);
+    row[24] = "L" + Integer.toString(random.nextInt(1 << 20), 36).toUpperCase();
+    row[25] = date(2022 + random.nextInt(2), random);
+    row[26] = pick(SITES, random);
+    row[27] = "C28161";
+    row[28] = "";
+    row[29] = "";
+    if (problemSpace == 0) {
+      return;
+    }
+    switch (random.nextInt(problemSpace)) {
+      case 0:
+        row[4] = "";
+        break;
+      case 1:
+        row[5] = "19" + random.nextInt(100) + "1399";
+        break;
+      case 2:
+        row[21] = "999";
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static String pick(String[] values, Random random) {
+    return values[random.nextInt(values.length)];
+  }
+
+  private static String date(int year, Random random) {
+    int month = 1 + random.nextInt(12);
+    int day = 1 + random.nextInt(28);
+    return year + (month < 10 ? "0" : "") + month + (day < 10 ? "0" : "") + day;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: SampleData file rows [seed]");
+      System.exit(1);
+    }
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+    write(new File(args[0]), Integer.parseInt(args[1]), seed);
+  }
+}
@@ -0,0 +1,220 @@
+package org.immregistries.puente;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only log of how far each input file has been converted, so that a restart can pick up
+ * where the last run stopped instead of converting the whole file again.
+ *
+ * <p>A START entry is written when a file is opened, a CKPT entry every journal.checkpointRecords
+ * records once the outputs have been synced to disk, COMMIT when the outputs are complete and DONE
+ * once they have been published and the input archived. Each entry is synced before conversion
+ * goes on, so the journal never claims more than the outputs hold. On startup the journal is read
+ * back, files that were finished are forgotten, and the last entry of each unfinished file is kept
+ * for {@link #pending(File)}. The journal is rewritten with only those entries before new ones are
+ * appended, so it does not grow without bound.
+ */
+class CheckpointJournal implements Closeable {
+  static final String START = "START";
+  static final String CHECKPOINT = "CKPT";
+  static final String COMMIT = "COMMIT";
+  static final String DONE = "DONE";
+
+  static final int CHECKPOINT_RECORDS = Settings.getInt("journal.checkpointRecords", 10000);
+
+  private final FileChannel channel;
+  private final Map<String, Checkpoint> pending;
+
+  private CheckpointJournal(FileChannel channel, Map<String, Checkpoint> pending) {
+    this.channel = channel;
+    this.pending = pending;
+  }
+
+  /**
+   * Reads the journal, keeping the last entry of each unfinished file that is still waiting in the
+   * data directory, and opens it for appending.
+   */
+  static CheckpointJournal open(File file, File dataDir) throws IOException {
+    Map<String, Checkpoint> pending = new LinkedHashMap<String, Checkpoint>();
+    if (file.exists()) {
+      String[] lines =
+          new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+      // the last element is empty, or a torn entry from a crash in the middle of an append
+      for (int i = 0; i < lines.length - 1; i++) {
+        Checkpoint checkpoint = Checkpoint.parse(lines[i]);
+        if (checkpoint == null) {
+          continue;
+        }
+        if (DONE.equals(checkpoint.stage)) {
+          pending.remove(checkpoint.inputName);
+        } else {
+          pending.put(checkpoint.inputName, checkpoint);
+        }
+      }
+    }
+    for (String inputName : pending.keySet().toArray(new String[0])) {
+      if (!new File(dataDir, inputName).exists()) {
+        pending.remove(inputName);
+      }
+    }
+
+    File compacted =
+        new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+    FileChannel out =
+        FileChannel.open(
+            compacted.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      for (Checkpoint checkpoint : pending.values()) {
+        write(out, checkpoint);
+      }
+      out.force(true);
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(
+          compacted.toPath(),
+          file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (!pending.isEmpty()) {
+      Log.info("Journal has " + pending.size() + " unfinished file(s) to resume");
+    }
+    return new CheckpointJournal(channel, pending);
+  }
+
+  /**
+   * Returns and forgets the last entry recorded for this input, or null if the input has not been
+   * seen before or has changed since the entry was written.
+   */
+  synchronized Checkpoint pending(File input) {
+    Checkpoint checkpoint = pending.remove(FileWatchService.inputName(input));
+    if (checkpoint != null
+        && (checkpoint.inputSize != input.length()
+            || checkpoint.inputModified != input.lastModified())) {
+      Log.info("  + " + input.getName() + " changed since it was started, not resuming");
+      return null;
+    }
+    return checkpoint;
+  }
+
+  /** Appends the checkpoint at the given stage and syncs the journal. */
+  synchronized void append(String stage, Checkpoint checkpoint) throws IOException {
+    checkpoint.stage = stage;
+    write(channel, checkpoint);
+    channel.force(false);
+  }
+
+  private static void write(FileChannel channel, Checkpoint checkpoint) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(checkpoint.format().getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /** How far one input file has been converted and the state of its outputs at that point. */
+  static class Checkpoint {
+    String stage = START;
+    final String inputName;
+    final long inputSize;
+    final long inputModified;
+    final String dateStr;
+    long records = 0;
+    long countError = 0;
+    long countOkay = 0;
+    int hl7FileCount = 0;
+    long hl7MessageCount = 0;
+    long hl7CharCount = 0;
+    // bytes of each open output at the checkpoint, -1 when the output has not been opened
+    long hl7Length = -1;
+    long readyLength = -1;
+    long errorLength = -1;
+
+    Checkpoint(String inputName, long inputSize, long inputModified, String dateStr) {
+      this.inputName = inputName;
+      this.inputSize = inputSize;
+      this.inputModified = inputModified;
+      this.dateStr = dateStr;
+    }
+
+    String format() {
+      return stage
+          + '\t'
+          + inputName
+          + '\t'
+          + inputSize
+          + '\t'
+          + inputModified
+          + '\t'
+          + dateStr
+          + '\t'
+          + records
+          + '\t'
+          + countError
+          + '\t'
+          + countOkay
+          + '\t'
+          + hl7FileCount
+          + '\t'
+          + hl7MessageCount
+          + '\t'
+          + hl7CharCount
+          + '\t'
+          + hl7Length
+          + '\t'
+          + readyLength
+          + '\t'
+          + errorLength
+          + '\n';
+    }
+
+    static Checkpoint parse(String line) {
+      String[] fields = line.split("\t");
+      if (fields.length != 14) {
+        return null;
+      }
+      try {
+        Checkpoint checkpoint =
+            new Checkpoint(
+                fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]);
+        checkpoint.stage = fields[0];
+        checkpoint.records = Long.parseLong(fields[5]);
+        checkpoint.countError = Long.parseLong(fields[6]);
+        checkpoint.countOkay = Long.parseLong(fields[7]);
+        checkpoint.hl7FileCount = Integer.parseInt(fields[8]);
+        checkpoint.hl7MessageCount = Long.parseLong(fields[9]);
+        checkpoint.hl7CharCount = Long.parseLong(fields[10]);
+        checkpoint.hl7Length = Long.parseLong(fields[11]);
+        checkpoint.readyLength = Long.parseLong(fields[12]);
+        checkpoint.errorLength = Long.parseLong(fields[13]);
+        return checkpoint;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.immregistries.puente;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Reads a large CSV extract by cutting it into chunks of about csv.chunkBytes and parsing several
+ * chunks at once on a fork/join pool of csv.parseThreads threads. Rows still come out in file
+ * order, numbered across the whole file, so the rest of the conversion can't tell the difference
+ * from {@link CsvRowReader}.
+ *
+ * <p>A chunk always ends just after a line break that ends a record. Finding one means knowing
+ * whether a line break is inside a quoted value, so the file is scanned from the start by a {@link
+ * CsvBoundaryScanner}; that only looks at bytes and is much quicker than parsing. A few chunks are
+ * parsed ahead of the row being read, which bounds memory use.
+ */
+class ChunkedCsvRowReader extends RowReader {
+  private static final int CHUNK_BYTES = Settings.getInt("csv.chunkBytes", 4 * 1024 * 1024);
+  private static final int PARSE_THREADS =
+      Settings.getInt(
+          "csv.parseThreads", Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+  // chunks parsed or being parsed ahead of the one being read
+  private static final int CHUNKS_AHEAD = PARSE_THREADS + 1;
+
+  private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withTrim();
+
+  private static final Metrics.Histogram chunkTime = Metrics.histogram("stage.parseChunk.nanos");
+
+  private static ForkJoinPool pool;
+
+  private final File file;
+  private final int chunkBytes;
+  private final FileChannel channel;
+  private final long size;
+  private final ContentDigest digest = new ContentDigest();
+  private final CsvBoundaryScanner scanner;
+  private final List<String> headers;
+  private final long dataStart;
+
+  ChunkedCsvRowReader(File file) throws IOException {
+    this(file, CHUNK_BYTES);
+  }
+
+  /** Reads the file in chunks of about chunkBytes instead of csv.chunkBytes. */
+  ChunkedCsvRowReader(File file, int chunkBytes) throws IOException {
+    this.file = file;
+    this.chunkBytes = chunkBytes;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      size = channel.size();
+      scanner = new CsvBoundaryScanner(channel, 0, digest);
+      // blank lines before the header are skipped, as CSVParser does
+      long headerEnd = 0;
+      List<String> names = Collections.emptyList();
+      while (names.isEmpty() && headerEnd < size) {
+        headerEnd = end(scanner.next(headerEnd + 1, size));
+        CSVParser parser =
+            CSVFormat.DEFAULT
+                .withFirstRecordAsHeader()
+                .withTrim()
+                .parse(decode(read(0, headerEnd)));
+        names = parser.getHeaderNames();
+        parser.close();
+      }
+      headers = names;
+      dataStart = headerEnd;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** The last record in the file ends at the end of the file, with or without a line break. */
+  private long end(long boundary) {
+    return boundary < 0 ? size : boundary;
+  }
+
+  private static synchronized ForkJoinPool pool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(PARSE_THREADS);
+    }
+    return pool;
+  }
+
+  @Override
+  List<String> headers() {
+    return headers;
+  }
+
+  @Override
+  Iterator<Row> rows() {
+    return new Iterator<Row>() {
+      private final ArrayDeque<ForkJoinTask<List<String[]>>> chunks =
+          new ArrayDeque<ForkJoinTask<List<String[]>>>();
+      private long nextChunkStart = dataStart;
+      private List<String[]> current = Collections.emptyList();
+      private int index = 0;
+      private long rowCount = 0;
+
+      @Override
+      public boolean hasNext() {
+        while (index >= current.size()) {
+          submitChunks();
+          ForkJoinTask<List<String[]>> chunk = chunks.poll();
+          if (chunk == null) {
+            return false;
+          }
+          try {
+            current = chunk.join();
+          } catch (RuntimeException e) {
+            throw new IllegalStateException(
+                "Couldn't parse " + file.getName() + " after row " + rowCount, e);
+          }
+          index = 0;
+        }
+        return true;
+      }
+
+      @Override
+      public Row next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        rowCount++;
+        String[] values = current.get(index);
+        current.set(index, null);
+        index++;
+        return Row.of(rowCount, values);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      private void submitChunks() {
+        while (chunks.size() < CHUNKS_AHEAD && nextChunkStart < size) {
+          long end;
+          try {
+            end = end(scanner.next(nextChunkStart + chunkBytes, size));
+          } catch (IOException e) {
+            throw new IllegalStateException("Couldn't read " + file.getName(), e);
+          }
+          chunks.add(pool().submit(new ChunkParser(nextChunkStart, end)));
+          nextChunkStart = end;
+        }
+      }
+    };
+  }
+
+  @Override
+  String digest() {
+    return digest.length() == size ? digest.value() : null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private byte[] read(long start, long end) throws IOException {
+    if (end - start > Integer.MAX_VALUE) {
+      throw new IOException("Record too long near byte " + start + " of " + file.getName());
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, start + buffer.position()) < 0) {
+        throw new IOException(file.getName() + " got shorter while it was being read");
+      }
+    }
+    return buffer.array();
+  }
+
+  private static Reader decode(byte[] bytes) {
+    return new InputStreamReader(new ByteArrayInputStream(bytes), FileWatchService.newDecoder());
+  }
+
+  /** Parses the records between two boundaries into arrays of values. */
+  private class ChunkParser implements Callable<List<String[]>> {
+    private final long start;
+    private final long end;
+
+    ChunkParser(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public List<String[]> call() throws IOException {
+      long startNanos = System.nanoTime();
+      List<String[]> rows = new ArrayList<String[]>();
+      CSVParser parser = FORMAT.parse(decode(read(start, end)));
+      try {
+        for (CSVRecord record : parser) {
+          String[] values = new String[record.size()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = record.get(i);
+          }
+          rows.add(values);
+        }
+      } finally {
+        parser.close();
+      }
+      chunkTime.recordSince(startNanos);
+      return rows;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package org.immregistries.puente;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash indexes of the code sets used by the pre-validation stage, loaded once at startup. Each set
+ * comes from codes/&lt;name&gt;.txt on the classpath unless the codes.dir directory has a file of
+ * the same name. A set with no table at all is not enforced.
+ */
+final class CodeIndex {
+  static final String CVX = "cvx";
+  static final String MVX = "mvx";
+  static final String NDC = "ndc";
+  static final String SEX = "sex";
+  static final String RACE = "race";
+  static final String ETHNICITY = "ethnicity";
+
+  private static final String[] CODE_SETS = {CVX, MVX, NDC, SEX, RACE, ETHNICITY};
+
+  static final CodeIndex INSTANCE = load();
+
+  private final Map<String, Set<String>> sets;
+
+  private CodeIndex(Map<String, Set<String>> sets) {
+    this.sets = sets;
+  }
+
+  /** Returns true if the code is in the set, or if the set has no table. */
+  boolean isKnown(String set, String code) {
+    Set<String> codes = sets.get(set);
+    return codes == null || codes.contains(normalize(set, code));
+  }
+
+  private static String normalize(String set, String code) {
+    String s = code.trim().toUpperCase(Locale.ROOT);
+    if (CVX.equals(set)) {
+      // CVX codes are sent both as "3" and "03"
+      int i = 0;
+      while (i < s.length() - 1 && s.charAt(i) == '0') {
+        i++;
+      }
+      s = s.substring(i);
+    } else if (NDC.equals(set)) {
+      s = s.replace("-", "");
+    }
+    return s;
+  }
+
+  private static CodeIndex load() {
+    String codesDir = Settings.get("codes.dir", null);
+    Map<String, Set<String>> sets = new HashMap<String, Set<String>>();
+    for (String set : CODE_SETS) {
+      String fileName = set + ".txt";
+      try {
+        InputStream in = null;
+        if (codesDir != null && new File(codesDir, fileName).exists()) {
+          in = new FileInputStream(new File(codesDir, fileName));
+        } else {
+          in = CodeIndex.class.getResourceAsStream("/codes/" + fileName);
+        }
+        if (in != null) {
+          Set<String> codes = read(set, in);
+          sets.put(set, codes);
+          Log.info("Loaded " + codes.size() + " " + set + " codes");
+        }
+      } catch (IOException e) {
+        Log.warn("Couldn't load " + set + " codes: " + e.getMessage());
+      }
+    }
+    return new CodeIndex(sets);
+  }
+
+  private static Set<String> read(String set, InputStream in) throws IOException {
+    Set<String> codes = new HashSet<String>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!"".equals(line) && !line.startsWith("#")) {
+          codes.add(normalize(set, line));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return codes;
+  }
+}
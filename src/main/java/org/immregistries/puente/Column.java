@@ -0,0 +1,55 @@
+package org.immregistries.puente;
+
+/**
+ * The values Puente reads from each row of an extract. Each column has the header it goes by in
+ * the standard layout; {@link ColumnMapping} finds where it is in a particular file.
+ */
+enum Column {
+  VACCINATION_EVENT_ID("Vaccination event ID"),
+  RECIPIENT_ID("Recipient ID"),
+  RECIPIENT_NAME_FIRST("Recipient name: first"),
+  RECIPIENT_NAME_MIDDLE("Recipient name: middle"),
+  RECIPIENT_NAME_LAST("Recipient name: last"),
+  RECIPIENT_DATE_OF_BIRTH("Recipient date of birth"),
+  RECIPIENT_SEX("Recipient sex"),
+  RECIPIENT_ADDRESS_STREET("Recipient address: street"),
+  RECIPIENT_ADDRESS_STREET_2("Recipient address: street 2"),
+  RECIPIENT_ADDRESS_CITY("Recipient address: city"),
+  RECIPIENT_ADDRESS_COUNTY("Recipient address: county"),
+  RECIPIENT_ADDRESS_STATE("Recipient address: state"),
+  RECIPIENT_ADDRESS_ZIP_CODE("Recipient address: zip code"),
+  RECIPIENT_RACE_1("Recipient race 1"),
+  RECIPIENT_RACE_2("Recipient race 2"),
+  RECIPIENT_RACE_3("Recipient race 3"),
+  RECIPIENT_RACE_4("Recipient race 4"),
+  RECIPIENT_RACE_5("Recipient race 5"),
+  RECIPIENT_RACE_6("Recipient race 6"),
+  RECIPIENT_ETHNICITY("Recipient ethnicity"),
+  ADMINISTRATION_DATE("Administration date"),
+  CVX("CVX"),
+  NDC("NDC"),
+  MVX("MVX"),
+  LOT_NUMBER("Lot number"),
+  VACCINE_EXPIRATION_DATE("Vaccine expiration date"),
+  VACCINE_ADMINISTERING_SITE("Vaccine administering site"),
+  VACCINE_ROUTE_OF_ADMINISTRATION("Vaccine route of administration"),
+  RESPONSIBLE_ORGANIZATION("Responsible organization"),
+  ADMINISTERED_AT_LOCATION("Administered at location"),
+  VACCINATION_REFUSAL("Vaccination refusal");
+
+  static final Column[] RACES = {
+    RECIPIENT_RACE_1,
+    RECIPIENT_RACE_2,
+    RECIPIENT_RACE_3,
+    RECIPIENT_RACE_4,
+    RECIPIENT_RACE_5,
+    RECIPIENT_RACE_6
+  };
+
+  /** The header used for this column in the standard layout and in error messages. */
+  final String header;
+
+  Column(String header) {
+    this.header = header;
+  }
+}
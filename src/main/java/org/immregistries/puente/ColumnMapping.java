@@ -0,0 +1,141 @@
+package org.immregistries.puente;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where each {@link Column} is in one file, worked out once from the header row so that reading a
+ * value from a row is an array lookup instead of a search by name.
+ *
+ * <p>Headers are matched ignoring case and extra spaces. A column can also go by other names:
+ * mapping.&lt;COLUMN&gt; lists aliases separated by "|" (for example
+ * mapping.RECIPIENT_DATE_OF_BIRTH=Patient DOB|DOB). For senders with their own layout,
+ * mapping.profiles lists profile names, and mapping.&lt;profile&gt;.&lt;COLUMN&gt; gives aliases
+ * that apply to files whose names start with mapping.&lt;profile&gt;.filePrefix. Profile aliases
+ * are tried first, then the shared aliases, then the standard header.
+ */
+class ColumnMapping {
+  private static final List<Profile> PROFILES = loadProfiles();
+  private static final Profile SHARED = new Profile(null);
+
+  private final String profileName;
+  private final int[] indexes;
+
+  private ColumnMapping(String profileName, int[] indexes) {
+    this.profileName = profileName;
+    this.indexes = indexes;
+  }
+
+  /** Resolves the columns for a file with the given name and header row. */
+  static ColumnMapping forFile(String fileName, List<String> headers) {
+    Map<String, Integer> positions = new HashMap<String, Integer>();
+    for (int i = 0; i < headers.size(); i++) {
+      String key = normalize(headers.get(i));
+      if (!positions.containsKey(key)) {
+        positions.put(key, i);
+      }
+    }
+    Profile profile = null;
+    for (Profile candidate : PROFILES) {
+      if (candidate.filePrefix != null && fileName.startsWith(candidate.filePrefix)) {
+        profile = candidate;
+        break;
+      }
+    }
+    int[] indexes = new int[Column.values().length];
+    for (Column column : Column.values()) {
+      List<String> names = new ArrayList<String>();
+      if (profile != null) {
+        names.addAll(profile.aliases(column));
+      }
+      names.addAll(SHARED.aliases(column));
+      names.add(column.header);
+      indexes[column.ordinal()] = -1;
+      for (String name : names) {
+        Integer position = positions.get(normalize(name));
+        if (position != null) {
+          indexes[column.ordinal()] = position;
+          break;
+        }
+      }
+    }
+    return new ColumnMapping(profile == null ? null : profile.name, indexes);
+  }
+
+  /** The name of the profile that was applied, or null if only the shared aliases were. */
+  String profileName() {
+    return profileName;
+  }
+
+  boolean isMapped(Column column) {
+    return indexes[column.ordinal()] >= 0;
+  }
+
+  /** The position of the column in each record, or -1 if the file doesn't have it. */
+  int index(Column column) {
+    return indexes[column.ordinal()];
+  }
+
+  /** The trimmed value of the column, or an empty string if the file or row doesn't have it. */
+  String get(Row row, Column column) {
+    return value(row, indexes[column.ordinal()]);
+  }
+
+  static String value(Row row, int index) {
+    if (index < 0 || index >= row.size()) {
+      return "";
+    }
+    String value = row.get(index);
+    return value == null ? "" : value.trim();
+  }
+
+  private static String normalize(String header) {
+    String s = header;
+    if (s.startsWith("\uFEFF")) {
+      s = s.substring(1);
+    }
+    return s.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+  }
+
+  private static List<Profile> loadProfiles() {
+    List<Profile> profiles = new ArrayList<Profile>();
+    String names = Settings.get("mapping.profiles", null);
+    if (names != null) {
+      for (String name : names.split(",")) {
+        if (!name.trim().isEmpty()) {
+          profiles.add(new Profile(name.trim()));
+        }
+      }
+    }
+    return profiles;
+  }
+
+  /** The aliases from the settings for one sender's layout, or the shared ones when unnamed. */
+  private static class Profile {
+    private final String name;
+    private final String filePrefix;
+    private final Map<Column, List<String>> aliases = new HashMap<Column, List<String>>();
+
+    Profile(String name) {
+      this.name = name;
+      String prefix = name == null ? "mapping." : "mapping." + name + ".";
+      this.filePrefix = name == null ? null : Settings.get(prefix + "filePrefix", null);
+      for (Column column : Column.values()) {
+        String value = Settings.get(prefix + column.name(), null);
+        if (value != null) {
+          aliases.put(column, Arrays.asList(value.split("\\|")));
+        }
+      }
+    }
+
+    List<String> aliases(Column column) {
+      List<String> list = aliases.get(column);
+      return list == null ? Collections.<String>emptyList() : list;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A SHA-256 of a file's contents, worked out from the bytes as they are read for conversion, so
+ * recording the file in the {@link ProcessedIndex} doesn't have to read it a second time. The
+ * bytes have to be added in order, each exactly once; a reader that can't promise that (such as
+ * {@link XlsxRowReader}, which jumps around the zip) leaves the hashing to {@link #of(File)}.
+ */
+class ContentDigest {
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final MessageDigest digest;
+  private long length = 0;
+  private String value = null;
+
+  ContentDigest() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Reads the whole file and returns its hash. */
+  static String of(File file) throws IOException {
+    ContentDigest digest = new ContentDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    InputStream in = new FileInputStream(file);
+    try {
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, count);
+      }
+    } finally {
+      in.close();
+    }
+    return digest.value();
+  }
+
+  void update(byte[] bytes, int offset, int count) {
+    digest.update(bytes, offset, count);
+    length += count;
+  }
+
+  /** The number of bytes added so far. */
+  long length() {
+    return length;
+  }
+
+  /** The hash of the bytes added, in hex. Nothing more can be added once it has been asked for. */
+  String value() {
+    if (value == null) {
+      StringBuilder hex = new StringBuilder(64);
+      for (byte b : digest.digest()) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+            .append(Character.forDigit(b & 0xf, 16));
+      }
+      value = hex.toString();
+    }
+    return value;
+  }
+
+  /** Wraps a channel that is read from start to end, adding each byte as it is read. */
+  ReadableByteChannel wrap(final ReadableByteChannel channel) {
+    return new ReadableByteChannel() {
+      @Override
+      public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int count = channel.read(dst);
+        if (count > 0) {
+          ByteBuffer read = dst.duplicate();
+          read.position(start);
+          read.limit(start + count);
+          digest.update(read);
+          length += count;
+        }
+        return count;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return channel.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+}
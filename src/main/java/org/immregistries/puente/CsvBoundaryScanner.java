@@ -0,0 +1,120 @@
+package org.immregistries.puente;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds where records end in a CSV file by looking at its bytes, without parsing it. It follows
+ * the same quoting rules as CSVParser: a quote only opens a quoted value at the start of a field,
+ * and inside one a doubled quote stands for a quote. A line break ends a record unless it is
+ * inside a quoted value. Whether a line break is quoted depends on everything before it, so the
+ * scanner has to start at the beginning of a record and walk forward from there.
+ *
+ * <p>Quotes, commas and line breaks are looked for as single bytes, which only works when the
+ * file's charset is UTF-8 or uses one byte per character; see {@link #supports}.
+ */
+class CsvBoundaryScanner {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int FIELD_START = 0;
+  private static final int UNQUOTED = 1;
+  private static final int QUOTED = 2;
+  private static final int QUOTE_IN_QUOTED = 3;
+
+  private final FileChannel channel;
+  private final ContentDigest digest;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private long position;
+  private int state = FIELD_START;
+
+  /** Starts scanning at position, which has to be the start of a record. */
+  CsvBoundaryScanner(FileChannel channel, long position) {
+    this(channel, position, null);
+  }
+
+  /** Starts scanning at position as above, adding each byte scanned to digest. */
+  CsvBoundaryScanner(FileChannel channel, long position, ContentDigest digest) {
+    this.channel = channel;
+    this.position = position;
+    this.digest = digest;
+  }
+
+  static boolean supports(Charset charset) {
+    return charset.equals(StandardCharsets.UTF_8) || charset.newEncoder().maxBytesPerChar() == 1;
+  }
+
+  /**
+   * Scans on to the first record boundary at or after target, and returns it. Returns -1 if no
+   * record ends before limit, in which case the scanner is left at limit.
+   */
+  long next(long target, long limit) throws IOException {
+    return scan(target, limit, true);
+  }
+
+  /**
+   * Scans on to limit and returns the last record boundary on the way, or where the scanner was
+   * if no record ended.
+   */
+  long last(long limit) throws IOException {
+    return scan(0, limit, false);
+  }
+
+  private long scan(long target, long limit, boolean stopAtFirst) throws IOException {
+    long boundary = position;
+    while (position < limit) {
+      buffer.clear();
+      buffer.limit((int) Math.min(BUFFER_SIZE, limit - position));
+      int count = channel.read(buffer, position);
+      if (count < 0) {
+        break;
+      }
+      byte[] bytes = buffer.array();
+      for (int i = 0; i < count; i++) {
+        byte b = bytes[i];
+        switch (state) {
+          case FIELD_START:
+            if (b == '"') {
+              state = QUOTED;
+            } else if (b != ',' && b != '\n') {
+              state = UNQUOTED;
+            }
+            break;
+          case UNQUOTED:
+          case QUOTE_IN_QUOTED:
+            if (b == ',' || b == '\n') {
+              state = FIELD_START;
+            } else if (state == QUOTE_IN_QUOTED && b == '"') {
+              state = QUOTED;
+            } else {
+              state = UNQUOTED;
+            }
+            break;
+          default:
+            if (b == '"') {
+              state = QUOTE_IN_QUOTED;
+            }
+            break;
+        }
+        if (b == '\n' && state == FIELD_START) {
+          boundary = position + i + 1;
+          if (stopAtFirst && boundary >= target) {
+            // the rest of the buffer is read again by the next scan
+            if (digest != null) {
+              digest.update(bytes, 0, i + 1);
+            }
+            position = boundary;
+            return boundary;
+          }
+        }
+      }
+      if (digest != null) {
+        digest.update(bytes, 0, count);
+      }
+      position += count;
+    }
+    return stopAtFirst ? -1 : boundary;
+  }
+}
@@ -0,0 +1,83 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/** Reads a CSV extract whose first record is the header. */
+class CsvRowReader extends RowReader {
+  private final Reader reader;
+  private final CSVParser parser;
+  private final ContentDigest digest;
+  private final long size;
+
+  CsvRowReader(File file) throws IOException {
+    this(file, new ContentDigest());
+  }
+
+  private CsvRowReader(File file, ContentDigest digest) throws IOException {
+    this(FileWatchService.openReader(file, digest), digest, file.length());
+  }
+
+  /** Reads the extract from reader, which is closed along with this. */
+  CsvRowReader(Reader reader) throws IOException {
+    this(reader, null, -1);
+  }
+
+  private CsvRowReader(Reader reader, ContentDigest digest, long size) throws IOException {
+    this.reader = reader;
+    this.digest = digest;
+    this.size = size;
+    try {
+      parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().withTrim().parse(reader);
+    } catch (IOException | RuntimeException e) {
+      reader.close();
+      throw e;
+    }
+  }
+
+  @Override
+  List<String> headers() {
+    return parser.getHeaderNames();
+  }
+
+  @Override
+  Iterator<Row> rows() {
+    final Iterator<CSVRecord> records = parser.iterator();
+    return new Iterator<Row>() {
+      @Override
+      public boolean hasNext() {
+        return records.hasNext();
+      }
+
+      @Override
+      public Row next() {
+        return Row.of(records.next());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  String digest() {
+    return digest != null && digest.length() == size ? digest.value() : null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      parser.close();
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,470 @@
+package org.immregistries.puente;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The vaccinations that have already been turned into HL7 messages, across every file converted,
+ * so that overlapping extracts resent by a pharmacy are not forwarded to the IIS again.
+ *
+ * <p>Each vaccination is reduced to a 64-bit fingerprint of its event ID, or of the recipient ID,
+ * administration date, CVX and NDC when the event ID is blank. The fingerprints are kept in an
+ * open-addressed hash table that lives in a memory-mapped file, so lookups don't allocate, startup
+ * doesn't read the table in, and the operating system pages it in and out as needed. The table
+ * doubles (into a new file that replaces the old one) when it is 70% full; the largest table holds
+ * about 90 million vaccinations.
+ *
+ * <p>The fingerprints of a file are gathered in a {@link Batch} and only added to the index once
+ * the file's outputs are complete, so a file that fails or is interrupted never marks its own
+ * records as already sent. Until then they are reserved, so a file converted at the same time
+ * turns the same vaccinations away rather than sending them too; a batch that is closed without
+ * being committed gives its reservations up. A file converted with checkpoints also logs its batch
+ * to disk with each checkpoint, so after a restart it carries on with the vaccinations it had
+ * already sent.
+ */
+class DuplicateIndex {
+  private static final long MAGIC = 0x50554e5445445550L; // "PUNTEDUP"
+  private static final int HEADER_LONGS = 4;
+  private static final int INITIAL_CAPACITY = 1 << 20;
+  private static final int MAX_CAPACITY = 1 << 27;
+  private static final double MAX_LOAD = 0.7;
+  private static final int LOG_BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  // fingerprints of the batches not yet committed or closed
+  private final Reserved reserved = new Reserved();
+  private MappedByteBuffer buffer;
+  private LongBuffer table;
+  private int capacity;
+  private long size;
+
+  private DuplicateIndex(File file) {
+    this.file = file;
+  }
+
+  static DuplicateIndex open(File file) throws IOException {
+    DuplicateIndex index = new DuplicateIndex(file);
+    if (!file.exists()) {
+      create(file, INITIAL_CAPACITY).force();
+    }
+    index.map();
+    Log.info("Duplicate index has " + index.size + " vaccinations");
+    return index;
+  }
+
+  private void map() throws IOException {
+    FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      // the mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+    table = buffer.asLongBuffer();
+    if (table.capacity() < HEADER_LONGS || table.get(0) != MAGIC) {
+      throw new IOException(file + " is not a duplicate index");
+    }
+    capacity = (int) table.get(1);
+    size = table.get(2);
+  }
+
+  private static MappedByteBuffer create(File file, int capacity) throws IOException {
+    FileChannel channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, (HEADER_LONGS + (long) capacity) * 8);
+      buffer.putLong(0, MAGIC);
+      buffer.putLong(8, capacity);
+      buffer.putLong(16, 0);
+      return buffer;
+    } finally {
+      channel.close();
+    }
+  }
+
+  synchronized boolean contains(long fingerprint) {
+    return find(table, capacity, fingerprint);
+  }
+
+  /**
+   * Adds the fingerprints of a completed file and syncs the index to disk, then gives up the
+   * batch's reservations.
+   */
+  synchronized void commit(Batch batch) throws IOException {
+    if (size + batch.size > capacity * MAX_LOAD) {
+      grow(size + batch.size);
+    }
+    for (int i = 0; i < batch.capacity; i++) {
+      long fingerprint = batch.table.get(HEADER_LONGS + i);
+      if (fingerprint != 0 && insert(table, capacity, fingerprint)) {
+        size++;
+      }
+    }
+    table.put(2, size);
+    buffer.force();
+    release(batch);
+  }
+
+  /** Reserves the fingerprint, unless it is already in the index or reserved by another batch. */
+  private synchronized boolean reserve(long fingerprint) {
+    if (isTaken(fingerprint)) {
+      return false;
+    }
+    reserved.add(fingerprint);
+    return true;
+  }
+
+  private synchronized boolean isTaken(long fingerprint) {
+    return find(table, capacity, fingerprint) || reserved.contains(fingerprint);
+  }
+
+  private synchronized void release(Batch batch) {
+    if (!batch.reserving) {
+      return;
+    }
+    batch.reserving = false;
+    for (int i = 0; i < batch.capacity; i++) {
+      long fingerprint = batch.table.get(HEADER_LONGS + i);
+      if (fingerprint != 0
+          && (batch.notReserved == null || !batch.notReserved.contains(fingerprint))) {
+        reserved.remove(fingerprint);
+      }
+    }
+  }
+
+  private void grow(long needed) throws IOException {
+    int newCapacity = capacity;
+    while (needed > newCapacity * MAX_LOAD) {
+      if (newCapacity >= MAX_CAPACITY) {
+        throw new IOException("Duplicate index is full at " + size + " vaccinations");
+      }
+      newCapacity *= 2;
+    }
+    File grown = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+    MappedByteBuffer newBuffer = create(grown, newCapacity);
+    LongBuffer newTable = newBuffer.asLongBuffer();
+    for (int i = 0; i < capacity; i++) {
+      long fingerprint = table.get(HEADER_LONGS + i);
+      if (fingerprint != 0) {
+        insert(newTable, newCapacity, fingerprint);
+      }
+    }
+    newTable.put(2, size);
+    newBuffer.force();
+    try {
+      Files.move(
+          grown.toPath(),
+          file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(grown.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    buffer = newBuffer;
+    table = newTable;
+    capacity = newCapacity;
+  }
+
+  /** Starts the batch of a file whose vaccinations are sent, reserving them as they are added. */
+  Batch newBatch() {
+    return new Batch(true);
+  }
+
+  /**
+   * Starts a batch for rows that aren't sent, which only checks them against the index, the
+   * reservations and each other. It reserves nothing and is never committed.
+   */
+  Batch newLookupBatch() {
+    return new Batch(false);
+  }
+
+  /**
+   * Starts the batch of a file converted with checkpoints, reading back the first {@code count}
+   * fingerprints logged by an earlier run (the vaccinations it had sent by its last checkpoint) and
+   * logging the fingerprints added from now on. A count of zero starts an empty log.
+   */
+  Batch newBatch(File log, long count) throws IOException {
+    Batch batch = new Batch(true);
+    batch.openLog(log, count);
+    return batch;
+  }
+
+  /**
+   * Returns the fingerprint of the vaccination in the row. Zero is reserved for empty slots, so
+   * it is never returned.
+   */
+  static long fingerprint(Row row, ColumnMapping columns) {
+    String eventId = columns.get(row, Column.VACCINATION_EVENT_ID);
+    long hash;
+    if (!"".equals(eventId)) {
+      hash = hash(0x45L, eventId);
+    } else {
+      hash = hash(0x52L, columns.get(row, Column.RECIPIENT_ID));
+      hash = hash(hash, columns.get(row, Column.ADMINISTRATION_DATE));
+      hash = hash(hash, columns.get(row, Column.CVX));
+      hash = hash(hash, columns.get(row, Column.NDC));
+    }
+    hash = mix(hash);
+    return hash == 0 ? 1 : hash;
+  }
+
+  /** FNV-1a over the value and a separator, so ("ab", "c") and ("a", "bc") differ. */
+  private static long hash(long hash, String value) {
+    hash ^= 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= 0x1f;
+    return hash * 0x100000001b3L;
+  }
+
+  /** The MurmurHash3 finalizer, so the low bits used to pick a slot depend on every input bit. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static boolean find(LongBuffer table, int capacity, long fingerprint) {
+    int mask = capacity - 1;
+    for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+      long existing = table.get(HEADER_LONGS + slot);
+      if (existing == fingerprint) {
+        return true;
+      }
+      if (existing == 0) {
+        return false;
+      }
+    }
+  }
+
+  /** Returns false if the fingerprint was already in the table. */
+  private static boolean insert(LongBuffer table, int capacity, long fingerprint) {
+    int mask = capacity - 1;
+    for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+      long existing = table.get(HEADER_LONGS + slot);
+      if (existing == fingerprint) {
+        return false;
+      }
+      if (existing == 0) {
+        table.put(HEADER_LONGS + slot, fingerprint);
+        return true;
+      }
+    }
+  }
+
+  /** The fingerprints of one file, held on the heap until the file is committed. */
+  class Batch implements Closeable {
+    private LongBuffer table;
+    private int capacity;
+    private int size = 0;
+    // true until the reservations are given up
+    private boolean reserving;
+    // read back from the log but already in the index or reserved by another batch
+    private Set<Long> notReserved;
+    private File logFile;
+    private FileChannel log;
+    private ByteBuffer unlogged;
+
+    private Batch(boolean reserving) {
+      this.reserving = reserving;
+      capacity = 1024;
+      table = LongBuffer.allocate(HEADER_LONGS + capacity);
+    }
+
+    private void openLog(File file, long count) throws IOException {
+      logFile = file;
+      log =
+          FileChannel.open(
+              file.toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      long length = Math.min(log.size(), count * 8);
+      if (length < count * 8) {
+        Log.warn(
+            "  + Only "
+                + length / 8
+                + " of the "
+                + count
+                + " vaccinations sent were logged, the rest may be sent again later");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+      long position = 0;
+      while (position < length) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), length - position));
+        while (buffer.hasRemaining()) {
+          if (log.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException(file + " ended early");
+          }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          long fingerprint = buffer.getLong();
+          if (!find(table, capacity, fingerprint) && !reserve(fingerprint)) {
+            if (notReserved == null) {
+              notReserved = new HashSet<Long>();
+            }
+            notReserved.add(fingerprint);
+          }
+          put(fingerprint);
+        }
+        position += buffer.limit();
+      }
+      log.truncate(length);
+      log.position(length);
+      unlogged = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+    }
+
+    /**
+     * Records the vaccination and returns true, or returns false if it was already sent in an
+     * earlier file or earlier in this one.
+     */
+    boolean add(long fingerprint) throws IOException {
+      if (find(table, capacity, fingerprint)) {
+        return false;
+      }
+      if (reserving ? !reserve(fingerprint) : isTaken(fingerprint)) {
+        return false;
+      }
+      put(fingerprint);
+      if (log != null) {
+        if (!unlogged.hasRemaining()) {
+          writeLog();
+        }
+        unlogged.putLong(fingerprint);
+      }
+      return true;
+    }
+
+    private void put(long fingerprint) {
+      if (size + 1 > capacity * MAX_LOAD) {
+        int newCapacity = capacity * 2;
+        LongBuffer newTable = LongBuffer.allocate(HEADER_LONGS + newCapacity);
+        for (int i = 0; i < capacity; i++) {
+          long existing = table.get(HEADER_LONGS + i);
+          if (existing != 0) {
+            insert(newTable, newCapacity, existing);
+          }
+        }
+        table = newTable;
+        capacity = newCapacity;
+      }
+      if (insert(table, capacity, fingerprint)) {
+        size++;
+      }
+    }
+
+    /** Writes the fingerprints added since the last sync to the log and syncs it to disk. */
+    void sync() throws IOException {
+      if (log != null) {
+        writeLog();
+        log.force(false);
+      }
+    }
+
+    private void writeLog() throws IOException {
+      unlogged.flip();
+      while (unlogged.hasRemaining()) {
+        log.write(unlogged);
+      }
+      unlogged.clear();
+    }
+
+    /**
+     * Gives up the reservations of a batch that wasn't committed, and closes and removes the log,
+     * which is not needed once the file is finished or given up.
+     */
+    @Override
+    public void close() throws IOException {
+      release(this);
+      if (log != null) {
+        log.close();
+        log = null;
+        Files.deleteIfExists(logFile.toPath());
+      }
+    }
+  }
+
+  /**
+   * A set of fingerprints in an open-addressed table of longs, so reserving doesn't allocate.
+   * Removing shifts the entries after a slot back rather than leaving markers behind.
+   */
+  private static class Reserved {
+    private long[] slots = new long[1024];
+    private int size = 0;
+
+    boolean contains(long fingerprint) {
+      return slots[slot(slots, fingerprint)] == fingerprint;
+    }
+
+    void add(long fingerprint) {
+      if (size + 1 > slots.length / 2) {
+        long[] grown = new long[slots.length * 2];
+        for (long existing : slots) {
+          if (existing != 0) {
+            grown[slot(grown, existing)] = existing;
+          }
+        }
+        slots = grown;
+      }
+      int slot = slot(slots, fingerprint);
+      if (slots[slot] == 0) {
+        slots[slot] = fingerprint;
+        size++;
+      }
+    }
+
+    void remove(long fingerprint) {
+      int mask = slots.length - 1;
+      int hole = slot(slots, fingerprint);
+      if (slots[hole] == 0) {
+        return;
+      }
+      for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int home = (int) slots[slot] & mask;
+        // an entry can fill the hole unless its home slot lies after the hole
+        boolean stays = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+        if (!stays) {
+          slots[hole] = slots[slot];
+          hole = slot;
+        }
+      }
+      slots[hole] = 0;
+      size--;
+    }
+
+    /** The slot holding the fingerprint, or the empty slot where it would go. */
+    private static int slot(long[] slots, long fingerprint) {
+      int mask = slots.length - 1;
+      int slot = (int) fingerprint & mask;
+      while (slots[slot] != 0 && slots[slot] != fingerprint) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+}
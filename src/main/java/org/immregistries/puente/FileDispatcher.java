@@ -0,0 +1,280 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands dropped files to a bounded pool of file workers once they are complete.
+ *
+ * <p>A file is considered complete when its size and modification time have not changed for a
+ * quiet period, or, when a completion marker suffix is configured, when the marker file (for
+ * example "extract.csv.done") appears. Waiting files are ordered by a virtual start time: the time
+ * they became ready plus a cost proportional to their size. A small file that arrives behind a
+ * large one starts first, but a large file is never pushed back indefinitely because every later
+ * arrival gets a later start time.
+ *
+ * <p>Each {@link Tenant} has its own line of start times, each file's after its previous one, so a
+ * sender that drops a hundred files doesn't hold up a sender that drops one; with weights, tenants
+ * share the workers in proportion. A file whose tenant already has tenant.maxFiles in progress
+ * waits, and the next file in order that can start does.
+ */
+class FileDispatcher {
+  private static final long POLL_MILLIS = Settings.getLong("dispatch.pollMillis", 500);
+  private static final long QUIET_MILLIS = Settings.getLong("dispatch.quietMillis", 2000);
+  private static final String COMPLETION_MARKER = Settings.get("dispatch.completionMarker", null);
+  private static final long MARKER_TIMEOUT_MILLIS =
+      Settings.getLong("dispatch.markerTimeoutMillis", 60L * 60 * 1000);
+  private static final long COST_BYTES_PER_SECOND =
+      Settings.getLong("dispatch.costBytesPerSecond", 10L * 1024 * 1024);
+  private static final int FILE_WORKERS =
+      Settings.getInt(
+          "dispatch.fileWorkers", Math.max(2, Runtime.getRuntime().availableProcessors() / 4));
+
+  private static final Metrics.Histogram pickupAge = Metrics.histogram("file.pickupAge.millis");
+
+  private final ConcurrentMap<Path, Observation> waiting =
+      new ConcurrentHashMap<Path, Observation>();
+  private final Set<Path> inFlight =
+      Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+  private final AtomicLong sequence = new AtomicLong();
+  private final ThreadPoolExecutor fileWorkers;
+  private final ScheduledExecutorService poller;
+  // files ready to convert in the order they should start, and how many have; guarded by this
+  private final TreeSet<FileTask> ready = new TreeSet<FileTask>();
+  private int running = 0;
+  private boolean stopping = false;
+
+  FileDispatcher() {
+    fileWorkers =
+        new ThreadPoolExecutor(
+            FILE_WORKERS,
+            FILE_WORKERS,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new RecordPipeline.DaemonThreadFactory("puente-file"));
+    poller =
+        Executors.newSingleThreadScheduledExecutor(
+            new RecordPipeline.DaemonThreadFactory("puente-dispatch"));
+    poller.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            checkWaiting();
+          }
+        },
+        POLL_MILLIS,
+        POLL_MILLIS,
+        TimeUnit.MILLISECONDS);
+    Metrics.gauge(
+        "queue.files.waiting",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            return waiting.size();
+          }
+        });
+    Metrics.gauge(
+        "queue.files.ready",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            synchronized (FileDispatcher.this) {
+              return ready.size();
+            }
+          }
+        });
+    Metrics.gauge(
+        "files.inProgress",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            synchronized (FileDispatcher.this) {
+              return running;
+            }
+          }
+        });
+  }
+
+  /** Notes that a file has arrived or changed. It is processed once it looks complete. */
+  void offer(Path path) {
+    String name = path.getFileName().toString();
+    if (name.startsWith(".")) {
+      return;
+    }
+    if (COMPLETION_MARKER != null && name.endsWith(COMPLETION_MARKER)) {
+      Path dataPath =
+          path.resolveSibling(name.substring(0, name.length() - COMPLETION_MARKER.length()));
+      Observation observation = observe(dataPath);
+      observation.markerSeenAt = System.currentTimeMillis();
+      observation.markerSeen = true;
+      return;
+    }
+    if (path.toFile().isDirectory()) {
+      return;
+    }
+    Observation observation = observe(path);
+    // the marker may have come first and been given up on while the file was on its way
+    if (COMPLETION_MARKER != null
+        && !observation.markerSeen
+        && path.resolveSibling(name + COMPLETION_MARKER).toFile().exists()) {
+      observation.markerSeenAt = System.currentTimeMillis();
+      observation.markerSeen = true;
+    }
+  }
+
+  private Observation observe(Path path) {
+    Observation observation = waiting.get(path);
+    if (observation == null) {
+      observation = new Observation();
+      Observation existing = waiting.putIfAbsent(path, observation);
+      if (existing != null) {
+        observation = existing;
+      }
+    }
+    return observation;
+  }
+
+  private void checkWaiting() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<Path, Observation>> it = waiting.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, Observation> entry = it.next();
+      Path path = entry.getKey();
+      Observation observation = entry.getValue();
+      File file = path.toFile();
+      if (!file.exists()) {
+        if (!observation.markerSeen) {
+          it.remove();
+        } else if (now - observation.markerSeenAt >= MARKER_TIMEOUT_MILLIS) {
+          // a marker whose file never came, which would otherwise be kept forever
+          Log.warn("Gave up waiting for " + path + " after its completion marker appeared");
+          it.remove();
+        }
+        continue;
+      }
+      long size = file.length();
+      long modified = file.lastModified();
+      if (size != observation.size || modified != observation.modified) {
+        observation.size = size;
+        observation.modified = modified;
+        observation.changedAt = now;
+        continue;
+      }
+      boolean complete;
+      if (COMPLETION_MARKER != null) {
+        complete = observation.markerSeen;
+      } else {
+        complete = now - observation.changedAt >= QUIET_MILLIS;
+      }
+      if (complete && !inFlight.contains(path)) {
+        it.remove();
+        dispatch(path, size, now);
+      }
+    }
+  }
+
+  private void dispatch(Path path, long size, long readyAt) {
+    if (!inFlight.add(path)) {
+      return;
+    }
+    Tenant tenant = Tenant.forFile(path.toFile());
+    long startAt = tenant.schedule(readyAt, (size * 1000) / COST_BYTES_PER_SECOND);
+    synchronized (this) {
+      ready.add(new FileTask(path, tenant, startAt, sequence.incrementAndGet()));
+      startReady();
+    }
+  }
+
+  /** Starts waiting files in order while workers are free, passing over tenants at their limit. */
+  private synchronized void startReady() {
+    Iterator<FileTask> it = ready.iterator();
+    while (!stopping && running < FILE_WORKERS && it.hasNext()) {
+      FileTask task = it.next();
+      if (task.tenant.tryStart()) {
+        it.remove();
+        running++;
+        fileWorkers.execute(task);
+      }
+    }
+  }
+
+  private synchronized void finished() {
+    running--;
+    startReady();
+  }
+
+  /** Stops watching for complete files and waits for the files already started to finish. */
+  void shutdown() throws InterruptedException {
+    poller.shutdownNow();
+    synchronized (this) {
+      stopping = true;
+    }
+    fileWorkers.shutdown();
+    fileWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  private class FileTask implements Runnable, Comparable<FileTask> {
+    private final Path path;
+    private final Tenant tenant;
+    private final long startAt;
+    private final long seq;
+
+    FileTask(Path path, Tenant tenant, long startAt, long seq) {
+      this.path = path;
+      this.tenant = tenant;
+      this.startAt = startAt;
+      this.seq = seq;
+    }
+
+    @Override
+    public void run() {
+      try {
+        // how long the file sat in the data directory, from its last write until now
+        File file = path.toFile();
+        if (file.exists()) {
+          pickupAge.record(System.currentTimeMillis() - file.lastModified());
+        }
+        FileWatchService.evaluateFile(file);
+        if (COMPLETION_MARKER != null) {
+          path.resolveSibling(path.getFileName() + COMPLETION_MARKER).toFile().delete();
+        }
+      } catch (Exception e) {
+        Log.error("Couldn't process " + path + ": " + e.getMessage(), e);
+      } finally {
+        inFlight.remove(path);
+        tenant.finished();
+        finished();
+      }
+    }
+
+    @Override
+    public int compareTo(FileTask other) {
+      if (startAt != other.startAt) {
+        return startAt < other.startAt ? -1 : 1;
+      }
+      return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+  }
+
+  private static class Observation {
+    private volatile boolean markerSeen = false;
+    private volatile long markerSeenAt = 0;
+    private long size = -1;
+    private long modified = -1;
+    private long changedAt = 0;
+  }
+}
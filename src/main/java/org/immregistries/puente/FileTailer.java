@@ -0,0 +1,505 @@
+package org.immregistries.puente;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Follows CSV files that a sender keeps appending to all day, instead of waiting for them to be
+ * complete. Files in the data directory whose names match the tail.files glob (for example
+ * "pharmacy-*.csv") are read each time they change, up to the end of the last complete record;
+ * anything after that is left for the next read. Each read is converted like a small file of its
+ * own, with its own HL7, ready and error files, so the new records are on their way to the IIS
+ * within seconds.
+ *
+ * <p>How far each file has been read is kept in tail.file, so a restart goes on from there rather
+ * than converting the file again. The outputs are published, then the vaccinations are added to
+ * the duplicate index, then the offset is saved. If Puente stops after the index is updated, the
+ * records are read again and turned away as already sent; if it stops before, they are sent
+ * again.
+ *
+ * <p>Reads of one file are at least tail.minIntervalMillis apart, so a busy feed is sent in
+ * batches rather than a record at a time. The files are also checked every tail.pollMillis in
+ * case a change wasn't reported. A file that gets shorter than the offset reached is taken to have
+ * been replaced and is read from the start. A file that hasn't grown for tail.archiveAfterMillis
+ * is taken to be finished: a last record without a line break is read up to the end of the file,
+ * and then the file is archived.
+ *
+ * <p>A file whose header is missing a required column is rejected: the error is logged once, and
+ * the file is passed over while it grows, since appending can't add a column. It is read again
+ * once its header changes or it gets shorter, and is archived unread when it goes idle. The
+ * rejection isn't saved, so a restart with a column mapping that fixes it reads the file.
+ */
+class FileTailer {
+  private static final long MIN_INTERVAL_MILLIS =
+      Math.max(1000, Settings.getLong("tail.minIntervalMillis", 1000));
+  private static final long POLL_MILLIS = Settings.getLong("tail.pollMillis", 5000);
+  private static final long ARCHIVE_AFTER_MILLIS =
+      Settings.getLong("tail.archiveAfterMillis", 12L * 60 * 60 * 1000);
+  private static final int MAX_READ_BYTES =
+      Settings.getInt("tail.maxReadBytes", 64 * 1024 * 1024);
+
+  private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withTrim();
+
+  private static final Metrics.Counter tailReads = Metrics.counter("tail.reads");
+  private static final Metrics.Meter tailRecords = Metrics.meter("tail.records");
+
+  private final File dataDir;
+  private final File positionsFile;
+  private final PathMatcher matcher;
+  private final Map<String, Position> positions = new ConcurrentHashMap<String, Position>();
+  private final Set<String> scheduled =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final ScheduledExecutorService executor;
+
+  private FileTailer(File dataDir, File positionsFile, String pattern) throws IOException {
+    this.dataDir = dataDir;
+    this.positionsFile = positionsFile;
+    this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+    load();
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new RecordPipeline.DaemonThreadFactory("puente-tail"));
+    executor.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            checkPositions();
+          }
+        },
+        POLL_MILLIS,
+        POLL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Starts tailing the files named by tail.files, or returns null if it isn't set. */
+  static FileTailer fromSettings(File dataDir) throws IOException {
+    String pattern = Settings.get("tail.files", null);
+    if (pattern == null) {
+      return null;
+    }
+    Charset charset = Charset.defaultCharset();
+    if (!CsvBoundaryScanner.supports(charset)) {
+      Log.warn("Can't tail files in " + charset + ", tail.files is ignored");
+      return null;
+    }
+    File positionsFile = new File(Settings.get("tail.file", "puente.tail"));
+    Log.info("Tailing files matching " + pattern);
+    return new FileTailer(dataDir, positionsFile, pattern);
+  }
+
+  /** Whether the file is one this tailer follows. */
+  boolean matches(Path path) {
+    return matcher.matches(path.getFileName()) && !path.toFile().isDirectory();
+  }
+
+  /** Notes that a tailed file has appeared or grown. It is read once enough time has passed. */
+  void offer(Path path) {
+    final String name = path.getFileName().toString();
+    if (!scheduled.add(name)) {
+      return;
+    }
+    Position position = positions.get(name);
+    long delay =
+        position == null
+            ? 0
+            : Math.max(0, position.readAt + MIN_INTERVAL_MILLIS - System.currentTimeMillis());
+    executor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            scheduled.remove(name);
+            read(name);
+          }
+        },
+        delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops reading, letting a read that has started finish. */
+  void shutdown() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  private void checkPositions() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Map.Entry<String, Position>> it = positions.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, Position> entry = it.next();
+      File file = new File(dataDir, entry.getKey());
+      Position position = entry.getValue();
+      // a rejected file is only looked at again once it has changed size
+      long seen = position.rejectedHeader != null ? position.checkedSize : position.offset;
+      if (!file.exists()) {
+        it.remove();
+        savePositions();
+      } else if (file.length() != seen) {
+        offer(file.toPath());
+      } else if (isIdle(file, now)) {
+        archive(file, position);
+      }
+    }
+  }
+
+  /**
+   * Whether the file hasn't changed for tail.archiveAfterMillis. The sender is taken to be done
+   * with it, so a last record without a line break is complete.
+   */
+  private static boolean isIdle(File file, long now) {
+    return ARCHIVE_AFTER_MILLIS > 0 && now - file.lastModified() >= ARCHIVE_AFTER_MILLIS;
+  }
+
+  private void read(String name) {
+    File file = new File(dataDir, name);
+    if (!file.exists()) {
+      return;
+    }
+    Position position = positions.get(name);
+    if (position == null) {
+      position = new Position();
+      positions.put(name, position);
+    }
+    position.readAt = System.currentTimeMillis();
+    try {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        long size = channel.size();
+        if (size < position.offset) {
+          Log.info(name + " is shorter than before, reading it from the start");
+          position.reset();
+        }
+        if (position.rejectedHeader != null) {
+          if (Arrays.equals(position.rejectedHeader, readBytes(channel, 0, position.headerEnd))) {
+            position.checkedSize = size;
+            return;
+          }
+          Log.info(name + " has a new header, reading it from the start");
+          position.reset();
+        }
+        boolean idle = isIdle(file, position.readAt);
+        if (position.headerEnd == 0 && !readHeader(channel, size, idle, position)) {
+          return;
+        }
+        List<String> headers = parseHeaders(readBytes(channel, 0, position.headerEnd));
+        long start = Math.max(position.offset, position.headerEnd);
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner(channel, start);
+        long limit = Math.min(size, start + MAX_READ_BYTES);
+        long end = scanner.last(limit);
+        if (idle && limit == size) {
+          end = size;
+        } else if (end == start && limit < size) {
+          // a record longer than tail.maxReadBytes
+          long next = scanner.next(limit, size);
+          end = next < 0 ? start : next;
+        }
+        if (end <= start) {
+          return;
+        }
+        if (!isComplete(file, headers)) {
+          // passed over until the header changes
+          position.rejectedHeader = readBytes(channel, 0, position.headerEnd);
+          position.checkedSize = size;
+          return;
+        }
+        convert(file, headers, readBytes(channel, start, end), position);
+        position.offset = end;
+        savePositions();
+        if (limit < size) {
+          // there is more than one read's worth waiting
+          offer(file.toPath());
+        }
+      } finally {
+        channel.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      Log.error("Couldn't read " + name + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Finds the end of the header row, returning false if it hasn't all been written yet. In an idle
+   * file the end of the file also ends the header.
+   */
+  private boolean readHeader(FileChannel channel, long size, boolean idle, Position position)
+      throws IOException {
+    CsvBoundaryScanner scanner = new CsvBoundaryScanner(channel, 0);
+    long headerEnd = 0;
+    // blank lines before the header are skipped, as CSVParser does
+    while (headerEnd < size) {
+      headerEnd = scanner.next(headerEnd + 1, size);
+      if (headerEnd < 0) {
+        if (!idle) {
+          return false;
+        }
+        headerEnd = size;
+      }
+      if (!parseHeaders(readBytes(channel, 0, headerEnd)).isEmpty()) {
+        position.headerEnd = headerEnd;
+        position.offset = headerEnd;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<String> parseHeaders(byte[] bytes) throws IOException {
+    CSVParser parser = FORMAT.withFirstRecordAsHeader().parse(decode(bytes));
+    try {
+      return parser.getHeaderNames();
+    } finally {
+      parser.close();
+    }
+  }
+
+  /** Whether the header has every required column, logging the ones it's missing. */
+  private static boolean isComplete(File file, List<String> headers) {
+    ColumnMapping columns = ColumnMapping.forFile(file.getName(), headers);
+    boolean complete = true;
+    for (Column required : RecordConverter.REQUIRED_COLUMNS) {
+      if (!columns.isMapped(required)) {
+        Log.error(file.getName() + " is missing required column: " + required.header);
+        complete = false;
+      }
+    }
+    return complete;
+  }
+
+  /** Converts the records appended since the last read and publishes the outputs. */
+  private void convert(File file, List<String> headers, byte[] bytes, Position position)
+      throws IOException {
+    ColumnMapping columns = ColumnMapping.forFile(file.getName(), headers);
+    tailReads.increment();
+    OutputSession session =
+        new OutputSession(
+            FileWatchService.baseDir(file),
+            FileWatchService.inputName(file),
+            headers,
+            OutputSession.timestamp());
+    DuplicateIndex duplicates = FileWatchService.duplicates;
+    DuplicateIndex.Batch batch = duplicates == null ? null : duplicates.newBatch();
+    FileWatchService.SessionSink sink =
+        new FileWatchService.SessionSink(session, null, columns, batch);
+    CSVParser parser = FORMAT.parse(decode(bytes));
+    PatientGrouper grouper = PatientGrouper.ENABLED ? new PatientGrouper(columns) : null;
+    try {
+      RecordPipeline pipeline = new RecordPipeline(new RecordConverter(columns), sink);
+      Iterator<Row> rows =
+          Tenant.forFile(file).throttle(new NumberedRows(parser.iterator(), position.records));
+      if (grouper != null) {
+        pipeline.runPatients(grouper.groups(grouper.sort(rows)));
+      } else {
+        pipeline.run(rows);
+      }
+      // published before the duplicate index is updated, so a failed publish leaves the records
+      // to be read and sent again rather than turned away as already sent
+      session.commit();
+      if (batch != null) {
+        duplicates.commit(batch);
+      }
+    } finally {
+      if (batch != null) {
+        // gives up the reservations if the read failed
+        batch.close();
+      }
+      parser.close();
+      session.close();
+      if (grouper != null) {
+        grouper.close();
+      }
+    }
+    position.records += sink.countTotal;
+    tailRecords.mark(sink.countTotal);
+    Log.info(
+        "Read "
+            + sink.countTotal
+            + " new record(s) from "
+            + file.getName()
+            + ": "
+            + sink.countMessages
+            + " HL7 message(s), "
+            + sink.countError
+            + " error(s)");
+  }
+
+  private void archive(File file, Position position) {
+    try {
+      Files.move(
+          file.toPath(),
+          FileWatchService.archiveFile(file, OutputSession.timestamp()).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      if (position.rejectedHeader != null) {
+        Log.info(file.getName() + " hasn't changed for a while, archived without being read");
+      } else {
+        Log.info(file.getName() + " hasn't changed for a while, archived");
+      }
+    } catch (IOException e) {
+      Log.error("Couldn't archive " + file.getName() + ": " + e.getMessage());
+      return;
+    }
+    positions.remove(file.getName());
+    savePositions();
+  }
+
+  private static byte[] readBytes(FileChannel channel, long start, long end) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, start + buffer.position()) < 0) {
+        throw new IOException("File got shorter while it was being read");
+      }
+    }
+    return buffer.array();
+  }
+
+  private static Reader decode(byte[] bytes) {
+    return new InputStreamReader(new ByteArrayInputStream(bytes), FileWatchService.newDecoder());
+  }
+
+  private void load() throws IOException {
+    if (!positionsFile.exists()) {
+      return;
+    }
+    String text = new String(Files.readAllBytes(positionsFile.toPath()), StandardCharsets.UTF_8);
+    for (String line : text.split("\n")) {
+      String[] fields = line.split("\t");
+      if (fields.length != 4 || !new File(dataDir, fields[0]).exists()) {
+        continue;
+      }
+      try {
+        Position position = new Position();
+        position.offset = Long.parseLong(fields[1]);
+        position.headerEnd = Long.parseLong(fields[2]);
+        position.records = Long.parseLong(fields[3]);
+        positions.put(fields[0], position);
+      } catch (NumberFormatException e) {
+        Log.warn("Ignoring bad line in " + positionsFile + ": " + line);
+      }
+    }
+  }
+
+  /** Rewrites the positions file, replacing the old one in a single rename. */
+  private void savePositions() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Position> entry : positions.entrySet()) {
+      Position position = entry.getValue();
+      if (position.headerEnd > 0) {
+        text.append(entry.getKey())
+            .append('\t')
+            .append(position.offset)
+            .append('\t')
+            .append(position.headerEnd)
+            .append('\t')
+            .append(position.records)
+            .append('\n');
+      }
+    }
+    File directory = positionsFile.getAbsoluteFile().getParentFile();
+    File part = new File(directory, "." + positionsFile.getName() + ".part");
+    try {
+      FileChannel out =
+          FileChannel.open(
+              part.toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+        out.force(true);
+      } finally {
+        out.close();
+      }
+      try {
+        Files.move(
+            part.toPath(),
+            positionsFile.toPath(),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(part.toPath(), positionsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      Log.error("Couldn't save " + positionsFile + ": " + e.getMessage());
+    }
+  }
+
+  /** Numbers the appended records on from the ones converted by earlier reads. */
+  private static class NumberedRows implements Iterator<Row> {
+    private final Iterator<CSVRecord> records;
+    private long number;
+
+    NumberedRows(Iterator<CSVRecord> records, long previous) {
+      this.records = records;
+      this.number = previous;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return records.hasNext();
+    }
+
+    @Override
+    public Row next() {
+      CSVRecord record = records.next();
+      String[] values = new String[record.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = record.get(i);
+      }
+      number++;
+      return Row.of(number, values);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** How far one file has been read. Only the tail thread changes it. */
+  private static class Position {
+    // bytes read, always the end of a record
+    private long offset = 0;
+    private long headerEnd = 0;
+    private long records = 0;
+    private volatile long readAt = 0;
+    // the header of a file missing a required column, and the size it was last looked at
+    private volatile byte[] rejectedHeader = null;
+    private volatile long checkedSize = 0;
+
+    /** Goes back to the start of a file that has been replaced. */
+    void reset() {
+      offset = 0;
+      headerEnd = 0;
+      records = 0;
+      rejectedHeader = null;
+    }
+  }
+}
@@ -1,124 +1,122 @@
 package org.immregistries.puente;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.lang3.RandomStringUtils;
-import org.apache.commons.text.StringSubstitutor;
-import org.immregistries.mqe.hl7util.SeverityLevel;
-import org.immregistries.mqe.validator.detection.ValidationReport;
-import org.immregistries.mqe.validator.engine.MessageValidator;
-import org.immregistries.mqe.validator.engine.ValidationRuleResult;
-import org.immregistries.mqe.vxu.MqeAddress;
-import org.immregistries.mqe.vxu.MqeMessageHeader;
-import org.immregistries.mqe.vxu.MqeMessageReceived;
-import org.immregistries.mqe.vxu.MqePatient;
-import org.immregistries.mqe.vxu.MqeVaccination;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileWatchService {
-  private static final String PARAM_RECIPIENT_RACE_6 = "Recipient race 6";
-  private static final String PARAM_RECIPIENT_RACE_5 = "Recipient race 5";
-  private static final String PARAM_RECIPIENT_RACE_4 = "Recipient race 4";
-  private static final String PARAM_RECIPIENT_RACE_3 = "Recipient race 3";
-  private static final String PARAM_RECIPIENT_RACE_2 = "Recipient race 2";
-  private static final String PARAM_RECIPIENT_ETHNICITY = "Recipient ethnicity";
-  private static final String PARAM_RECIPIENT_RACE_1 = "Recipient race 1";
-  private static final String PARAM_ADMINISTERED_AT_LOCATION = "Administered at location";
-  private static final String PARAM_RESPONSIBLE_ORGANIZATION = "Responsible organization";
-  private static final String PARAM_VACCINE_ROUTE_OF_ADMINISTRATION =
-      "Vaccine route of administration";
-  private static final String PARAM_VACCINE_ADMINISTERING_SITE = "Vaccine administering site";
-  private static final String PARAM_VACCINE_EXPIRATION_DATE = "Vaccine expiration date";
-  private static final String PARAM_LOT_NUMBER = "Lot number";
-  private static final String PARAM_MVX2 = "MVX";
-  private static final String PARAM_NDC2 = "NDC";
-  private static final String PARAM_CVX2 = "CVX";
-  private static final String PARAM_ADMINISTRATION_DATE = "Administration date";
-  private static final String PARAM_RECIPIENT_ADDRESS_ZIP_CODE = "Recipient address: zip code";
-  private static final String PARAM_RECIPIENT_ADDRESS_STATE = "Recipient address: state";
-  private static final String PARAM_RECIPIENT_ADDRESS_COUNTY = "Recipient address: county";
-  private static final String PARAM_RECIPIENT_ADDRESS_CITY = "Recipient address: city";
-  private static final String PARAM_RECIPIENT_ADDRESS_STREET_2 = "Recipient address: street 2";
-  private static final String PARAM_RECIPIENT_ADDRESS_STREET = "Recipient address: street";
-  private static final String PARAM_RECIPIENT_SEX = "Recipient sex";
-  private static final String PARAM_RECIPIENT_DATE_OF_BIRTH = "Recipient date of birth";
-  private static final String PARAM_RECIPIENT_NAME_LAST = "Recipient name: last";
-  private static final String PARAM_RECIPIENT_NAME_MIDDLE = "Recipient name: middle";
-  private static final String PARAM_RECIPIENT_NAME_FIRST = "Recipient name: first";
-  private static final String PARAM_RECIPIENT_ID = "Recipient ID";
-  private static final String PARAM_VACCINATION_EVENT_ID = "Vaccination event ID";
-  private static final String PARAM_VACCINATION_REFUSAL = "Vaccination refusal";
-
-  private static final String[] REQUIRED_HEADERS = {
-    PARAM_RECIPIENT_ID,
-    PARAM_RECIPIENT_NAME_FIRST,
-    PARAM_RECIPIENT_NAME_LAST,
-    PARAM_RECIPIENT_DATE_OF_BIRTH,
-    PARAM_RECIPIENT_SEX,
-    PARAM_ADMINISTRATION_DATE
-  };
-
-  private static final String[] ACCEPTABLE_REFUSAL_CODES = {"", "YES", "NO", "Y", "N"};
-
+  private final Path dataDir;
   private final WatchService watcher;
   private final Map<WatchKey, Path> keys;
-  private static MessageValidator validator = MessageValidator.INSTANCE;
-  private static SimpleDateFormat formatterBasic = new SimpleDateFormat("yyyyMMdd");
-  private static SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmssZ");
-
-  private static final String DIR_DATA = "data";
-  private static final String DIR_DATA_ERROR = "error";
-  private static final String DIR_DATA_READY = "ready";
-  private static final String DIR_REQUEST = "request";
-
-  private static final String vxuTemplate =
-      "MSH|^~\\&|||||${messageHeaderDate}||VXU^V04^VXU_V04|J69O9.9l|P|2.5.1|||ER|AL|||||Z22^CDCPHINVS|\n"
-          + "PID|1||${recipientId}^^^AIRA-TEST^MR||${lastName}^${firstName}^${middleName}^^^^L||${birthDate}|${sex}||${pid10}|${street}^${street2}^${city}^${state}^${zipCode}^USA^P||^PRN^PH^^^734^9473420|||||||||${ethnicity}|\n"
-          + "PD1|||||||||||02^Reminder/Recall - any method^HL70215|||||A|20201214|20201214|\n"
-          + "ORC|RE||${vaccinationEventId}^AIRA|\n"
-          + "RXA|0|1|${administrationDate}||${administeredCode}|999|||01^Historical^NIP001||||||${lotNumber}||${mvx}|||CP|A|\n";
-
-  private static final String vxuRefusalTemplate =
-      "MSH|^~\\&|||||${messageHeaderDate}||VXU^V04^VXU_V04|J69O9.9l|P|2.5.1|||ER|AL|||||Z22^CDCPHINVS|\n"
-          + "PID|1||${recipientId}^^^AIRA-TEST^MR||${lastName}^${firstName}^${middleName}^^^^L||${birthDate}|${sex}||${pid10}|${street}^${street2}^${city}^${state}^${zipCode}^USA^P||^PRN^PH^^^734^9473420|||||||||${ethnicity}|\n"
-          + "PD1|||||||||||02^Reminder/Recall - any method^HL70215|||||A|20201214|20201214|\n"
-          + "ORC|RE||${vaccinationEventId}^AIRA|\n"
-          + "RXA|0|1|${administrationDate}||${administeredCode}|999|||||||||${lotNumber}||${mvx}|00^Parental decision^NIP002||RE|A|\n";
+  private final FileDispatcher dispatcher;
+  private final FileTailer tailer;
+  private final ScheduledExecutorService scanner;
+  private final AtomicBoolean scanPending = new AtomicBoolean();
+  private static final int READ_BUFFER_SIZE = 1024 * 1024;
+  private static final long SCAN_MILLIS = Settings.getLong("watch.scanMillis", 60000);
+  static CheckpointJournal journal;
+  static DuplicateIndex duplicates;
+  static ProcessedIndex processed;
+
+  static final String DIR_DATA = "data";
+  static final String DIR_DATA_ERROR = "error";
+  static final String DIR_DATA_READY = "ready";
+  static final String DIR_DATA_ARCHIVE = "archive";
+  static final String DIR_REQUEST = "request";
+
+  private static final Metrics.Histogram fileTime = Metrics.histogram("file.convert.millis");
+  private static final Metrics.Counter filesConverted = Metrics.counter("files.converted");
+  private static final Metrics.Counter overflows = Metrics.counter("watch.overflows");
+  private static final Metrics.Counter alreadyConverted = Metrics.counter("files.alreadyConverted");
 
   FileWatchService(Path dir) throws IOException {
+    this.dataDir = dir.toAbsolutePath().normalize();
     this.watcher = FileSystems.getDefault().newWatchService();
-    this.keys = new HashMap<WatchKey, Path>();
+    // the scanner registers sender directories too, so the keys are shared with it
+    this.keys = new ConcurrentHashMap<WatchKey, Path>();
+    this.dispatcher = new FileDispatcher();
+    this.tailer = FileTailer.fromSettings(dir.toFile());
+    this.scanner =
+        Executors.newSingleThreadScheduledExecutor(
+            new RecordPipeline.DaemonThreadFactory("puente-scan"));
+
+    registerDirectory(dataDir);
+    DirectoryStream<Path> entries = Files.newDirectoryStream(dataDir);
+    try {
+      for (Path entry : entries) {
+        if (isSenderDirectory(entry)) {
+          registerDirectory(entry);
+        }
+      }
+    } finally {
+      entries.close();
+    }
+    if (SCAN_MILLIS > 0) {
+      scanner.scheduleWithFixedDelay(
+          new Runnable() {
+            @Override
+            public void run() {
+              scan();
+            }
+          },
+          SCAN_MILLIS,
+          SCAN_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
 
-    registerDirectory(dir);
+  /**
+   * Whether the path is a sender's own directory in data, as opposed to a file or one of the
+   * directories that outputs go to.
+   */
+  private boolean isSenderDirectory(Path path) {
+    String name = path.getFileName().toString();
+    return dataDir.equals(path.toAbsolutePath().normalize().getParent())
+        && Files.isDirectory(path)
+        && !name.startsWith(".")
+        && !name.equals(DIR_DATA)
+        && !name.equals(DIR_DATA_READY)
+        && !name.equals(DIR_DATA_ERROR)
+        && !name.equals(DIR_DATA_ARCHIVE);
   }
 
   private void registerDirectory(Path dir) throws IOException {
-    WatchKey key = dir.register(watcher, ENTRY_CREATE);
+    // changes to files are only of interest when some are being tailed
+    WatchKey key =
+        tailer == null
+            ? dir.register(watcher, ENTRY_CREATE)
+            : dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
     keys.put(key, dir);
   }
 
@@ -140,15 +138,29 @@ public class FileWatchService {
         @SuppressWarnings("rawtypes")
         WatchEvent.Kind kind = event.kind();
 
+        if (kind == OVERFLOW) {
+          // events were dropped, so which files arrived is only known by looking
+          Log.warn("Missed file events in " + dir + ", scanning for new files");
+          overflows.increment();
+          requestScan();
+          continue;
+        }
+
         @SuppressWarnings("unchecked")
         Path name = ((WatchEvent<Path>) event).context();
         Path child = dir.resolve(name);
 
-        System.out.format("%s: %s\n", event.kind().name(), child);
-        evaluateFile(child.toFile());
+        if (kind == ENTRY_MODIFY) {
+          Log.debug(event.kind().name() + ": " + child);
+        } else {
+          Log.info(event.kind().name() + ": " + child);
+        }
+        if (kind == ENTRY_CREATE && isSenderDirectory(child)) {
+          registerDirectory(child);
+        }
+        offer(child);
       }
 
-      boolean valid = key.reset();
       if (!key.reset()) {
         keys.remove(key);
 
@@ -160,388 +172,461 @@ public class FileWatchService {
     }
   }
 
+  /** Scans the directories soon, on the scanner thread, unless a scan is already waiting. */
+  private void requestScan() {
+    if (scanPending.compareAndSet(false, true)) {
+      scanner.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              scanPending.set(false);
+              scan();
+            }
+          });
+    }
+  }
+
+  /**
+   * Offers every file in data and the sender directories, registering any sender directory that
+   * isn't watched yet. Watch events can be lost, so this runs every watch.scanMillis as well as
+   * at startup and after an overflow. Offering a file that is already waiting or has already been
+   * converted does nothing.
+   */
+  void scan() {
+    try {
+      DirectoryStream<Path> entries = Files.newDirectoryStream(dataDir);
+      try {
+        for (Path entry : entries) {
+          if (isSenderDirectory(entry) && !keys.containsValue(entry)) {
+            Log.info("Watching " + entry);
+            registerDirectory(entry);
+          }
+          offer(entry);
+        }
+      } finally {
+        entries.close();
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      Log.error("Couldn't scan " + dataDir + " for new files: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Hands a new or changed file to the tailer if it follows that file, or else the dispatcher. The
+   * files already in a sender's directory are offered when the directory is.
+   */
+  private void offer(Path path) {
+    if (isSenderDirectory(path)) {
+      try {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(path);
+        try {
+          for (Path entry : entries) {
+            offer(entry);
+          }
+        } finally {
+          entries.close();
+        }
+      } catch (IOException | DirectoryIteratorException e) {
+        Log.error("Couldn't list the files in " + path + ": " + e.getMessage());
+      }
+    } else if (tailer != null
+        && dataDir.equals(path.toAbsolutePath().normalize().getParent())
+        && tailer.matches(path)) {
+      tailer.offer(path);
+    } else {
+      dispatcher.offer(path);
+    }
+  }
+
   static void evaluateFile(File file) throws IOException {
     if (file.isDirectory()) {
       return;
     }
-    System.out.println("Reading " + file.getName());
-    File errorFile = null;
-    File readyFile = null;
-    File hl7File = null;
-    Iterable<CSVRecord> records = new ArrayList<CSVRecord>();
+    CheckpointJournal.Checkpoint checkpoint = journal.pending(file);
+    if (checkpoint != null && CheckpointJournal.COMMIT.equals(checkpoint.stage)) {
+      // the outputs were complete, only the renames and archiving were left
+      Log.info("Finishing " + file.getName());
+      new OutputSession(baseDir(file), inputName(file), null, checkpoint.dateStr)
+          .publishRemaining(checkpoint.hl7FileCount);
+      if (duplicates != null) {
+        DuplicateIndex.Batch batch =
+            duplicates.newBatch(sentLog(file, checkpoint.dateStr), checkpoint.countOkay);
+        try {
+          duplicates.commit(batch);
+        } finally {
+          batch.close();
+        }
+      }
+      if (processed != null) {
+        processed.recordConverted(file, null);
+      }
+      archive(file, checkpoint);
+      return;
+    }
+    String state = checkpoint == null && processed != null ? processed.state(file) : null;
+    if (ProcessedIndex.REJECTED.equals(state)) {
+      // turned away already, and left for the sender to fix
+      return;
+    }
+    if (ProcessedIndex.CONVERTED.equals(state)) {
+      // left behind by an archive that failed, or sent again unchanged
+      Log.info("Already converted " + inputName(file) + ", archiving it");
+      alreadyConverted.increment();
+      Files.move(
+          file.toPath(),
+          archiveFile(file, OutputSession.timestamp()).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      return;
+    }
+    if (checkpoint != null && CheckpointJournal.CHECKPOINT.equals(checkpoint.stage)) {
+      Log.info("Resuming " + file.getName() + " after record " + checkpoint.records);
+    } else {
+      Log.info("Reading " + file.getName());
+    }
     List<String> headers = new ArrayList<String>();
-    FileReader fileReader = new FileReader(file);
+    long fileSize = file.length();
+    long startTime = System.nanoTime();
+    RowReader reader = null;
+    OutputSession session = null;
+    DuplicateIndex.Batch batch = null;
+    PatientGrouper grouper = null;
     try {
       try {
-        records = CSVFormat.DEFAULT.withFirstRecordAsHeader().withTrim().parse(fileReader);
-        BufferedReader br = new BufferedReader(new FileReader(file));
-        CSVParser parser =
-            CSVParser.parse(br, CSVFormat.DEFAULT.withFirstRecordAsHeader().withTrim());
-        headers = parser.getHeaderNames();
-        parser.close();
+        reader = RowReader.open(file);
+        headers = reader.headers();
       } catch (Exception e) {
-        System.out.println("Couldn't parse file.");
-        e.printStackTrace();
+        Log.error("Couldn't parse " + file.getName(), e);
       }
 
-      boolean okayToRead = true;
-      for (String requiredHeader : REQUIRED_HEADERS) {
-        if (!headers.contains(requiredHeader)) {
-          System.err.println("  + Missing required column: " + requiredHeader);
+      ColumnMapping columns = ColumnMapping.forFile(file.getName(), headers);
+      if (columns.profileName() != null) {
+        Log.info("  + Using column mapping " + columns.profileName());
+      }
+      boolean okayToRead = reader != null;
+      for (Column required : RecordConverter.REQUIRED_COLUMNS) {
+        if (!columns.isMapped(required)) {
+          Log.error("  + Missing required column: " + required.header);
           okayToRead = false;
         }
       }
 
       if (!okayToRead) {
+        // not tried again until the file is changed
+        if (processed != null) {
+          processed.recordRejected(file);
+        }
         return;
       }
 
-      int countTotal = 0;
-      int countError = 0;
-      int countOkay = 0;
-
-      for (CSVRecord record : records) {
-        countTotal++;
-
-        String refusal = defaultedGet(record, PARAM_VACCINATION_REFUSAL);
-        if (!Arrays.asList(ACCEPTABLE_REFUSAL_CODES).contains(refusal.toUpperCase())) {
-          errorFile =
-              writeErrorFile(
-                  "Unrecognized refusal code", record, file.getName(), errorFile, headers);
-          countError++;
-          continue;
-        }
-
-        String vaccinationEventId = defaultedGet(record, PARAM_VACCINATION_EVENT_ID);
-        String recipientId = defaultedGet(record, PARAM_RECIPIENT_ID);
-        String firstName = defaultedGet(record, PARAM_RECIPIENT_NAME_FIRST);
-        String middleName = defaultedGet(record, PARAM_RECIPIENT_NAME_MIDDLE);
-        String lastName = defaultedGet(record, PARAM_RECIPIENT_NAME_LAST);
-        String birthDateString = defaultedGet(record, PARAM_RECIPIENT_DATE_OF_BIRTH);
-        Date birthDate = null;
-        if (!"".equals(birthDateString)) {
+      if (checkpoint != null) {
+        session = new OutputSession(baseDir(file), inputName(file), headers, checkpoint.dateStr);
+        if (CheckpointJournal.CHECKPOINT.equals(checkpoint.stage)) {
           try {
-            birthDate = formatterBasic.parse(birthDateString);
-          } catch (Exception e) {
-            System.out.println("Couldn't parse birth date");
+            session.resume(checkpoint);
+          } catch (IOException e) {
+            Log.warn("  + Couldn't resume, starting over: " + e.getMessage());
+            session.close();
+            session.discardRemaining(checkpoint.hl7FileCount);
+            Files.deleteIfExists(sentLog(file, checkpoint.dateStr).toPath());
+            session = null;
+            checkpoint = null;
           }
         }
-        String sex = defaultedGet(record, PARAM_RECIPIENT_SEX);
-        String street = defaultedGet(record, PARAM_RECIPIENT_ADDRESS_STREET);
-        String street2 = defaultedGet(record, PARAM_RECIPIENT_ADDRESS_STREET_2);
-        String city = defaultedGet(record, PARAM_RECIPIENT_ADDRESS_CITY);
-        String county = defaultedGet(record, PARAM_RECIPIENT_ADDRESS_COUNTY);
-        String state = defaultedGet(record, PARAM_RECIPIENT_ADDRESS_STATE);
-        String zipCode = defaultedGet(record, PARAM_RECIPIENT_ADDRESS_ZIP_CODE);
-        String adminDateString = defaultedGet(record, PARAM_ADMINISTRATION_DATE);
-        Date adminDate = null;
-        if (!"".equals(adminDateString)) {
-          try {
-            adminDate = formatterBasic.parse(adminDateString);
-          } catch (Exception e) {
-            System.out.println("Couldn't parse administration date");
-          }
-        }
-        String cvx = defaultedGet(record, PARAM_CVX2);
-        String ndc = defaultedGet(record, PARAM_NDC2);
-        String mvx = defaultedGet(record, PARAM_MVX2);
-        String lotNumber = defaultedGet(record, PARAM_LOT_NUMBER);
-        String vaccineExpDate = defaultedGet(record, PARAM_VACCINE_EXPIRATION_DATE);
-        String vaccineAdmSite = defaultedGet(record, PARAM_VACCINE_ADMINISTERING_SITE);
-        String vaccineRoute = defaultedGet(record, PARAM_VACCINE_ROUTE_OF_ADMINISTRATION);
-        String responsibleOrg = defaultedGet(record, PARAM_RESPONSIBLE_ORGANIZATION);
-        String admAtLoc = defaultedGet(record, PARAM_ADMINISTERED_AT_LOCATION);
-        String race1 = defaultedGet(record, PARAM_RECIPIENT_RACE_1);
-        String ethnicity = defaultedGet(record, PARAM_RECIPIENT_ETHNICITY);
-
-        ArrayList<String> races = new ArrayList<>();
-        races.add(defaultedGet(record, PARAM_RECIPIENT_RACE_1));
-        races.add(defaultedGet(record, PARAM_RECIPIENT_RACE_2));
-        races.add(defaultedGet(record, PARAM_RECIPIENT_RACE_3));
-        races.add(defaultedGet(record, PARAM_RECIPIENT_RACE_4));
-        races.add(defaultedGet(record, PARAM_RECIPIENT_RACE_5));
-        races.add(defaultedGet(record, PARAM_RECIPIENT_RACE_6));
-
-        String pid10 = "";
-        for (String race : races) {
-          if (!"".equals(race)) {
-            if (!"".equals(pid10)) {
-              pid10 += "^";
-            }
-            pid10 += race + "^^CDCREC";
-          }
-        }
-
-        MqeMessageReceived mmr = new MqeMessageReceived();
-        MqeMessageHeader header = mmr.getMessageHeader();
-        MqePatient patient = mmr.getPatient();
-        MqeAddress address = patient.getPatientAddress();
-        List<MqeVaccination> vaccinations = mmr.getVaccinations();
-        MqeVaccination vaccination = new MqeVaccination();
-
-        Date date = new Date(System.currentTimeMillis());
-        header.setMessageDateString(formatter.format(date));
-        header.setMessageDate(date);
-
-        vaccination.setAdminDateString(adminDateString);
-        vaccination.setAdminDate(adminDate);
-        vaccination.setAdminCvxCode(cvx);
-        vaccination.setAdminNdcCode(ndc);
-        vaccination.setManufacturerCode(mvx);
-        vaccination.setLotNumber(lotNumber);
-        vaccination.setExpirationDateString(vaccineExpDate);
-        vaccination.setBodySiteCode(vaccineAdmSite);
-        vaccination.setBodyRouteCode(vaccineRoute);
-        vaccination.setActionCode("A");
-        vaccination.setLotNumber(lotNumber);
-        vaccinations.add(vaccination);
-
-        address.setStreet(street);
-        address.setStreet2(street2);
-        address.setCity(city);
-        address.setStateCode(state);
-        address.setZip(zipCode);
-
-        patient.setNameFirst(firstName);
-        patient.setNameMiddle(middleName);
-        patient.setNameLast(lastName);
-        patient.setBirthDateString(birthDateString);
-        patient.setBirthDate(birthDate);
-        patient.setSexCode(sex);
-        patient.setIdSubmitterNumber(recipientId);
-        patient.setRace(race1);
-        patient.setEthnicity(ethnicity);
-
-        List<ValidationRuleResult> list = validator.validateMessage(mmr);
-        String errorStr = reportResults(list);
-        if (errorStr != null) {
-          errorFile = writeErrorFile(errorStr, record, file.getName(), errorFile, headers);
-          countError++;
-        } else {
-          countOkay++;
-          Map<String, String> valuesMap = new HashMap<>();
-          valuesMap.put("messageHeaderDate", header.getMessageDateString());
-          valuesMap.put("recipientId", recipientId);
-          valuesMap.put("lastName", lastName);
-          valuesMap.put("firstName", firstName);
-          valuesMap.put("middleName", middleName);
-          valuesMap.put("birthDate", birthDateString);
-          valuesMap.put("sex", sex);
-          valuesMap.put("street", street);
-          valuesMap.put("street2", street2);
-          valuesMap.put("city", city);
-          valuesMap.put("state", state);
-          valuesMap.put("zipCode", zipCode);
-          valuesMap.put("administrationDate", adminDateString);
-          valuesMap.put("pid10", pid10);
-          valuesMap.put("lotNumber", lotNumber);
-          if (!"".equals(ethnicity)) {
-            ethnicity += "^^CDCREC";
-          }
-          valuesMap.put("ethnicity", ethnicity);
-
-          if ("".equals(vaccinationEventId)) {
-            vaccinationEventId = RandomStringUtils.randomAlphanumeric(10);
-          }
-          valuesMap.put("vaccinationEventId", vaccinationEventId);
-
-          if (!"".equals(mvx)) {
-            mvx += "^^MVX";
-          }
-          valuesMap.put("mvx", mvx);
-
-          String administeredCode = "";
-          if (!"".equals(cvx)) {
-            administeredCode = cvx + "^^CVX";
-          } else if (!"".equals(ndc)) {
-            administeredCode = ndc + "^^NDC";
-          }
-          valuesMap.put("administeredCode", administeredCode);
-          StringSubstitutor sub = new StringSubstitutor(valuesMap);
-
-          String resolvedString = "";
-          if (vaccineRefused(refusal.toUpperCase())) {
-            resolvedString = sub.replace(vxuRefusalTemplate);
-          } else {
-            resolvedString = sub.replace(vxuTemplate);
-          }
+      }
+      if (checkpoint == null) {
+        checkpoint =
+            new CheckpointJournal.Checkpoint(
+                inputName(file), fileSize, file.lastModified(), OutputSession.timestamp());
+        journal.append(CheckpointJournal.START, checkpoint);
+        session = new OutputSession(baseDir(file), inputName(file), headers, checkpoint.dateStr);
+      }
 
-          if (!"".equals(vaccineRoute)) {
-            String rxr = "RXR|" + vaccineRoute + "^^NCIT|";
-            if (!"".equals(vaccineAdmSite)) {
-              rxr += vaccineAdmSite + "^^HL70163";
-            }
-            resolvedString += rxr + "\n";
-          }
-          System.out.println(resolvedString);
-          hl7File = writeFile(file.getName(), resolvedString + "\n", hl7File);
-          readyFile = writeReadyFile(record, file.getName(), readyFile, headers);
-        }
+      if (duplicates != null) {
+        // the vaccinations sent before the checkpoint, not every record read before it
+        batch = duplicates.newBatch(sentLog(file, checkpoint.dateStr), checkpoint.countOkay);
+      }
+      Iterator<Row> rows = reader.rows();
+      Tenant tenant = Tenant.forFile(file);
+      if (PatientGrouper.ENABLED) {
+        // the sort reads the whole file up front, so the rows are held back as it reads them
+        grouper = new PatientGrouper(columns);
+        rows = grouper.sort(tenant.throttle(rows));
+      }
+      for (long i = 0; i < checkpoint.records && rows.hasNext(); i++) {
+        rows.next();
       }
-      System.out.println("  + Total records: " + countTotal);
+      if (grouper == null) {
+        rows = tenant.throttle(rows);
+      }
+      SessionSink sink = new SessionSink(session, checkpoint, columns, batch);
+      RecordPipeline pipeline = new RecordPipeline(new RecordConverter(columns), sink);
+      if (grouper != null) {
+        pipeline.runPatients(grouper.groups(rows));
+      } else {
+        pipeline.run(rows);
+      }
+      long countTotal = sink.countTotal;
+      long countError = sink.countError;
+      long countOkay = sink.countOkay;
+      Log.info("  + Total records: " + countTotal);
       if (countError > 0) {
-        System.out.println("  + Errors found: " + countError);
+        Log.info("  + Errors found: " + countError);
+      }
+      if (countOkay > 0 && grouper != null) {
+        Log.info("  + Records sent: " + countOkay);
+        Log.info(
+            "  + HL7 messages created"
+                + (checkpoint.records > 0 ? " since resuming: " : ": ")
+                + sink.countMessages
+                + " (one per patient)");
+      } else if (countOkay > 0) {
+        Log.info("  + HL7 messages created: " + countOkay);
+      }
+      session.complete(checkpoint);
+      checkpoint.records = countTotal;
+      checkpoint.countError = countError;
+      checkpoint.countOkay = countOkay;
+      if (batch != null) {
+        batch.sync();
+      }
+      journal.append(CheckpointJournal.COMMIT, checkpoint);
+      if (batch != null) {
+        duplicates.commit(batch);
       }
-      if (countOkay > 0) {
-        System.out.println("  + HL7 messages created: " + countOkay);
+      session.commit();
+      if (processed != null) {
+        processed.recordConverted(file, reader.digest());
       }
+      long elapsedNanos = System.nanoTime() - startTime;
+      fileTime.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+      filesConverted.increment();
+      reportReadRate(fileSize, elapsedNanos);
     } finally {
-      fileReader.close();
-    }
-    if (file.delete()) {
-      System.out.println("  + Original file deleted");
-    } else {
-      System.out.println("  + File deletion failed");
+      if (batch != null) {
+        batch.close();
+      }
+      if (session != null) {
+        session.close();
+      }
+      if (grouper != null) {
+        grouper.close();
+      }
+      if (reader != null) {
+        reader.close();
+      }
     }
+    archive(file, checkpoint);
   }
 
-  static String defaultedGet(CSVRecord record, String name) {
-    String retStr = "";
-    if (record.isMapped(name)) {
-      retStr = record.get(name);
-    }
-    if (retStr == null) {
-      retStr = "";
+  /** The directory that holds the data directory the file was dropped in. */
+  static File baseDir(File file) {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (senderDirectory(file) != null) {
+      dir = dir.getParentFile();
     }
-    return retStr.trim();
+    return dir.getParentFile();
   }
 
-  static boolean vaccineRefused(String refusal) {
-    boolean retVal = false;
-    if (!"".equals(refusal) && !"NO".equals(refusal) && !"N".equals(refusal)) {
-      retVal = true;
-    }
-    return retVal;
+  /** The sender directory in data that the file was dropped in, or null if it is in data itself. */
+  static String senderDirectory(File file) {
+    String dir = file.getAbsoluteFile().getParentFile().getName();
+    return DIR_DATA.equals(dir) ? null : dir;
   }
 
-  static File writeReadyFile(CSVRecord record, String name, File file, List<String> headers)
-      throws IOException {
-    String directoryName = "./" + DIR_DATA + "/" + DIR_DATA_READY;
-
-    File directory = new File(directoryName);
-    if (!directory.exists()) {
-      directory.mkdir();
-    }
-
-    if (file == null) {
-      SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
-      Date date = new Date(System.currentTimeMillis());
-      String dateStr = formatter.format(date);
-      String fileName = name.split("\\.")[0] + "-READY-" + dateStr + ".csv";
-      file = new File(directoryName + "/" + fileName);
-
-      FileWriter fw = new FileWriter(file.getAbsoluteFile(), true);
-      BufferedWriter bw = new BufferedWriter(fw);
-      String recordString = "";
-      for (String s : headers) {
-        recordString += s + ",";
-      }
-      bw.write(recordString + "\n");
-      bw.close();
-    }
+  /** The file's path under data, which it is known by in the journal. */
+  static String inputName(File file) {
+    String sender = senderDirectory(file);
+    return sender == null ? file.getName() : sender + "/" + file.getName();
+  }
 
-    FileWriter fw = new FileWriter(file.getAbsoluteFile(), true);
-    BufferedWriter bw = new BufferedWriter(fw);
-    String recordString = "";
-    Iterator<String> itr = record.iterator();
-    while (itr.hasNext()) {
-      recordString += itr.next();
-      if (itr.hasNext()) {
-        recordString += ",";
-      }
-    }
-    bw.write(recordString + "\n");
-    bw.close();
+  /** Where an input is moved once it has been converted, creating the archive directory. */
+  static File archiveFile(File file, String dateStr) {
+    File archiveDir = new File(file.getParentFile(), DIR_DATA_ARCHIVE);
+    archiveDir.mkdirs();
+    String name = file.getName();
+    String baseName = name.split("\\.")[0];
+    return new File(archiveDir, baseName + "-" + dateStr + name.substring(baseName.length()));
+  }
 
-    return file;
+  /**
+   * Where the fingerprints of the vaccinations sent from an input are logged while it is being
+   * converted, next to its ready file.
+   */
+  static File sentLog(File file, String dateStr) {
+    File readyDir = new File(file.getParentFile(), DIR_DATA_READY);
+    readyDir.mkdirs();
+    String baseName = file.getName().split("\\.")[0];
+    return new File(readyDir, "." + baseName + "-SENT-" + dateStr + ".part");
   }
 
-  static File writeErrorFile(
-      String errorString, CSVRecord record, String name, File file, List<String> headers)
+  /** Moves a converted input to the archive directory and marks it done in the journal. */
+  private static void archive(File file, CheckpointJournal.Checkpoint checkpoint)
       throws IOException {
-    String directoryName = "./" + DIR_DATA + "/" + DIR_DATA_ERROR;
-
-    File directory = new File(directoryName);
-    if (!directory.exists()) {
-      directory.mkdir();
+    try {
+      Files.move(
+          file.toPath(),
+          archiveFile(file, checkpoint.dateStr).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      Log.info("  + Original file archived");
+    } catch (IOException e) {
+      Log.error("  + File archive failed: " + e.getMessage());
+      return;
     }
+    journal.append(CheckpointJournal.DONE, checkpoint);
+  }
 
-    if (file == null) {
-      SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
-      Date date = new Date(System.currentTimeMillis());
-      String dateStr = formatter.format(date);
-      String fileName = name.split("\\.")[0] + "-ERROR-" + dateStr + ".csv";
-      file = new File(directoryName + "/" + fileName);
-
-      FileWriter fw = new FileWriter(file.getAbsoluteFile(), true);
-      BufferedWriter bw = new BufferedWriter(fw);
-      String recordString = "Error";
-      for (String s : headers) {
-        recordString += "," + s;
-      }
-      bw.write(recordString + "\n");
-      bw.close();
-    }
+  /**
+   * Opens a single reader over the file backed by a file channel with a large read buffer, so the
+   * header and records all come from one pass over the file.
+   */
+  static Reader openReader(File file) throws IOException {
+    return openReader(file, null);
+  }
 
-    FileWriter fw = new FileWriter(file.getAbsoluteFile(), true);
-    BufferedWriter bw = new BufferedWriter(fw);
-    String recordString = "" + errorString + ",";
-    Iterator<String> itr = record.iterator();
-    while (itr.hasNext()) {
-      recordString += itr.next();
-      if (itr.hasNext()) {
-        recordString += ",";
-      }
+  /** Opens a reader over the file as above, adding each byte read to digest if it isn't null. */
+  static Reader openReader(File file, ContentDigest digest) throws IOException {
+    ReadableByteChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    if (digest != null) {
+      channel = digest.wrap(channel);
     }
-    bw.write(recordString + "\n");
-    bw.close();
+    return new BufferedReader(
+        Channels.newReader(channel, newDecoder(), READ_BUFFER_SIZE), READ_BUFFER_SIZE);
+  }
 
-    return file;
+  /** Decodes extracts in the platform charset, replacing bytes that aren't valid in it. */
+  static CharsetDecoder newDecoder() {
+    return Charset.defaultCharset()
+        .newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
   }
 
-  static File writeFile(String name, String value, File file) throws IOException {
-    String directoryName = "./" + DIR_REQUEST;
-    System.out.println("Writing file");
+  private static void reportReadRate(long bytes, long elapsedNanos) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    long bytesPerSecond =
+        elapsedNanos > 0 ? (long) (bytes / (elapsedNanos / 1000000000.0)) : bytes;
+    Log.info(
+        "  + Read "
+            + bytes
+            + " bytes in "
+            + elapsedMillis
+            + " ms ("
+            + bytesPerSecond
+            + " bytes/sec)");
+  }
 
-    File directory = new File(directoryName);
-    if (!directory.exists()) {
-      directory.mkdir();
+  /**
+   * Writes each converted record to the session's outputs, counting as it goes. Vaccinations that
+   * were already sent go to the error file. Without a checkpoint (for the records appended to a
+   * tailed file) the outputs are not synced part way through.
+   */
+  static class SessionSink implements RecordPipeline.Sink {
+    static final String DUPLICATE_ERROR = "Vaccination was already sent";
+    private static final Metrics.Counter duplicateErrors = Metrics.counter("errors.duplicate");
+
+    private final OutputSession session;
+    private final CheckpointJournal.Checkpoint checkpoint;
+    private final ColumnMapping columns;
+    private final DuplicateIndex.Batch batch;
+    long countTotal;
+    long countError;
+    long countOkay;
+    // messages written by this run, fewer than countOkay when rows are grouped by patient
+    long countMessages;
+
+    SessionSink(
+        OutputSession session,
+        CheckpointJournal.Checkpoint checkpoint,
+        ColumnMapping columns,
+        DuplicateIndex.Batch batch) {
+      this.session = session;
+      this.checkpoint = checkpoint;
+      this.columns = columns;
+      this.batch = batch;
+      if (checkpoint != null) {
+        this.countTotal = checkpoint.records;
+        this.countError = checkpoint.countError;
+        this.countOkay = checkpoint.countOkay;
+      }
     }
 
-    if (file == null) {
-      SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
-      Date date = new Date(System.currentTimeMillis());
-      String dateStr = formatter.format(date);
-      String fileName = name.split("\\.")[0] + "-" + dateStr + ".hl7";
-      file = new File(directoryName + "/" + fileName);
+    @Override
+    public void accept(Row row, RecordConverter.Result result) throws IOException {
+      long before = countTotal;
+      countTotal++;
+      if (result.isError()) {
+        session.writeError(result.getError(), row);
+        countError++;
+      } else if (isDuplicate(row)) {
+        session.writeError(DUPLICATE_ERROR, row);
+        duplicateErrors.increment();
+        countError++;
+      } else {
+        if (Log.isDebugEnabled()) {
+          Log.debug(result.getMessage());
+        }
+        session.writeMessage(result.getMessage());
+        session.writeReady(row);
+        countOkay++;
+        countMessages++;
+      }
+      checkpointIfDue(before);
     }
 
-    FileWriter fw = new FileWriter(file.getAbsoluteFile(), true);
-    BufferedWriter bw = new BufferedWriter(fw);
-    bw.write(value);
-    bw.close();
+    @Override
+    public void acceptPatient(List<Row> rows, RecordConverter.PatientResult result)
+        throws IOException {
+      long before = countTotal;
+      countTotal += rows.size();
+      RecordConverter.Result[] results = result.getResults();
+      StringBuilder message = null;
+      for (int i = 0; i < rows.size(); i++) {
+        Row row = rows.get(i);
+        if (results[i].isError()) {
+          session.writeError(results[i].getError(), row);
+          countError++;
+        } else if (isDuplicate(row)) {
+          session.writeError(DUPLICATE_ERROR, row);
+          duplicateErrors.increment();
+          countError++;
+        } else {
+          if (message == null) {
+            message = new StringBuilder(result.getPatientSegments());
+          }
+          message.append(results[i].getMessage());
+          session.writeReady(row);
+          countOkay++;
+        }
+      }
+      if (message != null) {
+        message.append('\n');
+        if (Log.isDebugEnabled()) {
+          Log.debug(message.toString());
+        }
+        session.writeMessage(message.toString());
+        countMessages++;
+      }
+      checkpointIfDue(before);
+    }
 
-    return file;
-  }
+    private boolean isDuplicate(Row row) throws IOException {
+      return batch != null && !batch.add(DuplicateIndex.fingerprint(row, columns));
+    }
 
-  private static String reportResults(List<ValidationRuleResult> list) {
-    for (ValidationRuleResult vrr : list) {
-      for (ValidationReport i : vrr.getValidationDetections()) {
-        // System.out.println("  - : " + i.getDetection() + "[" + i.getValueReceived() + "]");
-        if (SeverityLevel.ERROR == i.getSeverity()) {
-          String s = "  - ";
-          if (i.getHl7LocationList() != null && i.getHl7LocationList().size() > 0) {
-            s += i.getHl7LocationList().get(0);
-          }
-          s += "                   ";
-          if (s.length() > 10) {
-            s = s.substring(0, 18);
-          }
-          return i.getDetection().toString();
+    /** Syncs the outputs each time another journal.checkpointRecords records have been written. */
+    private void checkpointIfDue(long before) throws IOException {
+      long interval = CheckpointJournal.CHECKPOINT_RECORDS;
+      if (checkpoint != null && before / interval != countTotal / interval) {
+        session.sync(checkpoint);
+        if (batch != null) {
+          batch.sync();
         }
+        checkpoint.records = countTotal;
+        checkpoint.countError = countError;
+        checkpoint.countOkay = countOkay;
+        journal.append(CheckpointJournal.CHECKPOINT, checkpoint);
       }
     }
-    return null;
   }
 
   public static void main(String[] args) throws IOException {
@@ -551,14 +636,38 @@ public class FileWatchService {
       directory.mkdir();
     }
     Path dir = Paths.get(directoryName);
+    journal =
+        CheckpointJournal.open(new File(Settings.get("journal.file", "puente.journal")), directory);
+    if (Settings.getBoolean("dedup.enabled", true)) {
+      duplicates = DuplicateIndex.open(new File(Settings.get("dedup.file", "puente.dedup")));
+    }
+    processed =
+        ProcessedIndex.open(new File(Settings.get("processed.file", "puente.processed")));
+    MetricsExporter.start();
+    IngestServer ingest = IngestServer.fromSettings();
+    // start watching before the scan so files dropped in between are not missed
+    FileWatchService service = new FileWatchService(dir);
+    IisSender sender = IisSender.fromSettings(new File(DIR_REQUEST));
+    if (sender != null) {
+      new File(DIR_REQUEST).mkdirs();
+      sender.start();
+    }
+    service.scan();
+    service.processEvents();
+    service.scanner.shutdownNow();
     try {
-      DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir);
-      for (Path entry : directoryStream) {
-        evaluateFile(entry.toFile());
+      if (ingest != null) {
+        ingest.shutdown();
+      }
+      if (service.tailer != null) {
+        service.tailer.shutdown();
+      }
+      service.dispatcher.shutdown();
+      if (sender != null) {
+        sender.shutdown();
       }
-    } catch (DirectoryIteratorException ex) {
-      System.out.println("Exception checking for existing send files");
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
     }
-    new FileWatchService(dir).processEvents();
   }
 }
@@ -0,0 +1,98 @@
+package org.immregistries.puente;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message template compiled once into alternating literal text and numbered slots. Templates
+ * use the ${name} placeholder syntax; each name must be one of the slot names given to {@link
+ * #compile(String, String[])}, and rendering appends the literals and the slot values straight
+ * into the caller's buffer.
+ */
+final class Hl7Template {
+  private final String[] literals;
+  private final int[] slots;
+
+  private Hl7Template(String[] literals, int[] slots) {
+    this.literals = literals;
+    this.slots = slots;
+  }
+
+  static Hl7Template compile(String template, String[] slotNames) {
+    List<String> names = Arrays.asList(slotNames);
+    List<String> literalList = new ArrayList<String>();
+    List<Integer> slotList = new ArrayList<Integer>();
+    int pos = 0;
+    for (; ; ) {
+      int start = template.indexOf("${", pos);
+      if (start < 0) {
+        break;
+      }
+      int end = template.indexOf('}', start);
+      if (end < 0) {
+        throw new IllegalArgumentException("Unterminated placeholder at " + start);
+      }
+      String name = template.substring(start + 2, end);
+      int slot = names.indexOf(name);
+      if (slot < 0) {
+        throw new IllegalArgumentException("Unknown placeholder ${" + name + "}");
+      }
+      literalList.add(template.substring(pos, start));
+      slotList.add(slot);
+      pos = end + 1;
+    }
+    literalList.add(template.substring(pos));
+
+    int[] slots = new int[slotList.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = slotList.get(i);
+    }
+    return new Hl7Template(literalList.toArray(new String[literalList.size()]), slots);
+  }
+
+  /** Appends the rendered template to out, taking slot values from values by slot number. */
+  void render(StringBuilder out, CharSequence[] values) {
+    for (int i = 0; i < slots.length; i++) {
+      out.append(literals[i]);
+      out.append(values[slots[i]]);
+    }
+    out.append(literals[slots.length]);
+  }
+
+  /**
+   * Appends value with the HL7 delimiter characters replaced by their escape sequences, so data
+   * from the file can't break the field or component structure of the message.
+   */
+  static StringBuilder appendEscaped(StringBuilder out, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '|':
+          out.append("\\F\\");
+          break;
+        case '^':
+          out.append("\\S\\");
+          break;
+        case '&':
+          out.append("\\T\\");
+          break;
+        case '~':
+          out.append("\\R\\");
+          break;
+        case '\\':
+          out.append("\\E\\");
+          break;
+        case '\r':
+          out.append("\\X0D\\");
+          break;
+        case '\n':
+          out.append("\\X0A\\");
+          break;
+        default:
+          out.append(c);
+      }
+    }
+    return out;
+  }
+}
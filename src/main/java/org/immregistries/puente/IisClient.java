@@ -0,0 +1,192 @@
+package org.immregistries.puente;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Submits single HL7 messages to an IIS through the CDC WSDL submitSingleMessage operation (SOAP
+ * 1.2, namespace urn:cdc:iisb:2011).
+ *
+ * <p>Connections are made with HttpURLConnection, which keeps idle connections to the same host
+ * alive and reuses them as long as every response body is read to the end, so the sender threads
+ * share a pool of keep-alive connections rather than opening one per message.
+ */
+class IisClient {
+  private static final String SOAP_ACTION = "urn:cdc:iisb:2011:submitSingleMessage";
+  private static final int CONNECT_TIMEOUT = Settings.getInt("send.connectTimeoutMillis", 10000);
+  private static final int READ_TIMEOUT = Settings.getInt("send.readTimeoutMillis", 60000);
+
+  private final URL url;
+  private final String username;
+  private final String password;
+  private final String facilityId;
+
+  IisClient(URL url, String username, String password, String facilityId) {
+    this.url = url;
+    this.username = username;
+    this.password = password;
+    this.facilityId = facilityId;
+  }
+
+  /**
+   * Sends the message and returns the ACK. An IOException means the message may not have been
+   * delivered and is worth retrying; a SOAP fault is reported as a {@link FaultException}.
+   */
+  String submitSingleMessage(String message) throws IOException {
+    byte[] body = envelope(message).getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty(
+        "Content-Type", "application/soap+xml; charset=utf-8; action=\"" + SOAP_ACTION + "\"");
+    // not streamed, so headers and body leave in one write instead of waiting on a delayed ACK
+    OutputStream out = connection.getOutputStream();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+
+    int status = connection.getResponseCode();
+    InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    String response = in == null ? "" : readFully(in);
+    if (response.contains(":Fault>") || response.contains("<Fault>")) {
+      String reason = elementText(response, "Text");
+      if (reason == null) {
+        reason = elementText(response, "faultstring");
+      }
+      throw new FaultException(reason == null ? "SOAP fault" : reason);
+    }
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException("IIS returned HTTP " + status);
+    }
+    String ack = elementText(response, "return");
+    if (ack == null) {
+      throw new IOException("No ACK in response from IIS");
+    }
+    return ack;
+  }
+
+  @Override
+  public String toString() {
+    return url.toString();
+  }
+
+  private String envelope(String message) {
+    StringBuilder sb = new StringBuilder(message.length() + 512);
+    sb.append("<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\"")
+        .append(" xmlns:urn=\"urn:cdc:iisb:2011\"><soap:Header/><soap:Body>")
+        .append("<urn:submitSingleMessage><urn:username>");
+    appendXml(sb, username);
+    sb.append("</urn:username><urn:password>");
+    appendXml(sb, password);
+    sb.append("</urn:password><urn:facilityID>");
+    appendXml(sb, facilityId);
+    sb.append("</urn:facilityID><urn:hl7Message>");
+    // segments are sent with the carriage return separator HL7 requires
+    appendXml(sb, message.replace("\r\n", "\r").replace('\n', '\r'));
+    sb.append("</urn:hl7Message></urn:submitSingleMessage></soap:Body></soap:Envelope>");
+    return sb.toString();
+  }
+
+  private static void appendXml(StringBuilder sb, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '>':
+          sb.append("&gt;");
+          break;
+        case '&':
+          sb.append("&amp;");
+          break;
+        case '"':
+          sb.append("&quot;");
+          break;
+        case '\r':
+          sb.append("&#13;");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+  }
+
+  /** Returns the unescaped text of the first element with the given local name, ignoring prefix. */
+  static String elementText(String xml, String localName) {
+    int pos = 0;
+    while (pos < xml.length()) {
+      int start = xml.indexOf('<', pos);
+      if (start < 0) {
+        return null;
+      }
+      int end = xml.indexOf('>', start);
+      if (end < 0) {
+        return null;
+      }
+      String tag = xml.substring(start + 1, end);
+      pos = end + 1;
+      if (tag.startsWith("/") || tag.startsWith("?") || tag.startsWith("!")) {
+        continue;
+      }
+      String name = tag.split("[\\s/]", 2)[0];
+      if (name.equals(localName) || name.endsWith(":" + localName)) {
+        if (tag.endsWith("/")) {
+          return "";
+        }
+        int close = xml.indexOf("</" + name + ">", pos);
+        if (close < 0) {
+          return null;
+        }
+        return unescapeXml(xml.substring(pos, close));
+      }
+    }
+    return null;
+  }
+
+  private static String unescapeXml(String s) {
+    if (s.startsWith("<![CDATA[") && s.endsWith("]]>")) {
+      return s.substring(9, s.length() - 3);
+    }
+    return s.replace("&#13;", "\r")
+        .replace("&#xD;", "\r")
+        .replace("&#10;", "\n")
+        .replace("&lt;", "<")
+        .replace("&gt;", ">")
+        .replace("&quot;", "\"")
+        .replace("&apos;", "'")
+        .replace("&amp;", "&");
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** A SOAP fault from the IIS. Faults are not retried. */
+  static class FaultException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    FaultException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,616 @@
+package org.immregistries.puente;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends the HL7 files that appear in ./request to one or more IIS and moves each file to
+ * ./request/sent when every message in it has been answered.
+ *
+ * <p>Each IIS has a number of lanes, one request in flight per lane. Messages are spread across
+ * the lanes by recipient ID, so messages for the same patient are still sent in file order. A
+ * failed request is retried with exponential backoff, and each IIS has its own rate limit. Any
+ * message that is not accepted (MSA-1 other than AA or CA, or a SOAP fault) is written to
+ * ./request/error with its ACK or failure reason. A message that can't be delivered after
+ * send.maxAttempts tries isn't a rejection: the rest of the file is held back and the file stays
+ * in ./request to be sent again on a later poll, so an outage doesn't turn messages into errors.
+ *
+ * <p>Each answer is recorded in a {@link SendJournal}, so a file that was being sent when Puente
+ * stopped is picked up again with only the messages that hadn't been answered.
+ *
+ * <p>With a single IIS the settings are send.url, send.username, send.password, send.facilityId,
+ * send.maxInFlight and send.ratePerSecond. For several, send.iis lists their names and each
+ * setting can be given as send.&lt;name&gt;.&lt;setting&gt;; files go to the IIS whose
+ * send.&lt;name&gt;.filePrefix matches the file name, or to the first IIS listed.
+ */
+class IisSender {
+  static final String DIR_SENT = "sent";
+  static final String DIR_ERROR = "error";
+
+  private static final long POLL_MILLIS = Settings.getLong("send.pollMillis", 2000);
+  private static final int MAX_ATTEMPTS = Settings.getInt("send.maxAttempts", 5);
+  private static final long BACKOFF_MILLIS = Settings.getLong("send.backoffMillis", 500);
+  private static final long MAX_BACKOFF_MILLIS = Settings.getLong("send.maxBackoffMillis", 30000);
+  private static final int LANE_QUEUE_SIZE = 64;
+
+  private static final Metrics.Histogram sendTime = Metrics.histogram("send.request.nanos");
+  private static final Metrics.Meter sendRate = Metrics.meter("send.messages");
+  private static final Metrics.Counter acceptedCount = Metrics.counter("send.accepted");
+  private static final Metrics.Counter rejectedCount = Metrics.counter("send.rejected");
+  private static final Metrics.Counter retryCount = Metrics.counter("send.retries");
+
+  private final File requestDir;
+  private final List<Endpoint> endpoints;
+  private final SendJournal journal;
+  private final ScheduledExecutorService poller =
+      Executors.newSingleThreadScheduledExecutor(
+          new RecordPipeline.DaemonThreadFactory("puente-send"));
+
+  private IisSender(File requestDir, final List<Endpoint> endpoints, SendJournal journal) {
+    this.requestDir = requestDir;
+    this.endpoints = endpoints;
+    this.journal = journal;
+    Metrics.gauge(
+        "queue.send.messages",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            long queued = 0;
+            for (Endpoint endpoint : endpoints) {
+              for (Endpoint.Lane lane : endpoint.lanes) {
+                queued += lane.queue.size();
+              }
+            }
+            return queued;
+          }
+        });
+  }
+
+  /** Returns a sender for the configured IIS, or null if sending is not configured. */
+  static IisSender fromSettings(File requestDir) throws IOException {
+    List<String> names = new ArrayList<String>();
+    String iisList = Settings.get("send.iis", null);
+    if (iisList != null) {
+      for (String name : iisList.split(",")) {
+        names.add(name.trim());
+      }
+    } else if (Settings.get("send.url", null) != null) {
+      names.add(null);
+    }
+    if (names.isEmpty()) {
+      return null;
+    }
+    int maxInFlight = 0;
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    for (String name : names) {
+      Endpoint endpoint = new Endpoint(name);
+      maxInFlight = Math.max(maxInFlight, endpoint.lanes.length);
+      endpoints.add(endpoint);
+    }
+    if (System.getProperty("http.maxConnections") == null) {
+      // size the JDK keep-alive pool so every lane can hold on to its connection
+      System.setProperty("http.maxConnections", String.valueOf(maxInFlight));
+    }
+    SendJournal journal =
+        SendJournal.open(new File(Settings.get("send.journalFile", "puente.send")), requestDir);
+    return new IisSender(requestDir, endpoints, journal);
+  }
+
+  void start() {
+    for (Endpoint endpoint : endpoints) {
+      endpoint.start();
+    }
+    poller.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            sendWaitingFiles();
+          }
+        },
+        POLL_MILLIS,
+        POLL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops picking up files and waits for the lanes to send the messages already queued. A file
+   * that was part way through stays in request, and the next run sends the rest of it.
+   */
+  void shutdown() throws InterruptedException {
+    poller.shutdownNow();
+    poller.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    for (Endpoint endpoint : endpoints) {
+      endpoint.shutdown();
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      Log.warn("Couldn't close the send journal: " + e.getMessage());
+    }
+  }
+
+  private void sendWaitingFiles() {
+    File[] files = requestDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(
+        files,
+        new Comparator<File>() {
+          @Override
+          public int compare(File a, File b) {
+            return Long.compare(a.lastModified(), b.lastModified());
+          }
+        });
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isFile()
+          && !name.startsWith(".")
+          && (name.endsWith(".hl7") || name.endsWith(".hl7.gz"))) {
+        try {
+          sendFile(file);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (Exception e) {
+          Log.error("Couldn't send " + name + ": " + e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  void sendFile(File file) throws IOException, InterruptedException {
+    Endpoint endpoint = endpointFor(file.getName());
+    Log.info("Sending " + file.getName() + " to " + endpoint.client);
+    long startTime = System.nanoTime();
+    publishLeftovers(file);
+    FileProgress progress = new FileProgress(file);
+    Set<Integer> answered = journal.answered(file);
+    if (!answered.isEmpty()) {
+      Log.info("  + " + answered.size() + " message(s) were answered before, not sending again");
+    }
+    int index = 0;
+    InputStream in = new FileInputStream(file);
+    if (file.getName().endsWith(".gz")) {
+      in = new GZIPInputStream(in, 64 * 1024);
+    }
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()), 64 * 1024);
+    try {
+      StringBuilder message = null;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("MSH|")) {
+          if (message != null) {
+            if (!answered.contains(index)) {
+              endpoint.enqueue(message.toString(), index, progress);
+            }
+            index++;
+          }
+          message = new StringBuilder(1024);
+        }
+        if (message == null
+            || line.isEmpty()
+            || line.startsWith("FHS|")
+            || line.startsWith("BHS|")
+            || line.startsWith("BTS|")
+            || line.startsWith("FTS|")) {
+          continue;
+        }
+        message.append(line).append('\n');
+      }
+      if (message != null && !answered.contains(index)) {
+        endpoint.enqueue(message.toString(), index, progress);
+      }
+    } finally {
+      reader.close();
+    }
+    progress.awaitCompletion();
+    progress.finish();
+    if (progress.undelivered > 0) {
+      Log.warn(
+          "  + "
+              + progress.undelivered
+              + " message(s) in "
+              + file.getName()
+              + " weren't delivered, trying again later");
+      return;
+    }
+
+    File sentDir = new File(requestDir, DIR_SENT);
+    sentDir.mkdirs();
+    File sentFile = new File(sentDir, file.getName());
+    Files.move(file.toPath(), sentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    journal.done(file);
+
+    long elapsedNanos = System.nanoTime() - startTime;
+    long messagesPerSecond =
+        elapsedNanos > 0 ? (long) (progress.total / (elapsedNanos / 1000000000.0)) : 0;
+    Log.info("  + Messages sent: " + progress.total);
+    Log.info("  + Accepted: " + progress.accepted);
+    if (progress.rejected > 0) {
+      Log.info("  + Not accepted: " + progress.rejected);
+    }
+    Log.info(
+        "  + Sent in "
+            + TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+            + " ms ("
+            + messagesPerSecond
+            + " messages/sec)");
+  }
+
+  /**
+   * Publishes the rejections written for the file by a run that stopped before finishing it. Their
+   * messages are in the journal as answered, so they won't be rejected again.
+   */
+  private void publishLeftovers(File file) throws IOException {
+    String prefix = "." + file.getName().split("\\.")[0] + "-REJECTED-";
+    File[] leftovers = new File(requestDir, DIR_ERROR).listFiles();
+    if (leftovers == null) {
+      return;
+    }
+    for (File leftover : leftovers) {
+      String name = leftover.getName();
+      if (name.startsWith(prefix) && name.endsWith(".part")) {
+        publish(new File(leftover.getParentFile(), name.substring(1, name.length() - 5)));
+      }
+    }
+  }
+
+  private Endpoint endpointFor(String fileName) {
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.filePrefix != null && fileName.startsWith(endpoint.filePrefix)) {
+        return endpoint;
+      }
+    }
+    return endpoints.get(0);
+  }
+
+  /** Returns the first component of PID-3, used to keep one patient's messages in order. */
+  static String recipientId(String message) {
+    int pid = message.startsWith("PID|") ? 0 : message.indexOf("\nPID|");
+    if (pid < 0) {
+      return "";
+    }
+    String[] fields = message.substring(pid == 0 ? 0 : pid + 1).split("[|\n]", 5);
+    return fields.length > 3 ? fields[3].split("\\^", 2)[0] : "";
+  }
+
+  /** Returns MSA-1 from the ACK, or null if the ACK has no MSA segment. */
+  static String ackCode(String ack) {
+    for (String segment : ack.split("[\r\n]+")) {
+      if (segment.startsWith("MSA|")) {
+        String[] fields = segment.split("\\|", 3);
+        return fields.length > 1 ? fields[1] : "";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns why the IIS didn't accept the message, or null if it did (MSA-1 of AA or CA). The
+   * reason is MSA-1 with the text of the ERR segments: ERR-8, or the text of ERR-3 when ERR-8 is
+   * empty. Without any, MSA-3 is used.
+   */
+  static String rejection(String ack) {
+    String code = ackCode(ack);
+    if (code == null) {
+      return "ACK has no MSA segment";
+    }
+    if ("AA".equals(code) || "CA".equals(code)) {
+      return null;
+    }
+    StringBuilder errors = new StringBuilder();
+    String messageText = "";
+    for (String segment : ack.split("[\r\n]+")) {
+      String[] fields = segment.split("\\|", -1);
+      if (segment.startsWith("ERR|")) {
+        String text = fields.length > 8 ? fields[8] : "";
+        if (text.isEmpty() && fields.length > 3) {
+          String[] components = fields[3].split("\\^", -1);
+          text = components.length > 1 ? components[1] : "";
+        }
+        if (!text.isEmpty()) {
+          errors.append(errors.length() == 0 ? "" : "; ").append(text);
+        }
+      } else if (segment.startsWith("MSA|") && messageText.isEmpty() && fields.length > 3) {
+        messageText = fields[3];
+      }
+    }
+    String text = errors.length() > 0 ? errors.toString() : messageText;
+    return text.isEmpty() ? "ACK " + code : "ACK " + code + ": " + text;
+  }
+
+  private static class Endpoint {
+    private final String filePrefix;
+    private final IisClient client;
+    private final RateLimiter rateLimiter;
+    private final Lane[] lanes;
+    private final Thread[] threads;
+    private volatile boolean stopping = false;
+
+    Endpoint(String name) throws MalformedURLException {
+      String url = setting(name, "url", null);
+      if (url == null) {
+        throw new MalformedURLException("No url set for IIS " + name);
+      }
+      filePrefix = setting(name, "filePrefix", null);
+      client =
+          new IisClient(
+              new URL(url),
+              setting(name, "username", ""),
+              setting(name, "password", ""),
+              setting(name, "facilityId", ""));
+      rateLimiter = new RateLimiter(Double.parseDouble(setting(name, "ratePerSecond", "0")));
+      lanes = new Lane[Integer.parseInt(setting(name, "maxInFlight", "4"))];
+      threads = new Thread[lanes.length];
+      for (int i = 0; i < lanes.length; i++) {
+        lanes[i] = new Lane();
+      }
+    }
+
+    private static String setting(String name, String key, String defaultValue) {
+      String value = Settings.get("send." + key, defaultValue);
+      return name == null ? value : Settings.get("send." + name + "." + key, value);
+    }
+
+    void start() {
+      for (int i = 0; i < lanes.length; i++) {
+        threads[i] = new Thread(lanes[i], "puente-send-lane-" + (i + 1));
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+    }
+
+    /** Lets each lane send what it has queued, without retrying, and waits for it to stop. */
+    void shutdown() throws InterruptedException {
+      stopping = true;
+      for (Lane lane : lanes) {
+        lane.queue.put(STOP);
+      }
+      for (Thread thread : threads) {
+        if (thread != null) {
+          thread.join();
+        }
+      }
+    }
+
+    void enqueue(String message, int index, FileProgress progress) throws InterruptedException {
+      progress.started();
+      int lane = (recipientId(message).hashCode() & 0x7fffffff) % lanes.length;
+      lanes[lane].queue.put(new Job(message, index, progress));
+    }
+
+    private class Lane implements Runnable {
+      private final BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(LANE_QUEUE_SIZE);
+
+      @Override
+      public void run() {
+        for (; ; ) {
+          Job job;
+          try {
+            job = queue.take();
+          } catch (InterruptedException ie) {
+            return;
+          }
+          if (job == STOP) {
+            return;
+          }
+          try {
+            send(job);
+          } catch (InterruptedException ie) {
+            job.done(null, "Interrupted before sending");
+            return;
+          } catch (RuntimeException e) {
+            // one bad message or answer mustn't stop the lane and leave its file waiting forever
+            Log.error("Couldn't send a message from " + job.progress.file.getName(), e);
+            job.done(null, "Couldn't send: " + e);
+          }
+        }
+      }
+
+      private void send(Job job) throws InterruptedException {
+        if (job.progress.hasUndelivered()) {
+          // hold back the rest of the file, keeping each patient's messages in order
+          job.undelivered();
+          return;
+        }
+        long backoff = BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+          rateLimiter.acquire();
+          long start = System.nanoTime();
+          try {
+            String ack = client.submitSingleMessage(job.message);
+            sendTime.recordSince(start);
+            job.done(ack, rejection(ack));
+            return;
+          } catch (IisClient.FaultException fe) {
+            sendTime.recordSince(start);
+            job.done(null, "SOAP fault: " + fe.getMessage());
+            return;
+          } catch (IOException ioe) {
+            sendTime.recordSince(start);
+            if (attempt >= MAX_ATTEMPTS || stopping) {
+              Log.warn("Couldn't deliver a message after " + attempt + " tries: " + ioe);
+              job.undelivered();
+              return;
+            }
+            retryCount.increment();
+            TimeUnit.MILLISECONDS.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+          }
+        }
+      }
+    }
+  }
+
+  // put on each lane's queue behind the messages it still has to send when shutting down
+  private static final Job STOP = new Job(null, -1, null);
+
+  private static class Job {
+    private final String message;
+    // the message's position in its file, for the journal
+    private final int index;
+    private final FileProgress progress;
+    private boolean answered = false;
+
+    Job(String message, int index, FileProgress progress) {
+      this.message = message;
+      this.index = index;
+      this.progress = progress;
+    }
+
+    /** Counts the message as answered, once however it ended. */
+    void done(String ack, String problem) {
+      if (!answered) {
+        answered = true;
+        progress.done(index, message, ack, problem);
+      }
+    }
+
+    /** Gives up on the message for now, leaving it to be sent with the file next time. */
+    void undelivered() {
+      if (!answered) {
+        answered = true;
+        progress.undelivered();
+      }
+    }
+  }
+
+  /** Tracks the messages of one file that are still in flight and collects the rejections. */
+  private class FileProgress {
+    private final File file;
+    private int total = 0;
+    private int pending = 0;
+    private int accepted = 0;
+    private int rejected = 0;
+    private int undelivered = 0;
+    private File rejectedFile = null;
+    private File ackFile = null;
+    private Writer rejectedWriter = null;
+    private Writer ackWriter = null;
+
+    FileProgress(File file) {
+      this.file = file;
+    }
+
+    synchronized void started() {
+      total++;
+      pending++;
+    }
+
+    synchronized void done(int index, String message, String ack, String problem) {
+      sendRate.mark();
+      try {
+        if (problem == null) {
+          accepted++;
+          acceptedCount.increment();
+        } else {
+          rejected++;
+          rejectedCount.increment();
+          writeRejected(message, ack, problem);
+        }
+        // after the rejection is written, so a message in the journal is never lost
+        journal.answered(file, index);
+      } catch (IOException e) {
+        Log.error("Couldn't record the answer to a message: " + e.getMessage());
+      } finally {
+        pending--;
+        notifyAll();
+      }
+    }
+
+    synchronized void undelivered() {
+      undelivered++;
+      pending--;
+      notifyAll();
+    }
+
+    synchronized boolean hasUndelivered() {
+      return undelivered > 0;
+    }
+
+    private void writeRejected(String message, String ack, String problem) throws IOException {
+      if (rejectedWriter == null) {
+        File errorDir = new File(requestDir, DIR_ERROR);
+        errorDir.mkdirs();
+        String dateStr = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        String baseName = file.getName().split("\\.")[0] + "-REJECTED-" + dateStr;
+        rejectedFile = new File(errorDir, baseName + ".hl7");
+        ackFile = new File(errorDir, baseName + ".ack");
+        rejectedWriter = openPart(rejectedFile);
+        ackWriter = openPart(ackFile);
+      }
+      rejectedWriter.write(message);
+      rejectedWriter.write('\n');
+      ackWriter.write("# " + recipientId(message) + ": " + problem + "\n");
+      if (ack != null) {
+        ackWriter.write(ack.replace('\r', '\n').trim());
+        ackWriter.write('\n');
+      }
+      ackWriter.write('\n');
+      // the part files are published by the next run if this one stops before the file is done
+      rejectedWriter.flush();
+      ackWriter.flush();
+    }
+
+    synchronized void awaitCompletion() throws InterruptedException {
+      while (pending > 0) {
+        wait();
+      }
+    }
+
+    synchronized void finish() throws IOException {
+      if (rejectedWriter != null) {
+        rejectedWriter.close();
+        ackWriter.close();
+        publish(rejectedFile);
+        publish(ackFile);
+      }
+    }
+  }
+
+  private static Writer openPart(File file) throws IOException {
+    return new BufferedWriter(
+        new OutputStreamWriter(
+            new FileOutputStream(partFile(file)), Charset.defaultCharset()));
+  }
+
+  private static void publish(File file) throws IOException {
+    Files.move(
+        partFile(file).toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static File partFile(File file) {
+    return new File(file.getParentFile(), "." + file.getName() + ".part");
+  }
+}
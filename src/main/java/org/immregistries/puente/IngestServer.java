@@ -0,0 +1,387 @@
+package org.immregistries.puente;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Converts extracts posted over HTTP, for callers that want the results straight back instead of
+ * dropping a file in the data directory. A CSV extract sent with POST to /convert on ingest.host
+ * and ingest.port goes through the same conversion as a file, and the reply is CSV with one
+ * record per row: the row number, "ok" or "error", the error, and the HL7 message. The optional
+ * file parameter (as in /convert?file=pharmacy-0601.csv) names the extract, to pick a column
+ * mapping layout.
+ *
+ * <p>The whole body is saved to a file in ingest.tempDir before the reply starts. Many callers
+ * send all of the body before they read anything, and replying while the body was still coming
+ * would leave both sides blocked on a full socket. Rows are then converted from the file and
+ * results are sent back as they are ready; the pipeline waits when the caller isn't reading the
+ * reply, so a large upload needs no more memory than a small one. The file is deleted when the
+ * request is done, and any left by a run that was killed are removed at startup. When rows are
+ * grouped by patient, the message for a patient is given with the first of their rows that went
+ * into it.
+ *
+ * <p>Up to ingest.threads requests are converted at once; more wait their turn. The validator is
+ * loaded when the server starts and kept for every request after that. Rows are checked against
+ * the duplicate index, the vaccinations files are sending right now, and the rows before them in
+ * the same request, but nothing is added to the index: the caller decides what is sent, and the
+ * index is only updated by the files that are.
+ */
+class IngestServer {
+  private static final String CONTENT_TYPE = "text/csv; charset=utf-8";
+  private static final String DEFAULT_FILE_NAME = "request.csv";
+  private static final String BODY_PREFIX = "puente-body-";
+  private static final File TEMP_DIR = tempDir();
+
+  private static final Metrics.Counter requests = Metrics.counter("ingest.requests");
+  private static final Metrics.Counter failedRequests = Metrics.counter("ingest.requests.failed");
+  private static final Metrics.Histogram requestTime = Metrics.histogram("ingest.request.millis");
+  private static final Metrics.Meter ingestRecords = Metrics.meter("ingest.records");
+  private static final Metrics.Counter duplicateErrors = Metrics.counter("errors.duplicate");
+  private static final AtomicInteger active = new AtomicInteger();
+
+  static {
+    Metrics.gauge(
+        "ingest.active",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            return active.get();
+          }
+        });
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  private IngestServer(HttpServer server, ExecutorService executor) {
+    this.server = server;
+    this.executor = executor;
+  }
+
+  /** Starts the server, or returns null when ingest.port isn't set. */
+  static IngestServer fromSettings() throws IOException {
+    int port = Settings.getInt("ingest.port", 0);
+    if (port <= 0) {
+      return null;
+    }
+    String host = Settings.get("ingest.host", "127.0.0.1");
+    int threads = Settings.getInt("ingest.threads", 8);
+    RecordConverter.load();
+    HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads, new RecordPipeline.DaemonThreadFactory("puente-ingest"));
+    server.createContext(
+        "/convert",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              if ("POST".equals(exchange.getRequestMethod())) {
+                convert(exchange);
+              } else {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "Send the extract with POST\n");
+              }
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+    server.setExecutor(executor);
+    server.start();
+    Log.info("Accepting extracts at http://" + host + ":" + port + "/convert");
+    return new IngestServer(server, executor);
+  }
+
+  /** Stops taking requests and waits for the ones being converted. */
+  void shutdown() throws InterruptedException {
+    server.stop(0);
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  private static void convert(HttpExchange exchange) throws IOException {
+    long startTime = System.nanoTime();
+    requests.increment();
+    active.incrementAndGet();
+    String fileName = parameter(exchange, "file", DEFAULT_FILE_NAME);
+    File body = null;
+    RowReader reader = null;
+    PatientGrouper grouper = null;
+    try {
+      try {
+        body = saveBody(exchange);
+      } catch (IOException e) {
+        failedRequests.increment();
+        Log.warn("Couldn't read the request for " + fileName + ": " + e.getMessage());
+        return;
+      }
+      List<String> headers;
+      try {
+        reader = new CsvRowReader(bodyReader(exchange, body));
+        headers = reader.headers();
+      } catch (IOException | RuntimeException e) {
+        failedRequests.increment();
+        respond(exchange, 400, "Couldn't parse the extract: " + e.getMessage() + "\n");
+        return;
+      }
+      ColumnMapping columns = ColumnMapping.forFile(fileName, headers);
+      StringBuilder missing = new StringBuilder();
+      for (Column required : RecordConverter.REQUIRED_COLUMNS) {
+        if (!columns.isMapped(required)) {
+          missing.append("Missing required column: ").append(required.header).append('\n');
+        }
+      }
+      if (missing.length() > 0) {
+        failedRequests.increment();
+        respond(exchange, 400, missing.toString());
+        return;
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, 0);
+      CSVPrinter printer =
+          new CSVPrinter(
+              new BufferedWriter(
+                  new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)),
+              CSVFormat.DEFAULT.withHeader("Row", "Status", "Error", "Message"));
+      DuplicateIndex duplicates = FileWatchService.duplicates;
+      // only read from the index; the batch is never committed
+      DuplicateIndex.Batch batch = duplicates == null ? null : duplicates.newLookupBatch();
+      ResponseSink sink = new ResponseSink(printer, columns, batch);
+      RecordPipeline pipeline = new RecordPipeline(new RecordConverter(columns), sink);
+      try {
+        Iterator<Row> rows = reader.rows();
+        if (PatientGrouper.ENABLED) {
+          grouper = new PatientGrouper(columns);
+          pipeline.runPatients(grouper.groups(grouper.sort(rows)));
+        } else {
+          pipeline.run(rows);
+        }
+        printer.close();
+      } catch (IOException | RuntimeException e) {
+        // the status has been sent, so the last record of the reply says what went wrong
+        failedRequests.increment();
+        Log.warn(
+            "Request for "
+                + fileName
+                + " failed after "
+                + sink.countTotal
+                + " records: "
+                + e.getMessage());
+        try {
+          printer.printRecord("", "failed", "Conversion stopped: " + e.getMessage(), "");
+          printer.close();
+        } catch (IOException closed) {
+          // the caller has gone away
+        }
+        return;
+      }
+      Log.info(
+          "Converted "
+              + sink.countTotal
+              + " records for "
+              + fileName
+              + " ("
+              + sink.countError
+              + " errors)");
+    } finally {
+      active.decrementAndGet();
+      requestTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+      if (grouper != null) {
+        grouper.close();
+      }
+      try {
+        if (reader != null) {
+          reader.close();
+        }
+      } finally {
+        if (body != null) {
+          body.delete();
+        }
+      }
+    }
+  }
+
+  /** The directory bodies are saved in, cleared of any left by a run of Puente that was killed. */
+  private static File tempDir() {
+    File dir = new File(Settings.get("ingest.tempDir", "puente-ingest"));
+    File[] leftovers = dir.listFiles();
+    if (leftovers != null) {
+      for (File file : leftovers) {
+        if (file.getName().startsWith(BODY_PREFIX)) {
+          file.delete();
+        }
+      }
+    }
+    return dir;
+  }
+
+  /** Reads the whole body into a file, which the caller deletes. */
+  private static File saveBody(HttpExchange exchange) throws IOException {
+    TEMP_DIR.mkdirs();
+    File file = File.createTempFile(BODY_PREFIX, ".csv", TEMP_DIR);
+    try {
+      Files.copy(exchange.getRequestBody(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      file.delete();
+      throw e;
+    }
+    return file;
+  }
+
+  /**
+   * Decodes the saved body in the charset given with its Content-Type, or the platform charset
+   * that extracts are read in when there isn't one.
+   */
+  private static Reader bodyReader(HttpExchange exchange, File body) throws IOException {
+    Charset charset = Charset.defaultCharset();
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (contentType != null) {
+      for (String part : contentType.split(";")) {
+        part = part.trim();
+        if (part.regionMatches(true, 0, "charset=", 0, 8)) {
+          charset = Charset.forName(part.substring(8).replace("\"", "").trim());
+        }
+      }
+    }
+    CharsetDecoder decoder =
+        charset
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    return new InputStreamReader(new FileInputStream(body), decoder);
+  }
+
+  private static String parameter(HttpExchange exchange, String name, String defaultValue)
+      throws UnsupportedEncodingException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int equals = pair.indexOf('=');
+        if (equals > 0 && name.equals(URLDecoder.decode(pair.substring(0, equals), "UTF-8"))) {
+          return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Writes a record of the reply for each row, in the order the rows were read. */
+  private static class ResponseSink implements RecordPipeline.Sink {
+    private final CSVPrinter printer;
+    private final ColumnMapping columns;
+    private final DuplicateIndex.Batch batch;
+    private long countTotal;
+    private long countError;
+
+    ResponseSink(CSVPrinter printer, ColumnMapping columns, DuplicateIndex.Batch batch) {
+      this.printer = printer;
+      this.columns = columns;
+      this.batch = batch;
+    }
+
+    @Override
+    public void accept(Row row, RecordConverter.Result result) throws IOException {
+      if (result.isError()) {
+        writeError(row, result.getError());
+      } else if (isDuplicate(row)) {
+        writeDuplicate(row);
+      } else {
+        write(row, "ok", "", result.getMessage());
+      }
+    }
+
+    @Override
+    public void acceptPatient(List<Row> rows, RecordConverter.PatientResult result)
+        throws IOException {
+      RecordConverter.Result[] results = result.getResults();
+      boolean[] duplicate = new boolean[rows.size()];
+      StringBuilder message = null;
+      for (int i = 0; i < rows.size(); i++) {
+        if (results[i].isError()) {
+          continue;
+        }
+        duplicate[i] = isDuplicate(rows.get(i));
+        if (!duplicate[i]) {
+          if (message == null) {
+            message = new StringBuilder(result.getPatientSegments());
+          }
+          message.append(results[i].getMessage());
+        }
+      }
+      for (int i = 0; i < rows.size(); i++) {
+        Row row = rows.get(i);
+        if (results[i].isError()) {
+          writeError(row, results[i].getError());
+        } else if (duplicate[i]) {
+          writeDuplicate(row);
+        } else if (message != null) {
+          write(row, "ok", "", message.append('\n').toString());
+          message = null;
+        } else {
+          write(row, "ok", "", "");
+        }
+      }
+    }
+
+    private void writeError(Row row, String error) throws IOException {
+      write(row, "error", error, "");
+      countError++;
+    }
+
+    private void writeDuplicate(Row row) throws IOException {
+      writeError(row, FileWatchService.SessionSink.DUPLICATE_ERROR);
+      duplicateErrors.increment();
+    }
+
+    private void write(Row row, String status, String error, String message) throws IOException {
+      printer.printRecord(row.number(), status, error, message);
+      countTotal++;
+      ingestRecords.mark();
+    }
+
+    private boolean isDuplicate(Row row) throws IOException {
+      return batch != null && !batch.add(DuplicateIndex.fingerprint(row, columns));
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package org.immregistries.puente;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Level-based logging that writes from a background thread, so the file workers and pipeline
+ * threads never wait on the console. Warnings and errors go to standard error, everything else to
+ * standard out. The queue is bounded and callers block when it is full rather than lose lines.
+ *
+ * <p>The level is set with log.level (ERROR, WARN, INFO or DEBUG). Each HL7 message is only
+ * echoed at DEBUG.
+ */
+final class Log {
+  enum Level {
+    ERROR,
+    WARN,
+    INFO,
+    DEBUG
+  }
+
+  private static final Level LEVEL = level(Settings.get("log.level", Level.INFO.name()));
+  private static final BlockingQueue<Entry> queue =
+      new ArrayBlockingQueue<Entry>(Settings.getInt("log.queueSize", 8192));
+  private static final Object writeLock = new Object();
+
+  static {
+    Thread writer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                List<Entry> entries = new ArrayList<Entry>();
+                for (; ; ) {
+                  try {
+                    entries.add(queue.take());
+                  } catch (InterruptedException ie) {
+                    return;
+                  }
+                  queue.drainTo(entries);
+                  write(entries);
+                  entries.clear();
+                }
+              }
+            },
+            "puente-log");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    flush();
+                  }
+                },
+                "puente-log-flush"));
+  }
+
+  private Log() {}
+
+  private static Level level(String name) {
+    try {
+      return Level.valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("Setting log.level is not a level: " + name);
+      return Level.INFO;
+    }
+  }
+
+  static boolean isEnabled(Level level) {
+    return level.compareTo(LEVEL) <= 0;
+  }
+
+  static boolean isDebugEnabled() {
+    return isEnabled(Level.DEBUG);
+  }
+
+  static void error(String message) {
+    log(Level.ERROR, message, null);
+  }
+
+  static void error(String message, Throwable thrown) {
+    log(Level.ERROR, message, thrown);
+  }
+
+  static void warn(String message) {
+    log(Level.WARN, message, null);
+  }
+
+  static void info(String message) {
+    log(Level.INFO, message, null);
+  }
+
+  static void debug(String message) {
+    log(Level.DEBUG, message, null);
+  }
+
+  private static void log(Level level, String message, Throwable thrown) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    if (thrown != null) {
+      StringWriter trace = new StringWriter();
+      thrown.printStackTrace(new PrintWriter(trace));
+      message = message + System.lineSeparator() + trace.toString().trim();
+    }
+    Entry entry =
+        new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(), message);
+    try {
+      queue.put(entry);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      List<Entry> entries = new ArrayList<Entry>(1);
+      entries.add(entry);
+      write(entries);
+    }
+  }
+
+  /** Writes out whatever is still queued, for use before the JVM exits. */
+  static void flush() {
+    List<Entry> entries = new ArrayList<Entry>();
+    queue.drainTo(entries);
+    write(entries);
+  }
+
+  private static void write(List<Entry> entries) {
+    synchronized (writeLock) {
+      SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+      for (Entry entry : entries) {
+        PrintStream out = entry.level.compareTo(Level.WARN) <= 0 ? System.err : System.out;
+        out.println(
+            format.format(new Date(entry.time))
+                + " "
+                + entry.level
+                + " ["
+                + entry.thread
+                + "] "
+                + entry.message);
+      }
+      System.out.flush();
+    }
+  }
+
+  private static class Entry {
+    private final Level level;
+    private final long time;
+    private final String thread;
+    private final String message;
+
+    Entry(Level level, long time, String thread, String message) {
+      this.level = level;
+      this.time = time;
+      this.thread = thread;
+      this.message = message;
+    }
+  }
+}
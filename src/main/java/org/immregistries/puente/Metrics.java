@@ -0,0 +1,256 @@
+package org.immregistries.puente;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, latency histograms, rates and gauges for the whole process, looked up by name. Hot
+ * paths should look a metric up once and keep it in a static field; recording is a few atomic
+ * adds and never blocks.
+ *
+ * <p>Names use dots, and the unit is the last part of the name where there is one (for example
+ * stage.validate.nanos). {@link #snapshot} flattens everything into name/value pairs for the JMX
+ * bean and the metrics endpoint.
+ */
+final class Metrics {
+  private static final long TICK_SECONDS = 5;
+
+  private static final ConcurrentMap<String, Counter> counters =
+      new ConcurrentHashMap<String, Counter>();
+  private static final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Meter> meters =
+      new ConcurrentHashMap<String, Meter>();
+  private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+  static {
+    ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            new RecordPipeline.DaemonThreadFactory("puente-metrics"));
+    ticker.scheduleAtFixedRate(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (Meter meter : meters.values()) {
+              meter.tick();
+            }
+          }
+        },
+        TICK_SECONDS,
+        TICK_SECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  private Metrics() {}
+
+  /** A value read when the metrics are reported, such as the length of a queue. */
+  interface Gauge {
+    long value();
+  }
+
+  static Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      Counter existing = counters.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  static Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      Histogram existing = histograms.putIfAbsent(name, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  static Meter meter(String name) {
+    Meter meter = meters.get(name);
+    if (meter == null) {
+      meter = new Meter();
+      Meter existing = meters.putIfAbsent(name, meter);
+      if (existing != null) {
+        meter = existing;
+      }
+    }
+    return meter;
+  }
+
+  /** Registers a gauge, replacing any earlier gauge with the same name. */
+  static void gauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /** Every metric as name/value pairs, sorted by name. */
+  static SortedMap<String, Number> snapshot() {
+    SortedMap<String, Number> values = new TreeMap<String, Number>();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().get());
+    }
+    for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+      Meter meter = entry.getValue();
+      values.put(entry.getKey() + ".count", meter.count());
+      values.put(entry.getKey() + ".perSecond1m", meter.rate());
+    }
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      Histogram histogram = entry.getValue();
+      String name = entry.getKey();
+      values.put(name + ".count", histogram.count());
+      values.put(name + ".sum", histogram.sum());
+      values.put(name + ".max", histogram.max());
+      values.put(name + ".p50", histogram.percentile(0.50));
+      values.put(name + ".p90", histogram.percentile(0.90));
+      values.put(name + ".p99", histogram.percentile(0.99));
+    }
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().value());
+    }
+    return values;
+  }
+
+  static class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    void increment() {
+      value.incrementAndGet();
+    }
+
+    void add(long n) {
+      value.addAndGet(n);
+    }
+
+    long get() {
+      return value.get();
+    }
+  }
+
+  /**
+   * A count of events with a one minute moving average of their rate, updated every few seconds.
+   */
+  static class Meter {
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+    private final AtomicLong count = new AtomicLong();
+    private long lastCount = 0;
+    private volatile double rate = -1;
+
+    void mark() {
+      count.incrementAndGet();
+    }
+
+    void mark(long n) {
+      count.addAndGet(n);
+    }
+
+    long count() {
+      return count.get();
+    }
+
+    double rate() {
+      return Math.max(rate, 0);
+    }
+
+    private void tick() {
+      long current = count.get();
+      double instant = (current - lastCount) / (double) TICK_SECONDS;
+      lastCount = current;
+      rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+    }
+  }
+
+  /**
+   * Records non-negative values, such as latencies in nanoseconds, into log-linear buckets: each
+   * power of two is split into eight buckets, so a percentile is within 12.5% of the true value.
+   */
+  static class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      buckets.incrementAndGet(bucket(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+
+    /** Records the time since startNanos, taken from {@link System#nanoTime}. */
+    void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+
+    long count() {
+      return count.get();
+    }
+
+    long sum() {
+      return sum.get();
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    /** The smallest value in the bucket holding the given fraction of the recorded values. */
+    long percentile(double fraction) {
+      long total = count.get();
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(total * fraction);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= Math.max(rank, 1)) {
+          return Math.min(lowerBound(i), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    private static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+  }
+}
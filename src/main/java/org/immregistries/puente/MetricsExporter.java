@@ -0,0 +1,146 @@
+package org.immregistries.puente;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Publishes {@link Metrics} two ways: as the read-only attributes of the JMX bean
+ * org.immregistries.puente:type=Metrics, and as plain text lines of "name value" from a small
+ * HTTP server bound to metrics.host and metrics.port (127.0.0.1:8095 by default). Setting
+ * metrics.port to 0 turns the endpoint off.
+ */
+class MetricsExporter {
+  static final String OBJECT_NAME = "org.immregistries.puente:type=Metrics";
+
+  private MetricsExporter() {}
+
+  static void start() {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(new MetricsBean(), new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      Log.warn("Couldn't register " + OBJECT_NAME + ": " + e.getMessage());
+    }
+    int port = Settings.getInt("metrics.port", 8095);
+    if (port <= 0) {
+      return;
+    }
+    String host = Settings.get("metrics.host", "127.0.0.1");
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+      server.createContext(
+          "/metrics",
+          new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+              byte[] body = render(Metrics.snapshot()).getBytes(StandardCharsets.UTF_8);
+              exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+              exchange.sendResponseHeaders(200, body.length);
+              OutputStream out = exchange.getResponseBody();
+              try {
+                out.write(body);
+              } finally {
+                out.close();
+              }
+            }
+          });
+      server.setExecutor(
+          Executors.newSingleThreadExecutor(
+              new RecordPipeline.DaemonThreadFactory("puente-metrics-http")));
+      server.start();
+      Log.info("Metrics at http://" + host + ":" + port + "/metrics");
+    } catch (IOException e) {
+      Log.warn("Couldn't start metrics endpoint on " + host + ":" + port + ": " + e);
+    }
+  }
+
+  static String render(SortedMap<String, Number> values) {
+    StringBuilder text = new StringBuilder(values.size() * 48);
+    for (Map.Entry<String, Number> entry : values.entrySet()) {
+      text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+    }
+    return text.toString();
+  }
+
+  /** Exposes each metric from the snapshot as an attribute, so it shows up in JConsole. */
+  private static class MetricsBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+      Number value = Metrics.snapshot().get(name);
+      if (value == null) {
+        throw new AttributeNotFoundException(name);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+      SortedMap<String, Number> values = Metrics.snapshot();
+      AttributeList list = new AttributeList();
+      for (String name : names) {
+        Number value = values.get(name);
+        if (value != null) {
+          list.add(new Attribute(name, value));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+      throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(action);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+      for (Map.Entry<String, Number> entry : Metrics.snapshot().entrySet()) {
+        attributes.add(
+            new MBeanAttributeInfo(
+                entry.getKey(),
+                entry.getValue().getClass().getName(),
+                entry.getKey(),
+                true,
+                false,
+                false));
+      }
+      return new MBeanInfo(
+          MetricsBean.class.getName(),
+          "Puente conversion and sending metrics",
+          attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+          null,
+          new MBeanOperationInfo[0],
+          null);
+    }
+  }
+}
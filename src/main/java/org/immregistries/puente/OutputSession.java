@@ -0,0 +1,465 @@
+package org.immregistries.puente;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The outputs produced while converting one input file: the HL7 request file and the ready and
+ * error CSV files. Each output is opened the first time it is written to and kept open for the
+ * rest of the file. Data is written to a hidden ".part" file next to the final name and only
+ * renamed into place by {@link #commit()}, so nothing downstream ever sees a half-written file.
+ *
+ * <p>HL7 output can optionally be wrapped in an FHS/BHS ... BTS/FTS batch envelope, rolled over to
+ * a new file after a number of messages or characters, and gzip compressed. Rolled over files are
+ * closed as soon as they are full, so memory use does not depend on the size of the input.
+ *
+ * <p>{@link #sync} flushes the open outputs to disk and records their lengths in a journal
+ * checkpoint. After a crash {@link #resume} cuts the part files back to those lengths and carries
+ * on appending, so nothing written after the checkpoint is kept twice.
+ */
+class OutputSession implements Closeable {
+  private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  private static final boolean HL7_BATCH = Settings.getBoolean("output.hl7.batch", false);
+  private static final long HL7_MAX_MESSAGES = Settings.getLong("output.hl7.maxMessages", 0);
+  private static final long HL7_MAX_BYTES = Settings.getLong("output.hl7.maxBytes", 0);
+  private static final boolean HL7_GZIP = Settings.getBoolean("output.hl7.gzip", false);
+  // a plain rename can briefly show a reader a half-renamed file, so it has to be asked for
+  private static final boolean ALLOW_NON_ATOMIC_RENAME =
+      Settings.getBoolean("output.allowNonAtomicRename", false);
+
+  private final File baseDir;
+  private final File dataDir;
+  private final String baseName;
+  private final String hl7BaseName;
+  private final String dateStr;
+  private final List<String> headers;
+
+  private Output hl7Output = null;
+  private Output readyOutput = null;
+  private Output errorOutput = null;
+  private final List<Output> closedOutputs = new ArrayList<Output>();
+  private int hl7FileCount = 0;
+  private long hl7MessageCount = 0;
+  private long hl7CharCount = 0;
+  private boolean committed = false;
+
+  /**
+   * Starts a session for the named input. Outputs go to the request, data/ready and data/error
+   * directories under the base directory. The input's name is its path under data, and the ready
+   * and error files of an input in a sender's directory (such as "acme/extract.csv") go to the
+   * ready and error directories in there, with the HL7 files named after the sender.
+   */
+  OutputSession(File baseDir, String inputName, List<String> headers, String dateStr) {
+    this.baseDir = baseDir;
+    int slash = inputName.lastIndexOf('/');
+    File dir = new File(baseDir, FileWatchService.DIR_DATA);
+    this.dataDir = slash < 0 ? dir : new File(dir, inputName.substring(0, slash));
+    this.baseName = inputName.substring(slash + 1).split("\\.")[0];
+    this.hl7BaseName = slash < 0 ? baseName : inputName.substring(0, slash) + "-" + baseName;
+    this.dateStr = dateStr;
+    this.headers = headers;
+  }
+
+  /** The timestamp that goes into the output file names of a new session. */
+  static String timestamp() {
+    return new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+  }
+
+  /** Reopens the outputs as they were at the checkpoint, dropping anything written after it. */
+  void resume(CheckpointJournal.Checkpoint checkpoint) throws IOException {
+    hl7FileCount = checkpoint.hl7FileCount;
+    for (int i = 1; i < hl7FileCount; i++) {
+      Output output = new Output(hl7File(i));
+      if (!output.partFile.exists()) {
+        throw new NoSuchFileException(output.partFile.getPath());
+      }
+      closedOutputs.add(output);
+    }
+    if (checkpoint.hl7Length >= 0) {
+      hl7Output =
+          new Output(hl7File(hl7FileCount), bufferSize("hl7"), HL7_GZIP, checkpoint.hl7Length);
+      hl7MessageCount = checkpoint.hl7MessageCount;
+      hl7CharCount = checkpoint.hl7CharCount;
+    }
+    if (checkpoint.readyLength >= 0) {
+      readyOutput = new Output(readyFile(), bufferSize("ready"), false, checkpoint.readyLength);
+    }
+    if (checkpoint.errorLength >= 0) {
+      errorOutput = new Output(errorFile(), bufferSize("error"), false, checkpoint.errorLength);
+    }
+  }
+
+  void writeMessage(String message) throws IOException {
+    if (HL7_BATCH) {
+      // messages in a batch are not separated by blank lines
+      int end = message.length();
+      while (end > 1 && message.charAt(end - 1) == '\n' && message.charAt(end - 2) == '\n') {
+        end--;
+      }
+      message = message.substring(0, end);
+    }
+    if (hl7Output != null && isHl7Full(message.length())) {
+      closeHl7();
+    }
+    if (hl7Output == null) {
+      openHl7();
+    }
+    hl7Output.writer.write(message);
+    hl7MessageCount++;
+    hl7CharCount += message.length();
+  }
+
+  private boolean isHl7Full(int nextLength) {
+    if (HL7_MAX_MESSAGES > 0 && hl7MessageCount >= HL7_MAX_MESSAGES) {
+      return true;
+    }
+    return HL7_MAX_BYTES > 0 && hl7MessageCount > 0 && hl7CharCount + nextLength > HL7_MAX_BYTES;
+  }
+
+  private File hl7File(int number) {
+    String fileName = hl7BaseName + "-" + dateStr;
+    if (number > 1) {
+      fileName += "-" + number;
+    }
+    fileName += HL7_GZIP ? ".hl7.gz" : ".hl7";
+    return new File(new File(baseDir, FileWatchService.DIR_REQUEST), fileName);
+  }
+
+  private File readyFile() {
+    return new File(
+        dataDir(FileWatchService.DIR_DATA_READY), baseName + "-READY-" + dateStr + ".csv");
+  }
+
+  private File errorFile() {
+    return new File(
+        dataDir(FileWatchService.DIR_DATA_ERROR), baseName + "-ERROR-" + dateStr + ".csv");
+  }
+
+  private File dataDir(String name) {
+    return new File(dataDir, name);
+  }
+
+  private void openHl7() throws IOException {
+    hl7FileCount++;
+    File file = hl7File(hl7FileCount);
+    String fileName = file.getName();
+    hl7Output = new Output(file, bufferSize("hl7"), HL7_GZIP, -1);
+    hl7MessageCount = 0;
+    hl7CharCount = 0;
+    if (HL7_BATCH) {
+      String controlId = dateStr + hl7FileCount;
+      String header =
+          "FHS|^~\\&|||||"
+              + dateStr
+              + "||"
+              + fileName
+              + "|||"
+              + controlId
+              + "|\n"
+              + "BHS|^~\\&|||||"
+              + dateStr
+              + "||||"
+              + controlId
+              + "|\n";
+      hl7Output.writer.write(header);
+      hl7CharCount += header.length();
+    }
+  }
+
+  private void closeHl7() throws IOException {
+    if (HL7_BATCH) {
+      hl7Output.writer.write("BTS|" + hl7MessageCount + "|\nFTS|1|\n");
+    }
+    hl7Output.close();
+    closedOutputs.add(hl7Output);
+    hl7Output = null;
+  }
+
+  void writeReady(Row row) throws IOException {
+    if (readyOutput == null) {
+      readyOutput = new Output(readyFile(), bufferSize("ready"), false, -1);
+      Writer w = readyOutput.writer;
+      for (String s : headers) {
+        w.write(s);
+        w.write(',');
+      }
+      w.write('\n');
+    }
+    writeRow(readyOutput.writer, row);
+  }
+
+  void writeError(String errorString, Row row) throws IOException {
+    if (errorOutput == null) {
+      errorOutput = new Output(errorFile(), bufferSize("error"), false, -1);
+      Writer w = errorOutput.writer;
+      w.write("Error");
+      for (String s : headers) {
+        w.write(',');
+        w.write(s);
+      }
+      w.write('\n');
+    }
+    errorOutput.writer.write(errorString);
+    errorOutput.writer.write(',');
+    writeRow(errorOutput.writer, row);
+  }
+
+  private static void writeRow(Writer w, Row row) throws IOException {
+    for (int i = 0; i < row.size(); i++) {
+      if (i > 0) {
+        w.write(',');
+      }
+      w.write(row.get(i));
+    }
+    w.write('\n');
+  }
+
+  private static int bufferSize(String output) {
+    return Settings.getInt(
+        "output." + output + ".bufferSize",
+        Settings.getInt("output.bufferSize", DEFAULT_BUFFER_SIZE));
+  }
+
+  /** Flushes every open output to disk and records how far each one got in the checkpoint. */
+  void sync(CheckpointJournal.Checkpoint checkpoint) throws IOException {
+    checkpoint.hl7FileCount = hl7FileCount;
+    checkpoint.hl7MessageCount = hl7MessageCount;
+    checkpoint.hl7CharCount = hl7CharCount;
+    checkpoint.hl7Length = hl7Output == null ? -1 : hl7Output.sync();
+    checkpoint.readyLength = readyOutput == null ? -1 : readyOutput.sync();
+    checkpoint.errorLength = errorOutput == null ? -1 : errorOutput.sync();
+  }
+
+  /** Flushes, syncs and closes every output, leaving them ready to be published. */
+  void complete(CheckpointJournal.Checkpoint checkpoint) throws IOException {
+    if (hl7Output != null) {
+      closeHl7();
+    }
+    for (Output output : outputs()) {
+      if (output != null) {
+        output.close();
+      }
+    }
+    checkpoint.hl7FileCount = hl7FileCount;
+  }
+
+  /** Flushes and syncs every output, then renames each one to its final name. */
+  void commit() throws IOException {
+    if (hl7Output != null) {
+      closeHl7();
+    }
+    for (Output output : outputs()) {
+      if (output != null) {
+        output.close();
+        output.publish();
+      }
+    }
+    committed = true;
+  }
+
+  /**
+   * Publishes whatever part files are left from a session that completed but was interrupted
+   * while its outputs were being renamed.
+   */
+  void publishRemaining(int hl7FileCount) throws IOException {
+    for (Output output : leftovers(hl7FileCount)) {
+      if (output.partFile.exists()) {
+        output.publish();
+      }
+    }
+    committed = true;
+  }
+
+  /** Removes whatever part files are left from an interrupted session that can't be resumed. */
+  void discardRemaining(int hl7FileCount) throws IOException {
+    for (Output output : leftovers(hl7FileCount)) {
+      output.discard();
+    }
+  }
+
+  private List<Output> leftovers(int hl7FileCount) {
+    List<Output> outputs = new ArrayList<Output>();
+    for (int i = 1; i <= hl7FileCount; i++) {
+      outputs.add(new Output(hl7File(i)));
+    }
+    outputs.add(new Output(readyFile()));
+    outputs.add(new Output(errorFile()));
+    return outputs;
+  }
+
+  /** Releases the outputs. If the session was never committed the partial files are removed. */
+  @Override
+  public void close() throws IOException {
+    if (committed) {
+      return;
+    }
+    for (Output output : outputs()) {
+      if (output != null) {
+        output.discard();
+      }
+    }
+  }
+
+  private List<Output> outputs() {
+    List<Output> outputs = new ArrayList<Output>(closedOutputs);
+    outputs.add(hl7Output);
+    outputs.add(readyOutput);
+    outputs.add(errorOutput);
+    return outputs;
+  }
+
+  private static class Output {
+    private final File file;
+    private final File partFile;
+    private final FileChannel channel;
+    private final int bufferSize;
+    private final boolean compress;
+    private GZIPOutputStream gzip;
+    private Writer writer;
+    private boolean closed = false;
+
+    /**
+     * Opens the part file for writing. A resume length of -1 starts it empty; otherwise the
+     * existing part file is cut back to that length and written after it.
+     */
+    Output(File file, int bufferSize, boolean compress, long resumeLength) throws IOException {
+      File directory = file.getParentFile();
+      if (!directory.exists()) {
+        directory.mkdirs();
+      }
+      this.file = file;
+      this.partFile = new File(directory, "." + file.getName() + ".part");
+      this.bufferSize = bufferSize;
+      this.compress = compress;
+      if (resumeLength < 0) {
+        this.channel =
+            FileChannel.open(
+                partFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+      } else {
+        this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+        if (channel.size() < resumeLength) {
+          channel.close();
+          throw new IOException(partFile + " is shorter than its checkpoint");
+        }
+        channel.truncate(resumeLength);
+        channel.position(resumeLength);
+      }
+      openWriter();
+    }
+
+    /** An output whose part file was written and closed by an earlier run. */
+    Output(File file) {
+      this.file = file;
+      this.partFile = new File(file.getParentFile(), "." + file.getName() + ".part");
+      this.channel = null;
+      this.bufferSize = 0;
+      this.compress = false;
+      this.closed = true;
+    }
+
+    private void openWriter() throws IOException {
+      OutputStream out = Channels.newOutputStream(channel);
+      if (compress) {
+        gzip = new GZIPOutputStream(out, bufferSize);
+        out = gzip;
+      } else {
+        gzip = null;
+      }
+      this.writer =
+          new BufferedWriter(
+              new OutputStreamWriter(
+                  out,
+                  Charset.defaultCharset()
+                      .newEncoder()
+                      .onMalformedInput(CodingErrorAction.REPLACE)
+                      .onUnmappableCharacter(CodingErrorAction.REPLACE)),
+              bufferSize);
+    }
+
+    /**
+     * Flushes and syncs the part file and returns its length. A compressed output ends its gzip
+     * member here and starts a new one, so the file can later be cut back to this length and
+     * appended to; readers see the members as one stream.
+     */
+    long sync() throws IOException {
+      writer.flush();
+      if (gzip != null) {
+        gzip.finish();
+      }
+      channel.force(false);
+      long length = channel.position();
+      if (gzip != null) {
+        openWriter();
+      }
+      return length;
+    }
+
+    /** Flushes and syncs the part file and closes it. */
+    void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      writer.flush();
+      if (gzip != null) {
+        gzip.finish();
+      }
+      channel.force(true);
+      writer.close();
+      closed = true;
+    }
+
+    /**
+     * Renames the closed part file to its final name. If the file system can't rename it in one
+     * step the output isn't published, unless output.allowNonAtomicRename says a plain rename will
+     * do.
+     */
+    void publish() throws IOException {
+      try {
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        if (!ALLOW_NON_ATOMIC_RENAME) {
+          throw new IOException(
+              "Can't rename "
+                  + partFile
+                  + " into place atomically; set output.allowNonAtomicRename to rename it anyway",
+              e);
+        }
+        Log.warn("Renaming " + partFile + " into place without an atomic move");
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    void discard() throws IOException {
+      try {
+        if (!closed) {
+          writer.close();
+        }
+      } finally {
+        Files.deleteIfExists(partFile.toPath());
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package org.immregistries.puente;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Brings the rows of each patient together so they can be sent as one message. Rows are put in
+ * order of Recipient ID, keeping file order for the rows of one patient, and then handed out a
+ * patient at a time.
+ *
+ * <p>Up to group.memoryRows rows are sorted in memory. When a file has more, each memory-full is
+ * sorted and written to a run file in group.tempDir, and the runs are merged as the rows are read
+ * back, so the heap holds one memory-full at most however large the file is. The run files are
+ * removed by {@link #close()}, and any left by a run that was killed are removed at startup.
+ */
+class PatientGrouper implements Closeable {
+  static final boolean ENABLED = Settings.getBoolean("output.groupByPatient", false);
+
+  private static final int MEMORY_ROWS = Settings.getInt("group.memoryRows", 200000);
+  private static final int MAX_DOSES = Settings.getInt("group.maxDoses", 50);
+  private static final String RUN_PREFIX = "puente-run-";
+  private static final File TEMP_DIR = tempDir();
+  private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+  private static final Metrics.Counter runsWritten = Metrics.counter("group.runs");
+
+  private final ColumnMapping columns;
+  private final Comparator<Row> order;
+  private final List<File> runFiles = new ArrayList<File>();
+  private final List<DataInputStream> runInputs = new ArrayList<DataInputStream>();
+
+  PatientGrouper(final ColumnMapping columns) {
+    this.columns = columns;
+    this.order =
+        new Comparator<Row>() {
+          @Override
+          public int compare(Row a, Row b) {
+            int c =
+                columns.get(a, Column.RECIPIENT_ID).compareTo(columns.get(b, Column.RECIPIENT_ID));
+            if (c != 0) {
+              return c;
+            }
+            return a.number() < b.number() ? -1 : (a.number() == b.number() ? 0 : 1);
+          }
+        };
+  }
+
+  /** The run directory, cleared of any runs left behind by a run of Puente that was killed. */
+  private static File tempDir() {
+    File dir = new File(Settings.get("group.tempDir", "puente-sort"));
+    File[] leftovers = dir.listFiles();
+    if (leftovers != null) {
+      for (File file : leftovers) {
+        if (file.getName().startsWith(RUN_PREFIX)) {
+          file.delete();
+        }
+      }
+    }
+    return dir;
+  }
+
+  /** The rows in order of Recipient ID, then file order. */
+  Iterator<Row> sort(Iterator<Row> rows) throws IOException {
+    List<Row> buffer = new ArrayList<Row>();
+    while (rows.hasNext()) {
+      buffer.add(rows.next());
+      if (buffer.size() >= MEMORY_ROWS) {
+        writeRun(buffer);
+        buffer.clear();
+      }
+    }
+    Collections.sort(buffer, order);
+    if (runFiles.isEmpty()) {
+      return buffer.iterator();
+    }
+    if (!buffer.isEmpty()) {
+      writeRun(buffer);
+      buffer.clear();
+    }
+    return merge();
+  }
+
+  /**
+   * Collects sorted rows into one list per patient, of at most group.maxDoses rows. Rows without a
+   * Recipient ID are not grouped.
+   */
+  Iterator<List<Row>> groups(final Iterator<Row> sorted) {
+    return new Iterator<List<Row>>() {
+      private Row next = sorted.hasNext() ? sorted.next() : null;
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public List<Row> next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        List<Row> group = new ArrayList<Row>();
+        String recipientId = columns.get(next, Column.RECIPIENT_ID);
+        do {
+          group.add(next);
+          next = sorted.hasNext() ? sorted.next() : null;
+        } while (next != null
+            && !"".equals(recipientId)
+            && group.size() < MAX_DOSES
+            && recipientId.equals(columns.get(next, Column.RECIPIENT_ID)));
+        return group;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private void writeRun(List<Row> rows) throws IOException {
+    Collections.sort(rows, order);
+    TEMP_DIR.mkdirs();
+    File file = File.createTempFile(RUN_PREFIX, ".tmp", TEMP_DIR);
+    runFiles.add(file);
+    DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE));
+    try {
+      for (Row row : rows) {
+        out.writeLong(row.number());
+        out.writeInt(row.size());
+        for (int i = 0; i < row.size(); i++) {
+          String value = row.get(i);
+          if (value == null) {
+            out.writeInt(-1);
+          } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+    runsWritten.increment();
+  }
+
+  private static Row readRow(DataInputStream in) throws IOException {
+    long number;
+    try {
+      number = in.readLong();
+    } catch (EOFException e) {
+      return null;
+    }
+    String[] values = new String[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      int length = in.readInt();
+      if (length >= 0) {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        values[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+    }
+    return Row.of(number, values);
+  }
+
+  /** Merges the sorted runs, reading the next row of a run only once its last one is used. */
+  private Iterator<Row> merge() throws IOException {
+    final PriorityQueue<Run> heads =
+        new PriorityQueue<Run>(
+            runFiles.size(),
+            new Comparator<Run>() {
+              @Override
+              public int compare(Run a, Run b) {
+                return order.compare(a.head, b.head);
+              }
+            });
+    for (File file : runFiles) {
+      DataInputStream in =
+          new DataInputStream(
+              new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+      runInputs.add(in);
+      Row head = readRow(in);
+      if (head != null) {
+        heads.add(new Run(in, head));
+      }
+    }
+    return new Iterator<Row>() {
+      @Override
+      public boolean hasNext() {
+        return !heads.isEmpty();
+      }
+
+      @Override
+      public Row next() {
+        Run run = heads.poll();
+        if (run == null) {
+          throw new NoSuchElementException();
+        }
+        Row row = run.head;
+        try {
+          run.head = readRow(run.in);
+        } catch (IOException e) {
+          throw new IllegalStateException("Couldn't read back sorted rows", e);
+        }
+        if (run.head != null) {
+          heads.add(run);
+        }
+        return row;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (DataInputStream in : runInputs) {
+      in.close();
+    }
+    for (File file : runFiles) {
+      file.delete();
+    }
+  }
+
+  private static class Run {
+    private final DataInputStream in;
+    private Row head;
+
+    Run(DataInputStream in, Row head) {
+      this.in = in;
+      this.head = head;
+    }
+  }
+}
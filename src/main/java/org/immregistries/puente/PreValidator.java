@@ -0,0 +1,112 @@
+package org.immregistries.puente;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Cheap checks run before a record is mapped and given to the MQE validator. A record that fails
+ * here goes straight to the error file, so rows with missing values, malformed dates or unknown
+ * codes never pay for building and validating a message.
+ */
+class PreValidator {
+  private static final Set<String> ACCEPTABLE_REFUSAL_CODES =
+      new HashSet<String>(Arrays.asList("", "YES", "NO", "Y", "N"));
+
+  // the earliest year taken as a real date of birth or vaccination
+  static final int MIN_YEAR = Settings.getInt("precheck.minYear", 1850);
+  private static final boolean CHECK_EXPIRATION_DATE =
+      Settings.getBoolean("precheck.expirationDate", true);
+
+  private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  private final CodeIndex codes;
+
+  PreValidator(CodeIndex codes) {
+    this.codes = codes;
+  }
+
+  /** Returns the reason the record is rejected, or null if it should go on to the validator. */
+  String check(Row row, ColumnMapping columns) {
+    for (Column required : RecordConverter.REQUIRED_COLUMNS) {
+      if ("".equals(columns.get(row, required))) {
+        return "Missing required value: " + required.header;
+      }
+    }
+
+    String refusal = columns.get(row, Column.VACCINATION_REFUSAL);
+    if (!ACCEPTABLE_REFUSAL_CODES.contains(refusal.toUpperCase())) {
+      return "Unrecognized refusal code";
+    }
+
+    String error = checkDate(row, columns, Column.RECIPIENT_DATE_OF_BIRTH, true);
+    if (error == null) {
+      error = checkDate(row, columns, Column.ADMINISTRATION_DATE, true);
+    }
+    if (error == null && CHECK_EXPIRATION_DATE) {
+      error = checkDate(row, columns, Column.VACCINE_EXPIRATION_DATE, false);
+    }
+    if (error == null) {
+      error = checkCode(row, columns, Column.RECIPIENT_SEX, CodeIndex.SEX);
+    }
+    if (error == null) {
+      error = checkCode(row, columns, Column.CVX, CodeIndex.CVX);
+    }
+    if (error == null) {
+      error = checkCode(row, columns, Column.NDC, CodeIndex.NDC);
+    }
+    if (error == null) {
+      error = checkCode(row, columns, Column.MVX, CodeIndex.MVX);
+    }
+    if (error == null) {
+      error = checkCode(row, columns, Column.RECIPIENT_ETHNICITY, CodeIndex.ETHNICITY);
+    }
+    for (int i = 0; error == null && i < Column.RACES.length; i++) {
+      error = checkCode(row, columns, Column.RACES[i], CodeIndex.RACE);
+    }
+    return error;
+  }
+
+  private static String checkDate(
+      Row row, ColumnMapping columns, Column column, boolean required) {
+    String value = columns.get(row, column);
+    if ((required || !"".equals(value)) && !isDate(value)) {
+      return "Invalid date: " + column.header;
+    }
+    return null;
+  }
+
+  private String checkCode(
+      Row row, ColumnMapping columns, Column column, String codeSet) {
+    String value = columns.get(row, column);
+    if (!"".equals(value) && !codes.isKnown(codeSet, value)) {
+      return "Unrecognized code in " + column.header;
+    }
+    return null;
+  }
+
+  /** Checks for a real calendar date in the fixed-width form yyyyMMdd, no earlier than MIN_YEAR. */
+  static boolean isDate(String s) {
+    if (s.length() != 8) {
+      return false;
+    }
+    for (int i = 0; i < 8; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    int year =
+        (s.charAt(0) - '0') * 1000
+            + (s.charAt(1) - '0') * 100
+            + (s.charAt(2) - '0') * 10
+            + (s.charAt(3) - '0');
+    int month = (s.charAt(4) - '0') * 10 + (s.charAt(5) - '0');
+    int day = (s.charAt(6) - '0') * 10 + (s.charAt(7) - '0');
+    if (year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]) {
+      return false;
+    }
+    boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    return month != 2 || day <= 28 || leapYear;
+  }
+}
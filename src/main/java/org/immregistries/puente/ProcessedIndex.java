@@ -0,0 +1,211 @@
+package org.immregistries.puente;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the input files that have been converted, by their path under data, size, modified
+ * time and a SHA-256 of their contents, so a file is never converted twice however it is noticed:
+ * by a watch event, by the scan after events were lost, or because it was left behind when it
+ * couldn't be archived. A file with the same name as one converted before counts as the same file
+ * if its size and modified time match, or, when only the modified time differs, if its contents
+ * hash the same. The hash of a converted file is usually worked out while it is read for
+ * conversion; otherwise hashing reads the file, so it is only done when the cheap checks can't
+ * tell.
+ *
+ * <p>A file that couldn't be converted at all, such as one missing a required column, is recorded
+ * as rejected. It is left where it is and not tried again until its size or modified time changes.
+ *
+ * <p>Each file is appended as one line and synced. On startup the index is read back, entries
+ * older than processed.retainDays are dropped, and the rest are written out again, so the index
+ * does not grow without bound.
+ */
+class ProcessedIndex implements Closeable {
+  private static final long RETAIN_MILLIS =
+      Settings.getLong("processed.retainDays", 7) * 24L * 60 * 60 * 1000;
+
+  static final String CONVERTED = "converted";
+  static final String REJECTED = "rejected";
+
+  private final FileChannel channel;
+  private final Map<String, Entry> entries;
+
+  private ProcessedIndex(FileChannel channel, Map<String, Entry> entries) {
+    this.channel = channel;
+    this.entries = entries;
+  }
+
+  static ProcessedIndex open(File file) throws IOException {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    long oldest = System.currentTimeMillis() - RETAIN_MILLIS;
+    if (file.exists()) {
+      String[] lines =
+          new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+      // the last element is empty, or a torn entry from a crash in the middle of an append
+      for (int i = 0; i < lines.length - 1; i++) {
+        Entry entry = Entry.parse(lines[i]);
+        if (entry != null && entry.recordedAt >= oldest) {
+          entries.put(entry.inputName, entry);
+        }
+      }
+    }
+
+    File compacted =
+        new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+    FileChannel out =
+        FileChannel.open(
+            compacted.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      for (Entry entry : entries.values()) {
+        write(out, entry);
+      }
+      out.force(true);
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(
+          compacted.toPath(),
+          file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    Log.info("Processed file index has " + entries.size() + " file(s)");
+    return new ProcessedIndex(channel, entries);
+  }
+
+  /**
+   * Returns {@link #CONVERTED} if the input has been converted already, {@link #REJECTED} if it
+   * was turned away and hasn't changed since, or null if it is new.
+   */
+  String state(File input) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(FileWatchService.inputName(input));
+    }
+    if (entry == null || entry.size != input.length()) {
+      return null;
+    }
+    if (entry.modified == input.lastModified()) {
+      return entry.state;
+    }
+    if (CONVERTED.equals(entry.state) && entry.hash.equals(ContentDigest.of(input))) {
+      return CONVERTED;
+    }
+    return null;
+  }
+
+  /**
+   * Records the input as converted, syncing the index before returning. The hash is the one
+   * worked out while the file was read, or null to read the file again for it.
+   */
+  void recordConverted(File input, String hash) throws IOException {
+    record(input, hash != null ? hash : ContentDigest.of(input), CONVERTED);
+  }
+
+  /** Records that the input can't be converted as it is, syncing the index before returning. */
+  void recordRejected(File input) throws IOException {
+    record(input, "-", REJECTED);
+  }
+
+  private void record(File input, String hash, String state) throws IOException {
+    Entry entry =
+        new Entry(
+            FileWatchService.inputName(input),
+            input.length(),
+            input.lastModified(),
+            hash,
+            System.currentTimeMillis(),
+            state);
+    synchronized (this) {
+      write(channel, entry);
+      channel.force(false);
+      entries.put(entry.inputName, entry);
+    }
+  }
+
+  private static void write(FileChannel channel, Entry entry) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(entry.format().getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  private static class Entry {
+    private final String inputName;
+    private final long size;
+    private final long modified;
+    private final String hash;
+    private final long recordedAt;
+    private final String state;
+
+    Entry(String inputName, long size, long modified, String hash, long recordedAt, String state) {
+      this.inputName = inputName;
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+      this.recordedAt = recordedAt;
+      this.state = state;
+    }
+
+    String format() {
+      return inputName
+          + '\t'
+          + size
+          + '\t'
+          + modified
+          + '\t'
+          + hash
+          + '\t'
+          + recordedAt
+          + '\t'
+          + state
+          + '\n';
+    }
+
+    static Entry parse(String line) {
+      String[] fields = line.split("\t");
+      // entries written before files could be rejected have no state
+      if (fields.length != 5 && fields.length != 6) {
+        return null;
+      }
+      String state = fields.length == 5 ? CONVERTED : fields[5];
+      if (!CONVERTED.equals(state) && !REJECTED.equals(state)) {
+        return null;
+      }
+      try {
+        return new Entry(
+            fields[0],
+            Long.parseLong(fields[1]),
+            Long.parseLong(fields[2]),
+            fields[3],
+            Long.parseLong(fields[4]),
+            state);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
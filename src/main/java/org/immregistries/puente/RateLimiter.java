@@ -0,0 +1,32 @@
+package org.immregistries.puente;
+
+import java.util.concurrent.TimeUnit;
+
+/** Spaces calls out evenly so that no more than a given number start in any second. */
+class RateLimiter {
+  private final long intervalNanos;
+  private long nextFree = System.nanoTime();
+
+  /** A rate of zero or less means no limit. */
+  RateLimiter(double permitsPerSecond) {
+    this.intervalNanos = permitsPerSecond > 0 ? (long) (1000000000L / permitsPerSecond) : 0;
+  }
+
+  void acquire() throws InterruptedException {
+    if (intervalNanos == 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (nextFree < now) {
+        nextFree = now;
+      }
+      wait = nextFree - now;
+      nextFree += intervalNanos;
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+}
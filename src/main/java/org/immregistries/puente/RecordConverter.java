@@ -0,0 +1,684 @@
+package org.immregistries.puente;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.immregistries.mqe.validator.detection.ValidationReport;
+import org.immregistries.mqe.validator.engine.MessageValidator;
+import org.immregistries.mqe.vxu.MqeMessageHeader;
+import org.immregistries.mqe.vxu.MqeMessageReceived;
+import org.immregistries.mqe.vxu.MqePatient;
+import org.immregistries.mqe.vxu.MqeVaccination;
+
+/**
+ * Maps one row of an extract to an MQE message, validates it and renders the VXU. A converter is
+ * made for each file with the file's {@link ColumnMapping}, and fills in the message from a table
+ * of setters so that nothing is looked up by name per record. Conversion keeps no state between
+ * records, so one converter can be shared by all of the pipeline workers.
+ */
+class RecordConverter {
+  static final Column[] REQUIRED_COLUMNS = {
+    Column.RECIPIENT_ID,
+    Column.RECIPIENT_NAME_FIRST,
+    Column.RECIPIENT_NAME_LAST,
+    Column.RECIPIENT_DATE_OF_BIRTH,
+    Column.RECIPIENT_SEX,
+    Column.ADMINISTRATION_DATE
+  };
+
+
+  private static final Metrics.Histogram precheckTime = Metrics.histogram("stage.precheck.nanos");
+  private static final Metrics.Histogram mapTime = Metrics.histogram("stage.map.nanos");
+  private static final Metrics.Histogram validateTime = Metrics.histogram("stage.validate.nanos");
+  private static final Metrics.Histogram renderTime = Metrics.histogram("stage.render.nanos");
+  private static final Metrics.Counter precheckErrors = Metrics.counter("errors.precheck");
+
+  // SimpleDateFormat is not thread-safe, so each worker thread gets its own copy
+  private static final ThreadLocal<SimpleDateFormat> formatterBasic =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("yyyyMMdd");
+        }
+      };
+  private static final ThreadLocal<SimpleDateFormat> formatter =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("yyyyMMddHHmmssZ");
+        }
+      };
+
+  // the segments about the patient, which a message grouped by patient has only once
+  static final String vxuPatientTemplate =
+      "MSH|^~\\&|||||${messageHeaderDate}||VXU^V04^VXU_V04|J69O9.9l|P|2.5.1|||ER|AL|||||Z22^CDCPHINVS|\n"
+          + "PID|1||${recipientId}^^^AIRA-TEST^MR||${lastName}^${firstName}^${middleName}^^^^L||${birthDate}|${sex}||${pid10}|${street}^${street2}^${city}^${state}^${zipCode}^USA^P||^PRN^PH^^^734^9473420|||||||||${ethnicity}|\n"
+          + "PD1|||||||||||02^Reminder/Recall - any method^HL70215|||||A|20201214|20201214|\n";
+
+  // the segments for one dose, repeated for each dose in a message grouped by patient
+  static final String vxuDoseTemplate =
+      "ORC|RE||${vaccinationEventId}^AIRA|\n"
+          + "RXA|0|1|${administrationDate}||${administeredCode}|999|||01^Historical^NIP001||||||${lotNumber}||${mvx}|||CP|A|\n";
+
+  static final String vxuRefusalDoseTemplate =
+      "ORC|RE||${vaccinationEventId}^AIRA|\n"
+          + "RXA|0|1|${administrationDate}||${administeredCode}|999|||||||||${lotNumber}||${mvx}|00^Parental decision^NIP002||RE|A|\n";
+
+  static final String vxuTemplate = vxuPatientTemplate + vxuDoseTemplate;
+
+  static final String vxuRefusalTemplate = vxuPatientTemplate + vxuRefusalDoseTemplate;
+
+  static final String[] VXU_SLOTS = {
+    "messageHeaderDate",
+    "recipientId",
+    "lastName",
+    "firstName",
+    "middleName",
+    "birthDate",
+    "sex",
+    "pid10",
+    "street",
+    "street2",
+    "city",
+    "state",
+    "zipCode",
+    "ethnicity",
+    "vaccinationEventId",
+    "administrationDate",
+    "administeredCode",
+    "lotNumber",
+    "mvx"
+  };
+
+  static final int SLOT_MESSAGE_HEADER_DATE = 0;
+  static final int SLOT_RECIPIENT_ID = 1;
+  static final int SLOT_LAST_NAME = 2;
+  static final int SLOT_FIRST_NAME = 3;
+  static final int SLOT_MIDDLE_NAME = 4;
+  static final int SLOT_BIRTH_DATE = 5;
+  static final int SLOT_SEX = 6;
+  static final int SLOT_PID10 = 7;
+  static final int SLOT_STREET = 8;
+  static final int SLOT_STREET2 = 9;
+  static final int SLOT_CITY = 10;
+  static final int SLOT_STATE = 11;
+  static final int SLOT_ZIP_CODE = 12;
+  static final int SLOT_ETHNICITY = 13;
+  static final int SLOT_VACCINATION_EVENT_ID = 14;
+  static final int SLOT_ADMINISTRATION_DATE = 15;
+  static final int SLOT_ADMINISTERED_CODE = 16;
+  static final int SLOT_LOT_NUMBER = 17;
+  static final int SLOT_MVX = 18;
+
+  private static final Hl7Template vxu = Hl7Template.compile(vxuTemplate, VXU_SLOTS);
+  private static final Hl7Template vxuRefusal =
+      Hl7Template.compile(vxuRefusalTemplate, VXU_SLOTS);
+  private static final Hl7Template vxuPatient = Hl7Template.compile(vxuPatientTemplate, VXU_SLOTS);
+  private static final Hl7Template vxuDose = Hl7Template.compile(vxuDoseTemplate, VXU_SLOTS);
+  private static final Hl7Template vxuRefusalDose =
+      Hl7Template.compile(vxuRefusalDoseTemplate, VXU_SLOTS);
+
+  // each worker thread renders into its own buffers, which are reused from record to record
+  private static final ThreadLocal<RenderBuffers> renderBuffers =
+      new ThreadLocal<RenderBuffers>() {
+        @Override
+        protected RenderBuffers initialValue() {
+          return new RenderBuffers(VXU_SLOTS.length);
+        }
+      };
+
+  // the setter for each column that goes into the message given to the validator
+  private static final Map<Column, Setter> SETTERS = setters();
+
+  private final ColumnMapping columns;
+  private final Setter[] setters;
+  private final int[] setterIndexes;
+
+  RecordConverter(ColumnMapping columns) {
+    this.columns = columns;
+    setters = SETTERS.values().toArray(new Setter[SETTERS.size()]);
+    setterIndexes = new int[setters.length];
+    int i = 0;
+    for (Column column : SETTERS.keySet()) {
+      setterIndexes[i++] = columns.index(column);
+    }
+  }
+
+  /**
+   * Loads the validator and code tables now, so a server can do it before its first request
+   * instead of during it.
+   */
+  static void load() {
+    Log.info("Validator and code tables loaded in " + Checks.loadMillis + " ms");
+  }
+
+  Result convert(Row row) {
+    long start = System.nanoTime();
+    String rejection = Checks.preValidator.check(row, columns);
+    precheckTime.recordSince(start);
+    if (rejection != null) {
+      precheckErrors.increment();
+      return Result.error(rejection);
+    }
+
+    Date date = new Date(System.currentTimeMillis());
+    String messageDate = formatter.get().format(date);
+    String error = errorText(validate(Collections.singletonList(row), date, messageDate));
+    if (error != null) {
+      return Result.error(error);
+    }
+
+    long renderStart = System.nanoTime();
+    RenderBuffers buffers = renderBuffers.get();
+    StringBuilder[] values = buffers.reset();
+    fillSlots(row, values, messageDate);
+    StringBuilder message = buffers.message;
+    if (refused(row)) {
+      vxuRefusal.render(message, values);
+    } else {
+      vxu.render(message, values);
+    }
+    appendRxr(row, message);
+    message.append('\n');
+    renderTime.recordSince(renderStart);
+    return Result.message(message.toString());
+  }
+
+  /**
+   * Converts the rows of one patient to a single message with an ORC/RXA group for each dose. The
+   * patient segments come from the first row that passes the pre-checks. The message is validated
+   * once; only if it fails is each dose validated on its own, so that just the rows at fault go to
+   * the error file and the rest are still sent together.
+   */
+  PatientResult convertPatient(List<Row> rows) {
+    Result[] results = new Result[rows.size()];
+    List<Row> passed = new ArrayList<Row>(rows.size());
+    List<Integer> passedIndexes = new ArrayList<Integer>(rows.size());
+    for (int i = 0; i < rows.size(); i++) {
+      long start = System.nanoTime();
+      String rejection = Checks.preValidator.check(rows.get(i), columns);
+      precheckTime.recordSince(start);
+      if (rejection != null) {
+        precheckErrors.increment();
+        results[i] = Result.error(rejection);
+      } else {
+        passed.add(rows.get(i));
+        passedIndexes.add(i);
+      }
+    }
+    if (passed.isEmpty()) {
+      return new PatientResult(null, results);
+    }
+
+    Date date = new Date(System.currentTimeMillis());
+    String messageDate = formatter.get().format(date);
+    if (!validate(passed, date, messageDate).isEmpty()) {
+      List<Row> valid = new ArrayList<Row>(passed.size());
+      List<Integer> validIndexes = new ArrayList<Integer>(passed.size());
+      for (int i = 0; i < passed.size(); i++) {
+        Row row = passed.get(i);
+        String error = errorText(validate(Collections.singletonList(row), date, messageDate));
+        if (error != null) {
+          results[passedIndexes.get(i)] = Result.error(error);
+        } else {
+          valid.add(row);
+          validIndexes.add(passedIndexes.get(i));
+        }
+      }
+      if (valid.isEmpty()) {
+        return new PatientResult(null, results);
+      }
+      passed = valid;
+      passedIndexes = validIndexes;
+    }
+
+    long renderStart = System.nanoTime();
+    StringBuilder[] values = renderBuffers.get().reset();
+    fillSlots(passed.get(0), values, messageDate);
+    StringBuilder patient = new StringBuilder(512);
+    vxuPatient.render(patient, values);
+    for (int i = 0; i < passed.size(); i++) {
+      Row row = passed.get(i);
+      if (i > 0) {
+        values = renderBuffers.get().reset();
+        fillSlots(row, values, messageDate);
+      }
+      StringBuilder dose = new StringBuilder(256);
+      if (refused(row)) {
+        vxuRefusalDose.render(dose, values);
+      } else {
+        vxuDose.render(dose, values);
+      }
+      appendRxr(row, dose);
+      results[passedIndexes.get(i)] = Result.message(dose.toString());
+    }
+    renderTime.recordSince(renderStart);
+    return new PatientResult(patient.toString(), results);
+  }
+
+  /**
+   * Maps the rows to a message for the validator, with the patient taken from the first row and a
+   * vaccination for each row, and returns the detections at ERROR severity.
+   */
+  private List<ValidationReport> validate(List<Row> rows, Date date, String messageDate) {
+    if (Checks.rules.skipsAll()) {
+      return Collections.emptyList();
+    }
+    long mapStart = System.nanoTime();
+    MqeMessageReceived mmr = new MqeMessageReceived();
+    MqeMessageHeader header = mmr.getMessageHeader();
+    header.setMessageDateString(messageDate);
+    header.setMessageDate(date);
+    MqePatient patient = mmr.getPatient();
+    for (int r = 0; r < rows.size(); r++) {
+      if (r == 1) {
+        // the patient in the message is the first row's; later rows only add their vaccination
+        patient = new MqePatient();
+      }
+      Row row = rows.get(r);
+      MqeVaccination vaccination = new MqeVaccination();
+      for (int i = 0; i < setters.length; i++) {
+        setters[i].set(patient, vaccination, ColumnMapping.value(row, setterIndexes[i]));
+      }
+      vaccination.setActionCode("A");
+      mmr.getVaccinations().add(vaccination);
+    }
+
+    long validateStart = System.nanoTime();
+    mapTime.record(validateStart - mapStart);
+    List<ValidationReport> errors = Checks.rules.errors(mmr);
+    validateTime.recordSince(validateStart);
+    return errors;
+  }
+
+  /** Fills every template slot from the row. */
+  private void fillSlots(Row row, StringBuilder[] values, String messageDate) {
+    String ethnicity = columns.get(row, Column.RECIPIENT_ETHNICITY);
+    String vaccinationEventId = columns.get(row, Column.VACCINATION_EVENT_ID);
+    String mvx = columns.get(row, Column.MVX);
+    String cvx = columns.get(row, Column.CVX);
+    String ndc = columns.get(row, Column.NDC);
+
+    values[SLOT_MESSAGE_HEADER_DATE].append(messageDate);
+    Hl7Template.appendEscaped(values[SLOT_RECIPIENT_ID], columns.get(row, Column.RECIPIENT_ID));
+    Hl7Template.appendEscaped(
+        values[SLOT_LAST_NAME], columns.get(row, Column.RECIPIENT_NAME_LAST));
+    Hl7Template.appendEscaped(
+        values[SLOT_FIRST_NAME], columns.get(row, Column.RECIPIENT_NAME_FIRST));
+    Hl7Template.appendEscaped(
+        values[SLOT_MIDDLE_NAME], columns.get(row, Column.RECIPIENT_NAME_MIDDLE));
+    Hl7Template.appendEscaped(
+        values[SLOT_BIRTH_DATE], columns.get(row, Column.RECIPIENT_DATE_OF_BIRTH));
+    Hl7Template.appendEscaped(values[SLOT_SEX], columns.get(row, Column.RECIPIENT_SEX));
+    Hl7Template.appendEscaped(
+        values[SLOT_STREET], columns.get(row, Column.RECIPIENT_ADDRESS_STREET));
+    Hl7Template.appendEscaped(
+        values[SLOT_STREET2], columns.get(row, Column.RECIPIENT_ADDRESS_STREET_2));
+    Hl7Template.appendEscaped(values[SLOT_CITY], columns.get(row, Column.RECIPIENT_ADDRESS_CITY));
+    Hl7Template.appendEscaped(
+        values[SLOT_STATE], columns.get(row, Column.RECIPIENT_ADDRESS_STATE));
+    Hl7Template.appendEscaped(
+        values[SLOT_ZIP_CODE], columns.get(row, Column.RECIPIENT_ADDRESS_ZIP_CODE));
+    Hl7Template.appendEscaped(
+        values[SLOT_ADMINISTRATION_DATE], columns.get(row, Column.ADMINISTRATION_DATE));
+    Hl7Template.appendEscaped(values[SLOT_LOT_NUMBER], columns.get(row, Column.LOT_NUMBER));
+
+    StringBuilder pid10 = values[SLOT_PID10];
+    for (Column column : Column.RACES) {
+      String race = columns.get(row, column);
+      if (!"".equals(race)) {
+        if (pid10.length() > 0) {
+          pid10.append('^');
+        }
+        Hl7Template.appendEscaped(pid10, race).append("^^CDCREC");
+      }
+    }
+
+    if (!"".equals(ethnicity)) {
+      Hl7Template.appendEscaped(values[SLOT_ETHNICITY], ethnicity).append("^^CDCREC");
+    }
+
+    if ("".equals(vaccinationEventId)) {
+      vaccinationEventId = RandomStringUtils.randomAlphanumeric(10);
+    }
+    Hl7Template.appendEscaped(values[SLOT_VACCINATION_EVENT_ID], vaccinationEventId);
+
+    if (!"".equals(mvx)) {
+      Hl7Template.appendEscaped(values[SLOT_MVX], mvx).append("^^MVX");
+    }
+
+    if (!"".equals(cvx)) {
+      Hl7Template.appendEscaped(values[SLOT_ADMINISTERED_CODE], cvx).append("^^CVX");
+    } else if (!"".equals(ndc)) {
+      Hl7Template.appendEscaped(values[SLOT_ADMINISTERED_CODE], ndc).append("^^NDC");
+    }
+  }
+
+  private boolean refused(Row row) {
+    return vaccineRefused(columns.get(row, Column.VACCINATION_REFUSAL).toUpperCase());
+  }
+
+  private void appendRxr(Row row, StringBuilder message) {
+    String vaccineRoute = columns.get(row, Column.VACCINE_ROUTE_OF_ADMINISTRATION);
+    String vaccineAdmSite = columns.get(row, Column.VACCINE_ADMINISTERING_SITE);
+    if (!"".equals(vaccineRoute)) {
+      message.append("RXR|");
+      Hl7Template.appendEscaped(message, vaccineRoute).append("^^NCIT|");
+      if (!"".equals(vaccineAdmSite)) {
+        Hl7Template.appendEscaped(message, vaccineAdmSite).append("^^HL70163");
+      }
+      message.append('\n');
+    }
+  }
+
+  static boolean vaccineRefused(String refusal) {
+    boolean retVal = false;
+    if (!"".equals(refusal) && !"NO".equals(refusal) && !"N".equals(refusal)) {
+      retVal = true;
+    }
+    return retVal;
+  }
+
+  /**
+   * The detections at ERROR severity as the text for the error file, counting each one, or null if
+   * there are none.
+   */
+  private static String errorText(List<ValidationReport> errors) {
+    if (errors.isEmpty()) {
+      return null;
+    }
+    StringBuilder text = new StringBuilder();
+    for (ValidationReport error : errors) {
+      Metrics.counter("errors.detection." + error.getDetection().name()).increment();
+      if (text.length() > 0) {
+        text.append("; ");
+      }
+      text.append(error.getDetection().toString());
+    }
+    return text.toString();
+  }
+
+  private static Date parseDate(String value, String description) {
+    if ("".equals(value)) {
+      return null;
+    }
+    try {
+      return formatterBasic.get().parse(value);
+    } catch (Exception e) {
+      Log.debug("Couldn't parse " + description);
+      return null;
+    }
+  }
+
+  /** Copies the value of one column into the message that goes to the validator. */
+  private interface Setter {
+    void set(MqePatient patient, MqeVaccination vaccination, String value);
+  }
+
+  private static Map<Column, Setter> setters() {
+    Map<Column, Setter> setters = new EnumMap<Column, Setter>(Column.class);
+    setters.put(
+        Column.RECIPIENT_ID,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setIdSubmitterNumber(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_NAME_FIRST,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setNameFirst(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_NAME_MIDDLE,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setNameMiddle(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_NAME_LAST,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setNameLast(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_DATE_OF_BIRTH,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setBirthDateString(value);
+            patient.setBirthDate(parseDate(value, "birth date"));
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_SEX,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setSexCode(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_ADDRESS_STREET,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.getPatientAddress().setStreet(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_ADDRESS_STREET_2,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.getPatientAddress().setStreet2(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_ADDRESS_CITY,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.getPatientAddress().setCity(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_ADDRESS_STATE,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.getPatientAddress().setStateCode(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_ADDRESS_ZIP_CODE,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.getPatientAddress().setZip(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_RACE_1,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setRace(value);
+          }
+        });
+    setters.put(
+        Column.RECIPIENT_ETHNICITY,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            patient.setEthnicity(value);
+          }
+        });
+    setters.put(
+        Column.ADMINISTRATION_DATE,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setAdminDateString(value);
+            vaccination.setAdminDate(parseDate(value, "administration date"));
+          }
+        });
+    setters.put(
+        Column.CVX,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setAdminCvxCode(value);
+          }
+        });
+    setters.put(
+        Column.NDC,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setAdminNdcCode(value);
+          }
+        });
+    setters.put(
+        Column.MVX,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setManufacturerCode(value);
+          }
+        });
+    setters.put(
+        Column.LOT_NUMBER,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setLotNumber(value);
+          }
+        });
+    setters.put(
+        Column.VACCINE_EXPIRATION_DATE,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setExpirationDateString(value);
+          }
+        });
+    setters.put(
+        Column.VACCINE_ADMINISTERING_SITE,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setBodySiteCode(value);
+          }
+        });
+    setters.put(
+        Column.VACCINE_ROUTE_OF_ADMINISTRATION,
+        new Setter() {
+          @Override
+          public void set(MqePatient patient, MqeVaccination vaccination, String value) {
+            vaccination.setBodyRouteCode(value);
+          }
+        });
+    return setters;
+  }
+
+  /**
+   * The validator and code tables, which take a few seconds to load. They are kept apart so that
+   * they are loaded by the first record converted or by {@link #load}, whichever comes first.
+   */
+  private static class Checks {
+    private static final long start = System.nanoTime();
+    static final ValidationRules rules = new ValidationRules(MessageValidator.INSTANCE);
+    static final PreValidator preValidator = new PreValidator(CodeIndex.INSTANCE);
+    static final long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /** Per-thread scratch space for rendering a message without allocating per record. */
+  private static class RenderBuffers {
+    private final StringBuilder[] values;
+    private final StringBuilder message = new StringBuilder(1024);
+
+    RenderBuffers(int slotCount) {
+      values = new StringBuilder[slotCount];
+      for (int i = 0; i < slotCount; i++) {
+        values[i] = new StringBuilder(64);
+      }
+    }
+
+    StringBuilder[] reset() {
+      for (StringBuilder value : values) {
+        value.setLength(0);
+      }
+      message.setLength(0);
+      return values;
+    }
+  }
+
+  /**
+   * The outcome of converting one patient's rows: the patient segments of their message, and a
+   * result for each row. The message of a row that passed is its ORC/RXA/RXR segments.
+   */
+  static class PatientResult {
+    private final String patientSegments;
+    private final Result[] results;
+
+    PatientResult(String patientSegments, Result[] results) {
+      this.patientSegments = patientSegments;
+      this.results = results;
+    }
+
+    /** The MSH, PID and PD1 segments, or null if none of the rows passed. */
+    String getPatientSegments() {
+      return patientSegments;
+    }
+
+    Result[] getResults() {
+      return results;
+    }
+  }
+
+  /** The outcome of converting one record: either an HL7 message or an error. */
+  static class Result {
+    private final String message;
+    private final String error;
+
+    private Result(String message, String error) {
+      this.message = message;
+      this.error = error;
+    }
+
+    static Result message(String message) {
+      return new Result(message, null);
+    }
+
+    static Result error(String error) {
+      return new Result(null, error);
+    }
+
+    String getMessage() {
+      return message;
+    }
+
+    String getError() {
+      return error;
+    }
+
+    boolean isError() {
+      return error != null;
+    }
+  }
+}
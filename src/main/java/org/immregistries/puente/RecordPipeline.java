@@ -0,0 +1,251 @@
+package org.immregistries.puente;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the records of one file through three stages: the calling thread reads records and hands
+ * them to a shared pool of converter workers, and a single writer thread takes the results back
+ * in the order the records were read. When rows are grouped by patient, each patient's rows go to
+ * a worker together. The queue between the reader and the writer is bounded, so
+ * the reader blocks when the workers or the writer fall behind.
+ */
+class RecordPipeline {
+
+  /** Receives each converted record or patient, in input order, on the writer thread. */
+  interface Sink {
+    void accept(Row row, RecordConverter.Result result) throws IOException;
+
+    void acceptPatient(List<Row> rows, RecordConverter.PatientResult result) throws IOException;
+  }
+
+  private static final int PARALLELISM =
+      Settings.getInt("pipeline.parallelism", Runtime.getRuntime().availableProcessors());
+  private static final int QUEUE_SIZE = Settings.getInt("pipeline.queueSize", PARALLELISM * 64);
+
+  private static final ThreadPoolExecutor workers =
+      new ThreadPoolExecutor(
+          PARALLELISM,
+          PARALLELISM,
+          0L,
+          TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new DaemonThreadFactory("puente-worker"));
+
+  private static final Metrics.Histogram parseTime = Metrics.histogram("stage.parse.nanos");
+  private static final Metrics.Histogram writeTime = Metrics.histogram("stage.write.nanos");
+  private static final Metrics.Meter recordRate = Metrics.meter("records");
+  // records read but not yet written, across all of the files being converted
+  private static final AtomicInteger queued = new AtomicInteger();
+
+  static {
+    Metrics.gauge(
+        "queue.pipeline.records",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            return queued.get();
+          }
+        });
+    Metrics.gauge(
+        "queue.workers.records",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            return workers.getQueue().size();
+          }
+        });
+  }
+
+  private static final Pending END = new Pending((Row) null, null);
+
+  private final RecordConverter converter;
+  private final Sink sink;
+  private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<Pending>(QUEUE_SIZE);
+  private volatile Throwable failure = null;
+
+  RecordPipeline(RecordConverter converter, Sink sink) {
+    this.converter = converter;
+    this.sink = sink;
+  }
+
+  /** Converts every record, returning once the last result has been given to the sink. */
+  void run(Iterator<Row> rows) throws IOException {
+    run(rows, null);
+  }
+
+  /**
+   * Converts the rows of each patient into one message, returning once the last result has been
+   * given to the sink.
+   */
+  void runPatients(Iterator<List<Row>> patients) throws IOException {
+    run(null, patients);
+  }
+
+  private void run(Iterator<Row> rows, Iterator<List<Row>> patients) throws IOException {
+    Thread writer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                drain();
+              }
+            },
+            "puente-writer");
+    writer.setDaemon(true);
+    writer.start();
+    try {
+      long start = System.nanoTime();
+      while (failure == null && (rows != null ? rows.hasNext() : patients.hasNext())) {
+        Pending pending;
+        if (rows != null) {
+          final Row row = rows.next();
+          parseTime.recordSince(start);
+          Future<RecordConverter.Result> future =
+              workers.submit(
+                  new Callable<RecordConverter.Result>() {
+                    @Override
+                    public RecordConverter.Result call() {
+                      return converter.convert(row);
+                    }
+                  });
+          pending = new Pending(row, future);
+        } else {
+          final List<Row> patient = patients.next();
+          parseTime.recordSince(start);
+          Future<RecordConverter.PatientResult> future =
+              workers.submit(
+                  new Callable<RecordConverter.PatientResult>() {
+                    @Override
+                    public RecordConverter.PatientResult call() {
+                      return converter.convertPatient(patient);
+                    }
+                  });
+          pending = new Pending(patient, future);
+        }
+        queue.put(pending);
+        queued.incrementAndGet();
+        start = System.nanoTime();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      failure = ie;
+    } catch (RuntimeException re) {
+      failure = re;
+    } finally {
+      try {
+        queue.put(END);
+        writer.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        writer.interrupt();
+        if (failure == null) {
+          failure = ie;
+        }
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure != null) {
+      throw new IOException("Record pipeline failed", failure);
+    }
+  }
+
+  private void drain() {
+    for (; ; ) {
+      Pending pending;
+      try {
+        pending = queue.take();
+      } catch (InterruptedException ie) {
+        failure = ie;
+        return;
+      }
+      if (pending == END) {
+        return;
+      }
+      queued.decrementAndGet();
+      if (failure != null) {
+        // keep draining so the reader is never left blocked on a full queue
+        if (pending.future != null) {
+          pending.future.cancel(false);
+        } else {
+          pending.patientFuture.cancel(false);
+        }
+        continue;
+      }
+      try {
+        if (pending.future != null) {
+          RecordConverter.Result result = pending.future.get();
+          long start = System.nanoTime();
+          sink.accept(pending.row, result);
+          writeTime.recordSince(start);
+          recordRate.mark();
+        } else {
+          RecordConverter.PatientResult result = pending.patientFuture.get();
+          long start = System.nanoTime();
+          sink.acceptPatient(pending.patientRows, result);
+          writeTime.recordSince(start);
+          recordRate.mark(pending.patientRows.size());
+        }
+      } catch (ExecutionException ee) {
+        failure = ee.getCause();
+      } catch (Throwable t) {
+        // an Error too, or the writer would die and leave the reader blocked on the queue
+        failure = t;
+      }
+    }
+  }
+
+  /** A record or a patient's records handed to the workers, with the result to come. */
+  private static class Pending {
+    private final Row row;
+    private final Future<RecordConverter.Result> future;
+    private final List<Row> patientRows;
+    private final Future<RecordConverter.PatientResult> patientFuture;
+
+    Pending(Row row, Future<RecordConverter.Result> future) {
+      this.row = row;
+      this.future = future;
+      this.patientRows = null;
+      this.patientFuture = null;
+    }
+
+    Pending(List<Row> patientRows, Future<RecordConverter.PatientResult> patientFuture) {
+      this.row = null;
+      this.future = null;
+      this.patientRows = patientRows;
+      this.patientFuture = patientFuture;
+    }
+  }
+
+  static class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
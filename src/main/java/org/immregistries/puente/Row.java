@@ -0,0 +1,73 @@
+package org.immregistries.puente;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * One row of an extract, whatever kind of file it came from. Values are read by position; {@link
+ * ColumnMapping} knows which position holds which column.
+ */
+abstract class Row {
+  /** The number of values in the row, which can differ from the number of headers. */
+  abstract int size();
+
+  abstract String get(int index);
+
+  /** The position of the row among the data rows of its file, starting at 1. */
+  abstract long number();
+
+  static Row of(CSVRecord record) {
+    return new CsvRow(record);
+  }
+
+  static Row of(long number, String[] values) {
+    return new ArrayRow(number, values);
+  }
+
+  private static class CsvRow extends Row {
+    private final CSVRecord record;
+
+    CsvRow(CSVRecord record) {
+      this.record = record;
+    }
+
+    @Override
+    int size() {
+      return record.size();
+    }
+
+    @Override
+    String get(int index) {
+      return record.get(index);
+    }
+
+    @Override
+    long number() {
+      return record.getRecordNumber();
+    }
+  }
+
+  private static class ArrayRow extends Row {
+    private final long number;
+    private final String[] values;
+
+    ArrayRow(long number, String[] values) {
+      this.number = number;
+      this.values = values;
+    }
+
+    @Override
+    int size() {
+      return values.length;
+    }
+
+    @Override
+    String get(int index) {
+      return values[index];
+    }
+
+    @Override
+    long number() {
+      return number;
+    }
+  }
+}
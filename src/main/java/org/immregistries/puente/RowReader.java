@@ -0,0 +1,47 @@
+package org.immregistries.puente;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads the header and rows of an extract. Excel workbooks (.xlsx) are read with {@link
+ * XlsxRowReader}; anything else is read as CSV, split into chunks that are parsed in parallel by
+ * {@link ChunkedCsvRowReader} once the file is at least csv.parallelThresholdBytes long.
+ */
+abstract class RowReader implements Closeable {
+  private static final long PARALLEL_THRESHOLD =
+      Settings.getLong("csv.parallelThresholdBytes", 64L * 1024 * 1024);
+
+  abstract List<String> headers();
+
+  /**
+   * The data rows, read as they are iterated. A problem reading the file part way through is
+   * thrown from the iterator as an {@link IllegalStateException}.
+   */
+  abstract Iterator<Row> rows();
+
+  /**
+   * The SHA-256 of the file, in hex, if the rows have been read to the end and the reader went
+   * through every byte of the file on the way; otherwise null.
+   */
+  String digest() {
+    return null;
+  }
+
+  static RowReader open(File file) throws IOException {
+    if (file.getName().toLowerCase(Locale.ROOT).endsWith(".xlsx")) {
+      return new XlsxRowReader(file);
+    }
+    if (PARALLEL_THRESHOLD > 0
+        && file.length() >= PARALLEL_THRESHOLD
+        && CsvBoundaryScanner.supports(Charset.defaultCharset())) {
+      return new ChunkedCsvRowReader(file);
+    }
+    return new CsvRowReader(file);
+  }
+}
@@ -0,0 +1,177 @@
+package org.immregistries.puente;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only log of the messages in each HL7 file that the IIS has answered, so that a restart
+ * in the middle of a file only sends the messages that weren't answered yet.
+ *
+ * <p>A SENT entry with the message's position in the file is written as each answer comes back,
+ * accepted or not, and DONE once the file has been moved to request/sent. SENT entries are handed
+ * to the operating system as they are written, so they survive Puente being killed; they are
+ * synced with the DONE entry, so after a power failure the last few answers may be sent again. On
+ * startup the journal is read back, finished files and files no longer in request are forgotten,
+ * and the rest are written out again, so the journal does not grow without bound.
+ */
+class SendJournal implements Closeable {
+  static final String SENT = "SENT";
+  static final String DONE = "DONE";
+
+  private final FileChannel channel;
+  private final Map<String, FileEntries> files;
+
+  private SendJournal(FileChannel channel, Map<String, FileEntries> files) {
+    this.channel = channel;
+    this.files = files;
+  }
+
+  /** Reads the journal, keeping the files still waiting in the request directory. */
+  static SendJournal open(File file, File requestDir) throws IOException {
+    Map<String, FileEntries> files = new HashMap<String, FileEntries>();
+    if (file.exists()) {
+      String[] lines =
+          new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+      // the last element is empty, or a torn entry from a crash in the middle of an append
+      for (int i = 0; i < lines.length - 1; i++) {
+        String[] fields = lines[i].split("\t");
+        if (fields.length != 5) {
+          continue;
+        }
+        try {
+          String name = fields[1];
+          if (DONE.equals(fields[0])) {
+            files.remove(name);
+          } else if (SENT.equals(fields[0])) {
+            long size = Long.parseLong(fields[2]);
+            long modified = Long.parseLong(fields[3]);
+            FileEntries entries = files.get(name);
+            if (entries == null || entries.size != size || entries.modified != modified) {
+              entries = new FileEntries(size, modified);
+              files.put(name, entries);
+            }
+            entries.answered.add(Integer.parseInt(fields[4]));
+          }
+        } catch (NumberFormatException e) {
+          // not an entry this version wrote
+        }
+      }
+    }
+    for (String name : files.keySet().toArray(new String[0])) {
+      if (!new File(requestDir, name).exists()) {
+        files.remove(name);
+      }
+    }
+
+    File compacted =
+        new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+    FileChannel out =
+        FileChannel.open(
+            compacted.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      for (Map.Entry<String, FileEntries> entry : files.entrySet()) {
+        FileEntries entries = entry.getValue();
+        for (int index : entries.answered) {
+          write(out, SENT, entry.getKey(), entries.size, entries.modified, index);
+        }
+      }
+      out.force(true);
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(
+          compacted.toPath(),
+          file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (!files.isEmpty()) {
+      Log.info("Send journal has " + files.size() + " partly sent file(s) to resume");
+    }
+    return new SendJournal(channel, files);
+  }
+
+  /**
+   * Returns the positions of the messages in the file that have been answered, or none if the file
+   * has not been sent before or has changed since.
+   */
+  synchronized Set<Integer> answered(File hl7File) {
+    FileEntries entries = files.get(hl7File.getName());
+    if (entries == null
+        || entries.size != hl7File.length()
+        || entries.modified != hl7File.lastModified()) {
+      return Collections.emptySet();
+    }
+    return new HashSet<Integer>(entries.answered);
+  }
+
+  /**
+   * Records that the message at this position in the file has been answered, so it isn't sent
+   * again when the rest of the file is, in this run or the next.
+   */
+  synchronized void answered(File hl7File, int index) throws IOException {
+    long size = hl7File.length();
+    long modified = hl7File.lastModified();
+    write(channel, SENT, hl7File.getName(), size, modified, index);
+    FileEntries entries = files.get(hl7File.getName());
+    if (entries == null || entries.size != size || entries.modified != modified) {
+      entries = new FileEntries(size, modified);
+      files.put(hl7File.getName(), entries);
+    }
+    entries.answered.add(index);
+  }
+
+  /** Records that every message in the file has been answered, syncing the journal. */
+  synchronized void done(File hl7File) throws IOException {
+    files.remove(hl7File.getName());
+    write(channel, DONE, hl7File.getName(), 0, 0, 0);
+    channel.force(false);
+  }
+
+  private static void write(
+      FileChannel channel, String stage, String name, long size, long modified, int index)
+      throws IOException {
+    String line = stage + '\t' + name + '\t' + size + '\t' + modified + '\t' + index + '\n';
+    ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  private static class FileEntries {
+    private final long size;
+    private final long modified;
+    private final Set<Integer> answered = new HashSet<Integer>();
+
+    FileEntries(long size, long modified) {
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+}
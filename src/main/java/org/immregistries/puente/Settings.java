@@ -0,0 +1,83 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings read from puente.properties in the working directory. Any setting can be overridden on
+ * the command line with -Dpuente.&lt;key&gt;=value.
+ */
+class Settings {
+  private static final String SETTINGS_FILE = "puente.properties";
+  private static final String SYSTEM_PREFIX = "puente.";
+
+  private static final Properties properties = load();
+
+  private Settings() {}
+
+  private static Properties load() {
+    Properties p = new Properties();
+    File file = new File(SETTINGS_FILE);
+    if (file.exists()) {
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          p.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        System.err.println("Couldn't read " + SETTINGS_FILE + ": " + e.getMessage());
+      }
+    }
+    return p;
+  }
+
+  static String get(String key, String defaultValue) {
+    String value = System.getProperty(SYSTEM_PREFIX + key);
+    if (value == null) {
+      value = properties.getProperty(key);
+    }
+    if (value == null || "".equals(value.trim())) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  static int getInt(String key, int defaultValue) {
+    String value = get(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      System.err.println("Setting " + key + " is not a number: " + value);
+      return defaultValue;
+    }
+  }
+
+  static long getLong(String key, long defaultValue) {
+    String value = get(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      System.err.println("Setting " + key + " is not a number: " + value);
+      return defaultValue;
+    }
+  }
+
+  static boolean getBoolean(String key, boolean defaultValue) {
+    String value = get(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    return "true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value);
+  }
+}
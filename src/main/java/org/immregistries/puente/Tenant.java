@@ -0,0 +1,149 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A sender with a directory of its own under data, such as data/acme-pharmacy. Files dropped
+ * straight into data belong to the "default" tenant. Each tenant can be given, as
+ * tenant.&lt;name&gt;.&lt;setting&gt; or for all of them as tenant.&lt;setting&gt;:
+ *
+ * <ul>
+ *   <li>weight: its share of the file workers compared with other tenants that have files
+ *       waiting (1 by default)
+ *   <li>maxFiles: the most of its files converted at the same time (0, no limit)
+ *   <li>rowsPerSecond: the most of its rows read per second, across all of its files (0, no
+ *       limit)
+ * </ul>
+ *
+ * <p>Metrics are kept for each tenant under tenant.&lt;name&gt;.
+ */
+class Tenant {
+  static final String DEFAULT = "default";
+
+  private static final ConcurrentMap<String, Tenant> tenants =
+      new ConcurrentHashMap<String, Tenant>();
+
+  final String name;
+  private final double weight;
+  private final int maxFiles;
+  private final RateLimiter rowLimiter;
+  private final Metrics.Meter records;
+  private final Metrics.Counter filesFinished;
+
+  // guarded by this
+  private int waiting = 0;
+  private int inProgress = 0;
+  private long lastStartAt = 0;
+
+  private Tenant(String name) {
+    this.name = name;
+    this.weight = Math.max(0.01, Double.parseDouble(setting(name, "weight", "1")));
+    this.maxFiles = Integer.parseInt(setting(name, "maxFiles", "0"));
+    this.rowLimiter = new RateLimiter(Double.parseDouble(setting(name, "rowsPerSecond", "0")));
+    this.records = Metrics.meter("tenant." + name + ".records");
+    this.filesFinished = Metrics.counter("tenant." + name + ".files.finished");
+    Metrics.gauge(
+        "tenant." + name + ".files.waiting",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            synchronized (Tenant.this) {
+              return waiting;
+            }
+          }
+        });
+    Metrics.gauge(
+        "tenant." + name + ".files.inProgress",
+        new Metrics.Gauge() {
+          @Override
+          public long value() {
+            synchronized (Tenant.this) {
+              return inProgress;
+            }
+          }
+        });
+  }
+
+  private static String setting(String name, String key, String defaultValue) {
+    return Settings.get("tenant." + name + "." + key, Settings.get("tenant." + key, defaultValue));
+  }
+
+  static Tenant named(String name) {
+    Tenant tenant = tenants.get(name);
+    if (tenant == null) {
+      tenant = new Tenant(name);
+      Tenant existing = tenants.putIfAbsent(name, tenant);
+      if (existing != null) {
+        tenant = existing;
+      }
+    }
+    return tenant;
+  }
+
+  /** The tenant whose directory the file was dropped in. */
+  static Tenant forFile(File file) {
+    String directory = FileWatchService.senderDirectory(file);
+    return named(directory == null ? DEFAULT : directory);
+  }
+
+  /**
+   * Queues a file that would take costMillis to convert and returns its virtual start time. A
+   * tenant's files are placed one after another, each its cost divided by the weight after the
+   * last, so a tenant that drops many files only gets its share ahead of the others.
+   */
+  synchronized long schedule(long readyAt, long costMillis) {
+    if (waiting == 0 && inProgress == 0) {
+      // nothing of this tenant's is queued, so it has no backlog to wait behind
+      lastStartAt = 0;
+    }
+    lastStartAt = Math.max(readyAt, lastStartAt) + (long) (costMillis / weight);
+    waiting++;
+    return lastStartAt;
+  }
+
+  /** Starts one of the tenant's waiting files, unless as many as maxFiles are in progress. */
+  synchronized boolean tryStart() {
+    if (maxFiles > 0 && inProgress >= maxFiles) {
+      return false;
+    }
+    waiting--;
+    inProgress++;
+    return true;
+  }
+
+  synchronized void finished() {
+    inProgress--;
+    filesFinished.increment();
+  }
+
+  /** Counts the rows as they are read, holding them back to tenant.rowsPerSecond. */
+  Iterator<Row> throttle(final Iterator<Row> rows) {
+    return new Iterator<Row>() {
+      @Override
+      public boolean hasNext() {
+        return rows.hasNext();
+      }
+
+      @Override
+      public Row next() {
+        try {
+          rowLimiter.acquire();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting to read the next row", ie);
+        }
+        Row row = rows.next();
+        records.mark();
+        return row;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
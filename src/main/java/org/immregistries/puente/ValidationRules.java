@@ -0,0 +1,317 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.immregistries.mqe.hl7util.SeverityLevel;
+import org.immregistries.mqe.validator.detection.ValidationReport;
+import org.immregistries.mqe.validator.engine.MessageValidator;
+import org.immregistries.mqe.validator.engine.ValidationRule;
+import org.immregistries.mqe.validator.engine.ValidationRuleResult;
+import org.immregistries.mqe.vxu.MqeMessageReceived;
+
+/**
+ * Runs the MQE validator over a message and picks out the detections at ERROR severity, leaving
+ * out the rules that the rule set in validation.ruleSet skips. A rule set is named in
+ * validation.ruleSet and lists the simple class names of the rules it skips in
+ * validation.&lt;name&gt;.skipRules. The validator only runs all of its rules at once, so a skipped
+ * rule still runs but can't fail a record; a rule set that skips "*" doesn't run the validator at
+ * all, leaving the pre-checks as the only validation.
+ *
+ * <p>With validation.profile on, each rule's results are counted, and the threads running the
+ * validator are sampled every validation.profileSampleMillis to estimate how much time is spent in
+ * each rule, since the validator doesn't time its rules itself. The counts and estimates are
+ * written to validation.profileFile every validation.profileMillis and when Puente stops.
+ */
+class ValidationRules {
+  private static final boolean PROFILE = Settings.getBoolean("validation.profile", false);
+  private static final long PROFILE_MILLIS = Settings.getLong("validation.profileMillis", 60000);
+  private static final long SAMPLE_MILLIS =
+      Math.max(1, Settings.getLong("validation.profileSampleMillis", 5));
+  private static final File PROFILE_FILE =
+      new File(Settings.get("validation.profileFile", "puente-rules.csv"));
+  private static final String SKIP_ALL = "*";
+  // stack frames outside any rule, in the validator's own code
+  private static final String NO_RULE = "(validator)";
+
+  private static final Metrics.Counter skippedDetections =
+      Metrics.counter("errors.detection.skipped");
+
+  // rule name to counts, for the profile
+  private static final ConcurrentMap<String, RuleStats> stats =
+      new ConcurrentHashMap<String, RuleStats>();
+  // threads inside the validator, for the sampler
+  private static final Set<Thread> validating =
+      Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+  // class name in a stack frame to the rule it belongs to, or "" if it isn't a rule
+  private static final ConcurrentMap<String, String> frameRules =
+      new ConcurrentHashMap<String, String>();
+  private static final AtomicLong profiledMessages = new AtomicLong();
+
+  static {
+    if (PROFILE) {
+      startProfiling();
+    }
+  }
+
+  private final MessageValidator validator;
+  private final String ruleSet;
+  private final Set<String> skipRules;
+
+  ValidationRules(MessageValidator validator) {
+    this.validator = validator;
+    this.ruleSet = Settings.get("validation.ruleSet", null);
+    this.skipRules = new HashSet<String>();
+    if (ruleSet != null) {
+      for (String rule : Settings.get("validation." + ruleSet + ".skipRules", "").split(",")) {
+        if (!rule.trim().isEmpty()) {
+          skipRules.add(rule.trim());
+        }
+      }
+      Log.info("Validating with rule set " + ruleSet + ", skipping " + skipRules);
+    }
+  }
+
+  /** Whether the rule set skips every rule, so there is no point building a message. */
+  boolean skipsAll() {
+    return skipRules.contains(SKIP_ALL);
+  }
+
+  /** Validates the message and returns every ERROR detection from the rules that count. */
+  List<ValidationReport> errors(MqeMessageReceived message) {
+    if (skipsAll()) {
+      return Collections.emptyList();
+    }
+    List<ValidationRuleResult> results;
+    if (PROFILE) {
+      Thread thread = Thread.currentThread();
+      validating.add(thread);
+      try {
+        results = validator.validateMessage(message);
+      } finally {
+        validating.remove(thread);
+      }
+      profiledMessages.incrementAndGet();
+    } else {
+      results = validator.validateMessage(message);
+    }
+
+    List<ValidationReport> errors = new ArrayList<ValidationReport>();
+    for (ValidationRuleResult result : results) {
+      String rule = ruleName(result.getRuleClass());
+      boolean skipped = skipRules.contains(rule);
+      int errorCount = 0;
+      for (ValidationReport report : result.getValidationDetections()) {
+        if (SeverityLevel.ERROR == report.getSeverity()) {
+          errorCount++;
+          if (skipped) {
+            skippedDetections.increment();
+          } else {
+            errors.add(report);
+          }
+        }
+      }
+      if (PROFILE) {
+        RuleStats ruleStats = stats(rule);
+        ruleStats.runs.incrementAndGet();
+        if (!result.getValidationDetections().isEmpty()) {
+          ruleStats.hits.incrementAndGet();
+        }
+        ruleStats.errors.addAndGet(errorCount);
+      }
+    }
+    return errors;
+  }
+
+  private static String ruleName(Class<?> ruleClass) {
+    return ruleClass == null ? NO_RULE : ruleClass.getSimpleName();
+  }
+
+  private static RuleStats stats(String rule) {
+    RuleStats ruleStats = stats.get(rule);
+    if (ruleStats == null) {
+      ruleStats = new RuleStats();
+      RuleStats existing = stats.putIfAbsent(rule, ruleStats);
+      if (existing != null) {
+        ruleStats = existing;
+      }
+    }
+    return ruleStats;
+  }
+
+  private static void startProfiling() {
+    ScheduledExecutorService profiler =
+        Executors.newSingleThreadScheduledExecutor(
+            new RecordPipeline.DaemonThreadFactory("puente-rule-profile"));
+    profiler.scheduleAtFixedRate(
+        new Runnable() {
+          @Override
+          public void run() {
+            sample();
+          }
+        },
+        SAMPLE_MILLIS,
+        SAMPLE_MILLIS,
+        TimeUnit.MILLISECONDS);
+    profiler.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            writeProfile();
+          }
+        },
+        PROFILE_MILLIS,
+        PROFILE_MILLIS,
+        TimeUnit.MILLISECONDS);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    writeProfile();
+                  }
+                },
+                "puente-rule-profile-write"));
+    Log.info("Profiling validation rules to " + PROFILE_FILE);
+  }
+
+  /** Credits one sample to the innermost rule on the stack of each thread in the validator. */
+  private static void sample() {
+    for (Thread thread : validating) {
+      String rule = NO_RULE;
+      for (StackTraceElement frame : thread.getStackTrace()) {
+        String frameRule = frameRule(frame.getClassName());
+        if (!frameRule.isEmpty()) {
+          rule = frameRule;
+          break;
+        }
+      }
+      // the thread may have left the validator while its stack was being taken
+      if (validating.contains(thread)) {
+        stats(rule).samples.incrementAndGet();
+      }
+    }
+  }
+
+  private static String frameRule(String className) {
+    String rule = frameRules.get(className);
+    if (rule == null) {
+      rule = "";
+      try {
+        Class<?> frameClass =
+            Class.forName(className, false, ValidationRule.class.getClassLoader());
+        // rules written as inner classes are credited to the rule around them
+        while (frameClass.getEnclosingClass() != null
+            && !ValidationRule.class.isAssignableFrom(frameClass)) {
+          frameClass = frameClass.getEnclosingClass();
+        }
+        if (ValidationRule.class.isAssignableFrom(frameClass)
+            && frameClass != ValidationRule.class) {
+          rule = frameClass.getSimpleName();
+        }
+      } catch (ClassNotFoundException | LinkageError e) {
+        // not one of the validator's classes
+      }
+      frameRules.put(className, rule);
+    }
+    return rule;
+  }
+
+  /**
+   * Writes each rule's results and estimated time as CSV, busiest rule first, replacing the last
+   * report.
+   */
+  static synchronized void writeProfile() {
+    // by name first, so rules with the same time stay in order of name
+    List<Map.Entry<String, RuleStats>> rules =
+        new ArrayList<Map.Entry<String, RuleStats>>(
+            new TreeMap<String, RuleStats>(stats).entrySet());
+    Collections.sort(
+        rules,
+        new Comparator<Map.Entry<String, RuleStats>>() {
+          @Override
+          public int compare(Map.Entry<String, RuleStats> a, Map.Entry<String, RuleStats> b) {
+            long x = a.getValue().samples.get();
+            long y = b.getValue().samples.get();
+            return x > y ? -1 : (x == y ? 0 : 1);
+          }
+        });
+    long messages = profiledMessages.get();
+    File part =
+        new File(
+            PROFILE_FILE.getAbsoluteFile().getParentFile(), "." + PROFILE_FILE.getName() + ".part");
+    try {
+      Writer w =
+          new OutputStreamWriter(Files.newOutputStream(part.toPath()), StandardCharsets.UTF_8);
+      try {
+        w.write("Rule,Runs,Hits,Hit rate,Errors,Estimated millis,Millis per 1000 messages\n");
+        for (Map.Entry<String, RuleStats> entry : rules) {
+          RuleStats ruleStats = entry.getValue();
+          long runs = ruleStats.runs.get();
+          long millis = ruleStats.samples.get() * SAMPLE_MILLIS;
+          w.write(entry.getKey());
+          w.write(',');
+          w.write(String.valueOf(runs));
+          w.write(',');
+          w.write(String.valueOf(ruleStats.hits.get()));
+          w.write(',');
+          w.write(
+              runs == 0
+                  ? ""
+                  : String.format(Locale.ROOT, "%.4f", ruleStats.hits.get() / (double) runs));
+          w.write(',');
+          w.write(String.valueOf(ruleStats.errors.get()));
+          w.write(',');
+          w.write(String.valueOf(millis));
+          w.write(',');
+          w.write(
+              messages == 0
+                  ? ""
+                  : String.format(Locale.ROOT, "%.2f", millis * 1000.0 / messages));
+          w.write('\n');
+        }
+      } finally {
+        w.close();
+      }
+      try {
+        Files.move(
+            part.toPath(),
+            PROFILE_FILE.toPath(),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(part.toPath(), PROFILE_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      Log.warn("Couldn't write the rule profile to " + PROFILE_FILE + ": " + e.getMessage());
+    }
+  }
+
+  private static class RuleStats {
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+  }
+}
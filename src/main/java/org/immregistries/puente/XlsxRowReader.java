@@ -0,0 +1,458 @@
+package org.immregistries.puente;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the first worksheet of an Excel workbook (or the one named by xlsx.sheet) as a stream of
+ * rows. The sheet XML is pulled one element at a time and only the current row is held, so memory
+ * use doesn't grow with the number of rows. The shared strings table is read up front, since any
+ * cell can refer to any entry in it.
+ *
+ * <p>Cells formatted as dates become yyyyMMdd, the form the rest of the conversion expects.
+ * Whole numbers lose their ".0", so codes and zip codes typed as numbers come through unchanged.
+ * Rows with no values in them are skipped.
+ */
+class XlsxRowReader extends RowReader {
+  private static final String SHEET = Settings.get("xlsx.sheet", null);
+
+  private static final String NS_RELATIONSHIPS =
+      "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+  private static final String TYPE_SHARED_STRINGS = "/sharedStrings";
+  private static final String TYPE_STYLES = "/styles";
+  // key for the worksheet to read in the map returned by readWorkbook
+  private static final String SHEET_PART = "sheet";
+
+  private static final XMLInputFactory xmlInputFactory = newXmlInputFactory();
+
+  private final File file;
+  private final ZipFile zip;
+  private final List<String> sharedStrings = new ArrayList<String>();
+  private boolean[] dateStyles = new boolean[0];
+  private boolean date1904 = false;
+  private final InputStream sheetInput;
+  private final XMLStreamReader sheet;
+  private final List<String> headers;
+  private long rowCount = 0;
+
+  XlsxRowReader(File file) throws IOException {
+    this.file = file;
+    this.zip = new ZipFile(file);
+    try {
+      Map<String, String> parts = readWorkbook();
+      String sharedStringsPart = parts.get(TYPE_SHARED_STRINGS);
+      if (sharedStringsPart != null) {
+        readSharedStrings(sharedStringsPart);
+      }
+      String stylesPart = parts.get(TYPE_STYLES);
+      if (stylesPart != null) {
+        readStyles(stylesPart);
+      }
+      sheetInput = input(parts.get(SHEET_PART));
+      sheet = xmlInputFactory.createXMLStreamReader(sheetInput);
+      List<String> first = readRow();
+      headers = first == null ? new ArrayList<String>() : first;
+    } catch (XMLStreamException e) {
+      zip.close();
+      throw new IOException("Couldn't read " + file.getName() + ": " + e.getMessage(), e);
+    } catch (IOException | RuntimeException e) {
+      zip.close();
+      throw e;
+    }
+  }
+
+  private static XMLInputFactory newXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    return factory;
+  }
+
+  @Override
+  List<String> headers() {
+    return headers;
+  }
+
+  @Override
+  Iterator<Row> rows() {
+    return new Iterator<Row>() {
+      private Row next = null;
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          List<String> values;
+          try {
+            values = readRow();
+          } catch (XMLStreamException | IOException e) {
+            throw new IllegalStateException("Couldn't read " + file.getName(), e);
+          }
+          if (values != null) {
+            rowCount++;
+            next = Row.of(rowCount, values.toArray(new String[values.size()]));
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Row next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Row row = next;
+        next = null;
+        return row;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      sheet.close();
+    } catch (XMLStreamException e) {
+      // nothing more will be read from it either way
+    } finally {
+      sheetInput.close();
+      zip.close();
+    }
+  }
+
+  /**
+   * Finds the worksheet to read and the shared strings and styles parts, by way of the workbook's
+   * relationships, and notes whether the workbook counts dates from 1904.
+   */
+  private Map<String, String> readWorkbook() throws IOException, XMLStreamException {
+    String sheetId = null;
+    InputStream in = input("xl/workbook.xml");
+    try {
+      XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+      while (xml.hasNext()) {
+        if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        String element = xml.getLocalName();
+        if ("workbookPr".equals(element)) {
+          String value = xml.getAttributeValue(null, "date1904");
+          date1904 = "1".equals(value) || "true".equals(value);
+        } else if ("sheet".equals(element) && sheetId == null) {
+          if (SHEET == null || SHEET.equals(xml.getAttributeValue(null, "name"))) {
+            sheetId = xml.getAttributeValue(NS_RELATIONSHIPS, "id");
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (sheetId == null) {
+      throw new IOException("No worksheet " + (SHEET == null ? "" : SHEET + " ") + "found");
+    }
+    Map<String, String> parts = new HashMap<String, String>();
+    in = input("xl/_rels/workbook.xml.rels");
+    try {
+      XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+      while (xml.hasNext()) {
+        if (xml.next() != XMLStreamConstants.START_ELEMENT
+            || !"Relationship".equals(xml.getLocalName())) {
+          continue;
+        }
+        String target = xml.getAttributeValue(null, "Target");
+        String part = target.startsWith("/") ? target.substring(1) : "xl/" + target;
+        String type = xml.getAttributeValue(null, "Type");
+        if (sheetId.equals(xml.getAttributeValue(null, "Id"))) {
+          parts.put(SHEET_PART, part);
+        } else if (type.endsWith(TYPE_SHARED_STRINGS)) {
+          parts.put(TYPE_SHARED_STRINGS, part);
+        } else if (type.endsWith(TYPE_STYLES)) {
+          parts.put(TYPE_STYLES, part);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (!parts.containsKey(SHEET_PART)) {
+      throw new IOException("Worksheet " + sheetId + " is missing");
+    }
+    return parts;
+  }
+
+  private void readSharedStrings(String part) throws IOException, XMLStreamException {
+    InputStream in = input(part);
+    try {
+      XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+      StringBuilder text = new StringBuilder();
+      while (xml.hasNext()) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String element = xml.getLocalName();
+          if ("si".equals(element)) {
+            text.setLength(0);
+          } else if ("t".equals(element)) {
+            text.append(xml.getElementText());
+          } else if ("rPh".equals(element)) {
+            skipElement(xml);
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT && "si".equals(xml.getLocalName())) {
+          sharedStrings.add(text.toString());
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Notes which cell styles show a number as a date. */
+  private void readStyles(String part) throws IOException, XMLStreamException {
+    Map<Integer, Boolean> customFormats = new HashMap<Integer, Boolean>();
+    List<Boolean> styles = new ArrayList<Boolean>();
+    InputStream in = input(part);
+    try {
+      XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+      boolean inCellXfs = false;
+      while (xml.hasNext()) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String element = xml.getLocalName();
+          if ("numFmt".equals(element)) {
+            customFormats.put(
+                Integer.valueOf(xml.getAttributeValue(null, "numFmtId")),
+                isDateFormat(xml.getAttributeValue(null, "formatCode")));
+          } else if ("cellXfs".equals(element)) {
+            inCellXfs = true;
+          } else if ("xf".equals(element) && inCellXfs) {
+            String id = xml.getAttributeValue(null, "numFmtId");
+            int formatId = id == null ? 0 : Integer.parseInt(id);
+            Boolean custom = customFormats.get(formatId);
+            styles.add(custom != null ? custom : isBuiltInDateFormat(formatId));
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT
+            && "cellXfs".equals(xml.getLocalName())) {
+          inCellXfs = false;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    dateStyles = new boolean[styles.size()];
+    for (int i = 0; i < dateStyles.length; i++) {
+      dateStyles[i] = styles.get(i);
+    }
+  }
+
+  private static boolean isBuiltInDateFormat(int formatId) {
+    return (formatId >= 14 && formatId <= 17) || formatId == 22;
+  }
+
+  /** A format shows a date if it has a day, month or year outside of quotes and brackets. */
+  static boolean isDateFormat(String formatCode) {
+    if (formatCode == null) {
+      return false;
+    }
+    boolean quoted = false;
+    boolean bracketed = false;
+    for (int i = 0; i < formatCode.length(); i++) {
+      char c = formatCode.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (quoted) {
+        continue;
+      } else if (c == '\\') {
+        i++;
+      } else if (c == '[') {
+        bracketed = true;
+      } else if (c == ']') {
+        bracketed = false;
+      } else if (!bracketed && "dDmMyY".indexOf(c) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the next row with a value in it, or returns null at the end of the sheet. Cells that
+   * were left out are empty strings.
+   */
+  private List<String> readRow() throws IOException, XMLStreamException {
+    List<String> values = new ArrayList<String>(headers == null ? 32 : headers.size());
+    while (sheet.hasNext()) {
+      int event = sheet.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if ("row".equals(sheet.getLocalName())) {
+          values.clear();
+        } else if ("c".equals(sheet.getLocalName())) {
+          String reference = sheet.getAttributeValue(null, "r");
+          int column = reference == null ? values.size() : columnIndex(reference);
+          String value = readCell().trim();
+          while (values.size() < column) {
+            values.add("");
+          }
+          values.add(value);
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT && "row".equals(sheet.getLocalName())) {
+        if (hasValue(values)) {
+          if (headers != null) {
+            while (values.size() < headers.size()) {
+              values.add("");
+            }
+          }
+          return values;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean hasValue(List<String> values) {
+    for (String value : values) {
+      if (!value.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Reads a c element, leaving the reader on its end tag. */
+  private String readCell() throws XMLStreamException {
+    String type = sheet.getAttributeValue(null, "t");
+    String style = sheet.getAttributeValue(null, "s");
+    String raw = null;
+    StringBuilder inline = null;
+    while (sheet.hasNext()) {
+      int event = sheet.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String element = sheet.getLocalName();
+        if ("v".equals(element)) {
+          raw = sheet.getElementText();
+        } else if ("t".equals(element)) {
+          if (inline == null) {
+            inline = new StringBuilder();
+          }
+          inline.append(sheet.getElementText());
+        } else if ("f".equals(element) || "rPh".equals(element)) {
+          skipElement(sheet);
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT && "c".equals(sheet.getLocalName())) {
+        break;
+      }
+    }
+    if ("inlineStr".equals(type)) {
+      return inline == null ? "" : inline.toString();
+    }
+    if (raw == null) {
+      return "";
+    }
+    if ("s".equals(type)) {
+      int index = Integer.parseInt(raw.trim());
+      return index < sharedStrings.size() ? sharedStrings.get(index) : "";
+    }
+    if ("b".equals(type)) {
+      return "1".equals(raw) ? "TRUE" : "FALSE";
+    }
+    if ("str".equals(type) || "e".equals(type)) {
+      return raw;
+    }
+    int styleIndex = style == null ? 0 : Integer.parseInt(style);
+    if (styleIndex < dateStyles.length && dateStyles[styleIndex]) {
+      return formatDate(raw);
+    }
+    return formatNumber(raw);
+  }
+
+  private static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0 && xml.hasNext()) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /** Turns a cell reference such as "AB12" into a column index counted from 0. */
+  static int columnIndex(String reference) {
+    int column = 0;
+    for (int i = 0; i < reference.length(); i++) {
+      char c = reference.charAt(i);
+      if (c < 'A' || c > 'Z') {
+        break;
+      }
+      column = column * 26 + (c - 'A' + 1);
+    }
+    return column - 1;
+  }
+
+  static String formatNumber(String raw) {
+    try {
+      BigDecimal number = new BigDecimal(raw.trim());
+      if (number.signum() == 0) {
+        return "0";
+      }
+      return number.stripTrailingZeros().toPlainString();
+    } catch (NumberFormatException e) {
+      return raw;
+    }
+  }
+
+  /** Formats an Excel date serial number as yyyyMMdd. The time of day is dropped. */
+  private String formatDate(String raw) {
+    double serial;
+    try {
+      serial = Double.parseDouble(raw);
+    } catch (NumberFormatException e) {
+      return raw;
+    }
+    // day 0 is 1899-12-30 rather than 12-31 because Excel counts a 29 February 1900 that never was
+    long days = (long) Math.floor(serial) + (date1904 ? 1462 : 0) - 25569;
+    return civilDate(days);
+  }
+
+  /** The yyyyMMdd date of a day counted from 1970-01-01, in the proleptic Gregorian calendar. */
+  static String civilDate(long epochDay) {
+    long z = epochDay + 719468;
+    long era = (z >= 0 ? z : z - 146096) / 146097;
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long mp = (5 * dayOfYear + 2) / 153;
+    long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+    long month = mp < 10 ? mp + 3 : mp - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    StringBuilder s = new StringBuilder(8);
+    s.append(year);
+    s.append(month < 10 ? "0" : "").append(month);
+    s.append(day < 10 ? "0" : "").append(day);
+    return s.toString();
+  }
+
+  private InputStream input(String part) throws IOException {
+    ZipEntry entry = zip.getEntry(part);
+    if (entry == null) {
+      throw new IOException(part + " is missing");
+    }
+    return zip.getInputStream(entry);
+  }
+}
@@ -0,0 +1,178 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointJournalTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File journalFile;
+  private File dataDir;
+  private File input;
+
+  @Before
+  public void setUp() throws IOException {
+    journalFile = folder.newFile("puente.journal");
+    dataDir = folder.newFolder(FileWatchService.DIR_DATA);
+    input = new File(dataDir, "extract.csv");
+    Files.write(input.toPath(), "Recipient ID\n1\n2\n".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void formatAndParseRoundTrip() {
+    CheckpointJournal.Checkpoint checkpoint = checkpoint(input);
+    checkpoint.stage = CheckpointJournal.CHECKPOINT;
+    checkpoint.records = 20000;
+    checkpoint.countError = 12;
+    checkpoint.countOkay = 19988;
+    checkpoint.hl7FileCount = 2;
+    checkpoint.hl7MessageCount = 9988;
+    checkpoint.hl7CharCount = 123456;
+    checkpoint.hl7Length = 654321;
+    checkpoint.readyLength = 4096;
+    checkpoint.errorLength = -1;
+    String line = checkpoint.format();
+
+    CheckpointJournal.Checkpoint parsed =
+        CheckpointJournal.Checkpoint.parse(line.substring(0, line.length() - 1));
+    assertNotNull(parsed);
+    assertEquals(line, parsed.format());
+    assertEquals(CheckpointJournal.CHECKPOINT, parsed.stage);
+    assertEquals("extract.csv", parsed.inputName);
+    assertEquals(20000, parsed.records);
+    assertEquals(-1, parsed.errorLength);
+  }
+
+  @Test
+  public void parseRejectsMalformedLines() {
+    assertNull(CheckpointJournal.Checkpoint.parse(""));
+    assertNull(CheckpointJournal.Checkpoint.parse("CKPT\textract.csv\t17"));
+    String line = checkpoint(input).format();
+    assertNull(CheckpointJournal.Checkpoint.parse(line.trim().replace("\t0\t", "\tx\t")));
+  }
+
+  @Test
+  public void keepsTheLastEntryOfEachUnfinishedFile() throws IOException {
+    File other = new File(dataDir, "other.csv");
+    Files.write(other.toPath(), "Recipient ID\n".getBytes(StandardCharsets.UTF_8));
+    CheckpointJournal journal = CheckpointJournal.open(journalFile, dataDir);
+    CheckpointJournal.Checkpoint checkpoint = checkpoint(input);
+    journal.append(CheckpointJournal.START, checkpoint);
+    checkpoint.records = 10000;
+    journal.append(CheckpointJournal.CHECKPOINT, checkpoint);
+    CheckpointJournal.Checkpoint finished = checkpoint(other);
+    journal.append(CheckpointJournal.START, finished);
+    journal.append(CheckpointJournal.DONE, finished);
+    journal.close();
+
+    journal = CheckpointJournal.open(journalFile, dataDir);
+    CheckpointJournal.Checkpoint pending = journal.pending(input);
+    assertNotNull(pending);
+    assertEquals(CheckpointJournal.CHECKPOINT, pending.stage);
+    assertEquals(10000, pending.records);
+    assertNull(journal.pending(other));
+    // handed out once
+    assertNull(journal.pending(input));
+    journal.close();
+  }
+
+  @Test
+  public void compactsToOneEntryPerUnfinishedFile() throws IOException {
+    CheckpointJournal journal = CheckpointJournal.open(journalFile, dataDir);
+    CheckpointJournal.Checkpoint checkpoint = checkpoint(input);
+    journal.append(CheckpointJournal.START, checkpoint);
+    for (int i = 1; i <= 5; i++) {
+      checkpoint.records = i * 10000;
+      journal.append(CheckpointJournal.CHECKPOINT, checkpoint);
+    }
+    CheckpointJournal.Checkpoint finished = checkpoint(new File(dataDir, "gone.csv"));
+    journal.append(CheckpointJournal.START, finished);
+    journal.append(CheckpointJournal.DONE, finished);
+    journal.close();
+    assertEquals(8, lines().size());
+
+    CheckpointJournal.open(journalFile, dataDir).close();
+    List<String> lines = lines();
+    assertEquals(1, lines.size());
+    assertEquals(50000, CheckpointJournal.Checkpoint.parse(lines.get(0)).records);
+    assertEquals(0, new File(folder.getRoot(), ".puente.journal.part").length());
+  }
+
+  @Test
+  public void forgetsFilesNoLongerInTheDataDirectory() throws IOException {
+    CheckpointJournal journal = CheckpointJournal.open(journalFile, dataDir);
+    journal.append(CheckpointJournal.START, checkpoint(input));
+    journal.close();
+    File moved = new File(folder.getRoot(), "extract.csv");
+    Files.move(input.toPath(), moved.toPath());
+
+    CheckpointJournal.open(journalFile, dataDir).close();
+    assertEquals(0, lines().size());
+  }
+
+  @Test
+  public void ignoresATornLastEntry() throws IOException {
+    CheckpointJournal journal = CheckpointJournal.open(journalFile, dataDir);
+    CheckpointJournal.Checkpoint checkpoint = checkpoint(input);
+    checkpoint.records = 10000;
+    journal.append(CheckpointJournal.CHECKPOINT, checkpoint);
+    journal.close();
+    checkpoint.records = 20000;
+    checkpoint.stage = CheckpointJournal.CHECKPOINT;
+    String torn = checkpoint.format().substring(0, 30);
+    Files.write(
+        journalFile.toPath(), torn.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    journal = CheckpointJournal.open(journalFile, dataDir);
+    assertEquals(10000, journal.pending(input).records);
+    journal.close();
+    assertEquals(1, lines().size());
+  }
+
+  @Test
+  public void doesNotResumeAFileThatChangedSize() throws IOException {
+    CheckpointJournal journal = CheckpointJournal.open(journalFile, dataDir);
+    journal.append(CheckpointJournal.CHECKPOINT, checkpoint(input));
+    journal.close();
+    long modified = input.lastModified();
+    Files.write(input.toPath(), "3\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    input.setLastModified(modified);
+
+    journal = CheckpointJournal.open(journalFile, dataDir);
+    assertNull(journal.pending(input));
+    journal.close();
+  }
+
+  @Test
+  public void doesNotResumeAFileThatWasModified() throws IOException {
+    CheckpointJournal journal = CheckpointJournal.open(journalFile, dataDir);
+    journal.append(CheckpointJournal.CHECKPOINT, checkpoint(input));
+    journal.close();
+    input.setLastModified(input.lastModified() - 60000);
+
+    journal = CheckpointJournal.open(journalFile, dataDir);
+    assertNull(journal.pending(input));
+    journal.close();
+  }
+
+  private static CheckpointJournal.Checkpoint checkpoint(File file) {
+    return new CheckpointJournal.Checkpoint(
+        FileWatchService.inputName(file), file.length(), file.lastModified(), "20210601120000");
+  }
+
+  private List<String> lines() throws IOException {
+    return Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,159 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedCsvRowReaderTest {
+  private static final String HEADER = "Recipient ID,Recipient name: last,Lot number,Note\n";
+
+  // every kind of record the boundary scanner has to get right, without blank lines
+  private static final String RECORDS =
+      "1,Smith,A100,plain\n"
+          + "2,\"Jones, Jr\",A101,quoted comma\n"
+          + "3,O'Brien,A102,\"line one\nline two\"\n"
+          + "4,\"Say \"\"hi\"\"\",A103,doubled quotes\n"
+          + "5,Lee,A104,\"ends in a quote \"\"\"\n"
+          + "6,\"\",A105,empty quoted\r\n"
+          + "7,Khan,A106,\"crlf\r\ninside\"\r\n"
+          + "8,Ng,A107,\"\"\"\n\"\"\"\n"
+          + "9,  Diaz  ,A108,  trimmed  \n"
+          + "10,Wu,A109,\"comma, newline\n, and \"\"quote\"\"\"\n"
+          + "11,Tran,,\n"
+          + "12,Park,A111,\"\n\n\"\n"
+          + "13,Ito,A112,a\"b is not quoted\n"
+          + "14,\"Ali\",\"A113\",\"all quoted\"\n";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void scannerFindsEveryRecordBoundary() throws IOException {
+    File file = write("extract.csv", HEADER + RECORDS);
+    List<Long> expected = new ArrayList<Long>();
+    CSVParser parser =
+        CSVFormat.DEFAULT.parse(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8));
+    try {
+      for (CSVRecord record : parser) {
+        if (record.getRecordNumber() > 1) {
+          expected.add(record.getCharacterPosition());
+        }
+      }
+    } finally {
+      parser.close();
+    }
+    expected.add(file.length());
+
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      int first = 0;
+      for (long target = 1; target <= file.length(); target++) {
+        while (expected.get(first) < target) {
+          first++;
+        }
+        CsvBoundaryScanner scanner = new CsvBoundaryScanner(channel, 0);
+        long boundary = scanner.next(target, file.length());
+        assertEquals("target " + target, (long) expected.get(first), boundary);
+      }
+      // and walking on from one boundary to the next, as the reader does
+      CsvBoundaryScanner scanner = new CsvBoundaryScanner(channel, 0);
+      for (long boundary : expected) {
+        assertEquals(boundary, scanner.next(1, file.length()));
+      }
+      assertEquals(-1, scanner.next(1, file.length()));
+      assertEquals(file.length(), new CsvBoundaryScanner(channel, 0).last(file.length()));
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test
+  public void matchesCsvRowReader() throws IOException {
+    assertSameRows(write("extract.csv", HEADER + RECORDS));
+  }
+
+  @Test
+  public void matchesCsvRowReaderWithCrlfLineBreaks() throws IOException {
+    assertSameRows(write("extract.csv", (HEADER + RECORDS).replace("\n", "\r\n")));
+  }
+
+  @Test
+  public void matchesCsvRowReaderWithoutAFinalLineBreak() throws IOException {
+    String text = HEADER + RECORDS;
+    assertSameRows(write("extract.csv", text.substring(0, text.length() - 1)));
+  }
+
+  @Test
+  public void matchesCsvRowReaderWithBlankLines() throws IOException {
+    assertSameRows(write("extract.csv", "\n\n" + HEADER + "\n" + RECORDS + "\n\n"));
+  }
+
+  @Test
+  public void matchesCsvRowReaderOnAHeaderOnlyFile() throws IOException {
+    assertSameRows(write("extract.csv", HEADER));
+  }
+
+  /**
+   * Reads the file with every chunk size from 1 byte to 64, then doubling up to 4 KB, checking the
+   * digest worked out on the way as well.
+   */
+  private static void assertSameRows(File file) throws IOException {
+    String digest = ContentDigest.of(file);
+    List<String> headers;
+    List<Row> expected = new ArrayList<Row>();
+    CsvRowReader reader = new CsvRowReader(file);
+    try {
+      headers = reader.headers();
+      Iterator<Row> rows = reader.rows();
+      while (rows.hasNext()) {
+        expected.add(rows.next());
+      }
+      assertEquals(digest, reader.digest());
+    } finally {
+      reader.close();
+    }
+
+    for (int chunkBytes = 1;
+        chunkBytes <= 4096;
+        chunkBytes = chunkBytes < 64 ? chunkBytes + 1 : chunkBytes * 2) {
+      ChunkedCsvRowReader chunked = new ChunkedCsvRowReader(file, chunkBytes);
+      try {
+        assertEquals(headers, chunked.headers());
+        Iterator<Row> rows = chunked.rows();
+        for (Row row : expected) {
+          Row actual = rows.next();
+          String at = "chunk " + chunkBytes + " row " + row.number();
+          assertEquals(at, row.number(), actual.number());
+          assertEquals(at, row.size(), actual.size());
+          for (int i = 0; i < row.size(); i++) {
+            assertEquals(at, row.get(i), actual.get(i));
+          }
+        }
+        assertFalse("chunk " + chunkBytes, rows.hasNext());
+        assertEquals("chunk " + chunkBytes, digest, chunked.digest());
+      } finally {
+        chunked.close();
+      }
+    }
+  }
+
+  private File write(String name, String text) throws IOException {
+    File file = folder.newFile(name);
+    Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
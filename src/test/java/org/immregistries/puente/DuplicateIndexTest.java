@@ -0,0 +1,247 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DuplicateIndexTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private final ColumnMapping columns =
+      ColumnMapping.forFile(
+          "extract.csv",
+          Arrays.asList(
+              Column.VACCINATION_EVENT_ID.header,
+              Column.RECIPIENT_ID.header,
+              Column.ADMINISTRATION_DATE.header,
+              Column.CVX.header,
+              Column.NDC.header));
+
+  @Before
+  public void setUp() {
+    file = new File(folder.getRoot(), "puente.dedup");
+  }
+
+  @Test
+  public void addsCommittedFingerprints() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch batch = index.newBatch();
+    assertTrue(batch.add(17));
+    assertFalse(batch.add(17));
+    assertTrue(batch.add(42));
+    assertFalse(index.contains(17));
+
+    index.commit(batch);
+    assertTrue(index.contains(17));
+    assertTrue(index.contains(42));
+    assertFalse(index.contains(99));
+    assertFalse(index.newBatch().add(42));
+  }
+
+  @Test
+  public void growsIntoANewFile() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    long initialLength = file.length();
+    DuplicateIndex.Batch batch = index.newBatch();
+    for (long i = 1; i <= 800000; i++) {
+      batch.add(i * 0x9e3779b97f4a7c15L);
+    }
+    index.commit(batch);
+
+    assertEquals(2 * initialLength - 32, file.length());
+    assertFalse(new File(folder.getRoot(), ".puente.dedup.part").exists());
+    for (long i = 1; i <= 800000; i++) {
+      assertTrue(index.contains(i * 0x9e3779b97f4a7c15L));
+    }
+  }
+
+  @Test
+  public void reopensFromTheFile() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch batch = index.newBatch();
+    for (long i = 1; i <= 1000; i++) {
+      batch.add(i);
+    }
+    index.commit(batch);
+
+    DuplicateIndex reopened = DuplicateIndex.open(file);
+    for (long i = 1; i <= 1000; i++) {
+      assertTrue(reopened.contains(i));
+    }
+    assertFalse(reopened.contains(1001));
+  }
+
+  @Test(expected = IOException.class)
+  public void refusesAFileThatIsNotAnIndex() throws IOException {
+    Files.write(file.toPath(), new byte[64]);
+    DuplicateIndex.open(file);
+  }
+
+  @Test
+  public void resumesABatchFromItsLog() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    File log = new File(folder.getRoot(), ".extract-SENT.part");
+    DuplicateIndex.Batch batch = index.newBatch(log, 0);
+    batch.add(1);
+    batch.add(2);
+    batch.sync();
+    batch.add(3);
+
+    // only what was synced by the checkpoint is read back, by the next run
+    index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch resumed = index.newBatch(log, 2);
+    assertFalse(resumed.add(1));
+    assertFalse(resumed.add(2));
+    assertTrue(resumed.add(3));
+    resumed.sync();
+    assertEquals(24, log.length());
+    index.commit(resumed);
+    resumed.close();
+    assertFalse(log.exists());
+    assertTrue(index.contains(3));
+  }
+
+  @Test
+  public void reservesFingerprintsUntilCommitted() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch first = index.newBatch();
+    DuplicateIndex.Batch second = index.newBatch();
+    assertTrue(first.add(17));
+    assertFalse(second.add(17));
+    assertTrue(second.add(42));
+    assertFalse(first.add(42));
+
+    index.commit(first);
+    second.close();
+    assertFalse(index.newBatch().add(17));
+    assertTrue(index.newBatch().add(42));
+  }
+
+  @Test
+  public void givesUpReservationsWhenClosed() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch failed = index.newBatch();
+    assertTrue(failed.add(17));
+    failed.close();
+    failed.close();
+
+    DuplicateIndex.Batch batch = index.newBatch();
+    assertTrue(batch.add(17));
+    index.commit(batch);
+    batch.close();
+    assertTrue(index.contains(17));
+  }
+
+  @Test
+  public void lookupBatchesReserveNothing() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch lookup = index.newLookupBatch();
+    assertTrue(lookup.add(17));
+    assertFalse(lookup.add(17));
+    assertTrue(index.newBatch().add(17));
+    assertFalse(index.newLookupBatch().add(17));
+  }
+
+  @Test
+  public void resumedBatchesReserveWhatTheyReadBack() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    File log = new File(folder.getRoot(), ".extract-SENT.part");
+    DuplicateIndex.Batch batch = index.newBatch(log, 0);
+    batch.add(1);
+    batch.add(2);
+    batch.sync();
+
+    index = DuplicateIndex.open(file);
+    DuplicateIndex.Batch other = index.newBatch();
+    assertTrue(other.add(2));
+    DuplicateIndex.Batch resumed = index.newBatch(log, 2);
+    assertFalse(index.newBatch().add(1));
+    // 2 was reserved by the other batch first, and stays reserved by it
+    resumed.close();
+    assertTrue(index.newBatch().add(1));
+    assertFalse(index.newBatch().add(2));
+    other.close();
+    assertTrue(index.newBatch().add(2));
+  }
+
+  @Test
+  public void keepsReservationsApartUnderChurn() throws IOException {
+    DuplicateIndex index = DuplicateIndex.open(file);
+    Random random = new Random(7);
+    List<DuplicateIndex.Batch> open = new ArrayList<DuplicateIndex.Batch>();
+    List<Set<Long>> added = new ArrayList<Set<Long>>();
+    for (int round = 0; round < 200; round++) {
+      DuplicateIndex.Batch batch = index.newBatch();
+      Set<Long> fingerprints = new HashSet<Long>();
+      for (int i = 0; i < 500; i++) {
+        // small values so that batches collide, and probe runs overlap
+        long fingerprint = 1 + random.nextInt(5000);
+        boolean reservedElsewhere = false;
+        for (Set<Long> other : added) {
+          reservedElsewhere |= other.contains(fingerprint);
+        }
+        boolean expected = !reservedElsewhere && !fingerprints.contains(fingerprint);
+        assertEquals(expected, batch.add(fingerprint));
+        if (expected) {
+          fingerprints.add(fingerprint);
+        }
+      }
+      open.add(batch);
+      added.add(fingerprints);
+      if (open.size() > 3) {
+        int closing = random.nextInt(open.size());
+        open.remove(closing).close();
+        added.remove(closing);
+      }
+    }
+  }
+
+  @Test
+  public void fingerprintsTheEventId() {
+    long fingerprint = DuplicateIndex.fingerprint(row("E1", "R1", "20210601", "208", ""), columns);
+    assertEquals(
+        fingerprint,
+        DuplicateIndex.fingerprint(row("E1", "R2", "20210602", "207", "59267-1000-1"), columns));
+    assertNotEquals(
+        fingerprint, DuplicateIndex.fingerprint(row("E2", "R1", "20210601", "208", ""), columns));
+  }
+
+  @Test
+  public void fallsBackToTheVaccinationWhenTheEventIdIsBlank() {
+    long fingerprint = DuplicateIndex.fingerprint(row("", "R1", "20210601", "208", ""), columns);
+    assertEquals(
+        fingerprint, DuplicateIndex.fingerprint(row("", "R1", "20210601", "208", ""), columns));
+    assertNotEquals(
+        fingerprint, DuplicateIndex.fingerprint(row("", "R1", "20210601", "207", ""), columns));
+    assertNotEquals(
+        fingerprint, DuplicateIndex.fingerprint(row("", "R1", "20210602", "208", ""), columns));
+    assertNotEquals(
+        fingerprint, DuplicateIndex.fingerprint(row("", "R2", "20210601", "208", ""), columns));
+    // the separator keeps values from running together
+    assertNotEquals(
+        DuplicateIndex.fingerprint(row("", "R1", "2021060", "1208", ""), columns),
+        fingerprint);
+    assertNotEquals(
+        fingerprint, DuplicateIndex.fingerprint(row("R1", "", "", "", ""), columns));
+  }
+
+  private static Row row(String... values) {
+    return Row.of(1, values);
+  }
+}
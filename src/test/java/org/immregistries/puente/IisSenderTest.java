@@ -0,0 +1,242 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IisSenderTest {
+  private static final String ACK_HEADER =
+      "MSH|^~\\&|IIS|IIS|PUENTE|PUENTE|20240101||ACK^V04|1|P|2.5.1";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private File requestDir;
+  // recipient IDs the stub IIS fails with HTTP 503, and the ones it was sent
+  private final Set<String> unreachable = Collections.synchronizedSet(new HashSet<String>());
+  private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+  private volatile String rejectAck = null;
+
+  @BeforeClass
+  public static void quickRetries() {
+    // read once when IisSender is loaded
+    System.setProperty("puente.send.maxAttempts", "2");
+    System.setProperty("puente.send.backoffMillis", "1");
+    System.setProperty("puente.send.pollMillis", "3600000");
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    requestDir = folder.newFolder("request");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/iis",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            String body = read(exchange.getRequestBody());
+            String message = IisClient.elementText(body, "hl7Message");
+            String recipientId = IisSender.recipientId(message.replace('\r', '\n'));
+            received.add(recipientId);
+            if (unreachable.contains(recipientId)) {
+              respond(exchange, 503, "");
+            } else {
+              String ack = rejectAck != null ? rejectAck : ACK_HEADER + "\rMSA|AA|1\r";
+              respond(
+                  exchange,
+                  200,
+                  "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\">"
+                      + "<soap:Body><submitSingleMessageResponse><return>"
+                      + ack
+                      + "</return></submitSingleMessageResponse></soap:Body></soap:Envelope>");
+            }
+          }
+        });
+    server.start();
+    System.setProperty(
+        "puente.send.url", "http://127.0.0.1:" + server.getAddress().getPort() + "/iis");
+    System.setProperty("puente.send.maxInFlight", "1");
+    System.setProperty(
+        "puente.send.journalFile", new File(folder.getRoot(), "puente.send").getPath());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    System.clearProperty("puente.send.url");
+    System.clearProperty("puente.send.maxInFlight");
+    System.clearProperty("puente.send.journalFile");
+  }
+
+  @Test
+  public void readsTheAckCode() {
+    assertEquals("AA", IisSender.ackCode(ACK_HEADER + "\rMSA|AA|1\r"));
+    assertEquals("AE", IisSender.ackCode(ACK_HEADER + "\nMSA|AE|1|Bad\nERR|||101\n"));
+    assertEquals("", IisSender.ackCode(ACK_HEADER + "\rMSA|\r"));
+    assertNull(IisSender.ackCode(ACK_HEADER + "\r"));
+  }
+
+  @Test
+  public void givesTheReasonForARejection() {
+    assertNull(IisSender.rejection(ACK_HEADER + "\rMSA|AA|1\r"));
+    assertNull(IisSender.rejection(ACK_HEADER + "\rMSA|CA|1\r"));
+    assertEquals("ACK has no MSA segment", IisSender.rejection(ACK_HEADER + "\r"));
+    assertEquals("ACK AR", IisSender.rejection(ACK_HEADER + "\rMSA|AR|1\r"));
+    assertEquals(
+        "ACK AR: Not authorized", IisSender.rejection(ACK_HEADER + "\rMSA|AR|1|Not authorized\r"));
+    assertEquals(
+        "ACK AE: Required field missing; Patient not found",
+        IisSender.rejection(
+            ACK_HEADER
+                + "\rMSA|AE|1|Errors\r"
+                + "ERR||PID^1^5|101^Required field missing^HL70357|E\r"
+                + "ERR||PID^1^3|103^Table value not found^HL70357|E||||Patient not found\r"));
+  }
+
+  @Test
+  public void findsTheRecipientId() {
+    assertEquals("P1", IisSender.recipientId(message("P1")));
+    assertEquals("P1", IisSender.recipientId("PID|1||P1^^^MR||Doe^Jane\n"));
+    assertEquals("", IisSender.recipientId("MSH|^~\\&|PUENTE\nRXA|0|1\n"));
+    assertEquals("", IisSender.recipientId("MSH|^~\\&|PUENTE\nPID|1\n"));
+  }
+
+  @Test
+  public void holdsBackTheRestOfAFileThatCantBeDelivered() throws Exception {
+    File hl7File = hl7File("extract-1.hl7", "P1", "P2", "P3");
+    unreachable.add("P2");
+    IisSender sender = IisSender.fromSettings(requestDir);
+    sender.start();
+    try {
+      sender.sendFile(hl7File);
+      assertTrue(hl7File.exists());
+      // P2 was tried twice, and P3 was held back behind it
+      assertEquals(Arrays.asList("P1", "P2", "P2"), received);
+
+      unreachable.clear();
+      received.clear();
+      sender.sendFile(hl7File);
+    } finally {
+      sender.shutdown();
+    }
+    assertFalse(hl7File.exists());
+    assertTrue(new File(requestDir, "sent/extract-1.hl7").exists());
+    assertEquals(Arrays.asList("P2", "P3"), received);
+  }
+
+  @Test
+  public void resumesFromTheJournalAfterARestart() throws Exception {
+    File hl7File = hl7File("extract-1.hl7", "P1", "P2", "P3");
+    unreachable.add("P3");
+    IisSender sender = IisSender.fromSettings(requestDir);
+    sender.start();
+    try {
+      sender.sendFile(hl7File);
+    } finally {
+      sender.shutdown();
+    }
+    assertTrue(hl7File.exists());
+
+    unreachable.clear();
+    received.clear();
+    sender = IisSender.fromSettings(requestDir);
+    sender.start();
+    try {
+      sender.sendFile(hl7File);
+    } finally {
+      sender.shutdown();
+    }
+    assertEquals(Arrays.asList("P3"), received);
+    assertFalse(hl7File.exists());
+  }
+
+  @Test
+  public void writesRejectionsWithTheirReason() throws Exception {
+    File hl7File = hl7File("extract-1.hl7", "P1");
+    rejectAck =
+        ACK_HEADER
+            + "\rMSA|AE|1\rERR||RXA^1^5|103^Table value not found^HL70357|E||||Unknown CVX\r";
+    IisSender sender = IisSender.fromSettings(requestDir);
+    sender.start();
+    try {
+      sender.sendFile(hl7File);
+    } finally {
+      sender.shutdown();
+    }
+    assertTrue(new File(requestDir, "sent/extract-1.hl7").exists());
+    File[] errors = new File(requestDir, IisSender.DIR_ERROR).listFiles();
+    assertEquals(2, errors.length);
+    Arrays.sort(errors);
+    assertTrue(errors[0].getName().matches("extract-1-REJECTED-\\d{14}\\.ack"));
+    String ack = new String(Files.readAllBytes(errors[0].toPath()), StandardCharsets.UTF_8);
+    assertTrue(ack, ack.startsWith("# P1: ACK AE: Unknown CVX\n"));
+    String rejected = new String(Files.readAllBytes(errors[1].toPath()), StandardCharsets.UTF_8);
+    assertEquals(message("P1") + "\n", rejected);
+  }
+
+  private File hl7File(String name, String... recipientIds) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (String recipientId : recipientIds) {
+      text.append(message(recipientId));
+    }
+    File file = new File(requestDir, name);
+    Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static String message(String recipientId) {
+    return "MSH|^~\\&|PUENTE|PUENTE|IIS|IIS|20240101||VXU^V04^VXU_V04|"
+        + recipientId
+        + "|P|2.5.1\n"
+        + "PID|1||"
+        + recipientId
+        + "^^^MR||Doe^Jane\n"
+        + "RXA|0|1|20240101||08^HepB^CVX|999\n";
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) > 0) {
+      bytes.write(buffer, 0, count);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PreValidatorTest {
+  @Test
+  public void acceptsRealDates() {
+    assertTrue(PreValidator.isDate("20210115"));
+    assertTrue(PreValidator.isDate("19991231"));
+    assertTrue(PreValidator.isDate("20200131"));
+    assertTrue(PreValidator.isDate("20200430"));
+  }
+
+  @Test
+  public void rejectsDaysPastTheEndOfTheMonth() {
+    assertFalse(PreValidator.isDate("20200132"));
+    assertFalse(PreValidator.isDate("20200431"));
+    assertFalse(PreValidator.isDate("20201100"));
+  }
+
+  @Test
+  public void rejectsMonthsOutOfRange() {
+    assertFalse(PreValidator.isDate("20200001"));
+    assertFalse(PreValidator.isDate("20201301"));
+  }
+
+  @Test
+  public void acceptsFebruary29OnlyInLeapYears() {
+    assertTrue(PreValidator.isDate("20240229"));
+    assertTrue(PreValidator.isDate("19960229"));
+    assertFalse(PreValidator.isDate("20230229"));
+    assertFalse(PreValidator.isDate("20240230"));
+    assertTrue(PreValidator.isDate("20230228"));
+  }
+
+  @Test
+  public void centuriesAreLeapYearsOnlyEvery400Years() {
+    assertTrue(PreValidator.isDate("20000229"));
+    assertFalse(PreValidator.isDate("19000229"));
+    assertTrue(PreValidator.isDate("19000228"));
+  }
+
+  @Test
+  public void rejectsYearsBeforeTheCutoff() {
+    int year = PreValidator.MIN_YEAR;
+    assertTrue(PreValidator.isDate(year + "0101"));
+    assertFalse(PreValidator.isDate((year - 1) + "1231"));
+    assertTrue(PreValidator.isDate("99991231"));
+  }
+
+  @Test
+  public void rejectsAnythingButEightDigits() {
+    assertFalse(PreValidator.isDate(""));
+    assertFalse(PreValidator.isDate("2021011"));
+    assertFalse(PreValidator.isDate("202101150"));
+    assertFalse(PreValidator.isDate("2021-1-5"));
+    assertFalse(PreValidator.isDate("01/15/21"));
+    assertFalse(PreValidator.isDate("2021011a"));
+  }
+}
@@ -0,0 +1,136 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SendJournalTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private File requestDir;
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(folder.getRoot(), "puente.send");
+    requestDir = folder.newFolder("request");
+  }
+
+  @Test
+  public void replaysAnsweredMessages() throws IOException {
+    File hl7File = hl7File("extract-1.hl7");
+    SendJournal journal = SendJournal.open(file, requestDir);
+    assertTrue(journal.answered(hl7File).isEmpty());
+    journal.answered(hl7File, 0);
+    journal.answered(hl7File, 2);
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), journal.answered(hl7File));
+    journal.close();
+
+    journal = SendJournal.open(file, requestDir);
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), journal.answered(hl7File));
+    journal.close();
+  }
+
+  @Test
+  public void forgetsFinishedFiles() throws IOException {
+    File hl7File = hl7File("extract-1.hl7");
+    SendJournal journal = SendJournal.open(file, requestDir);
+    journal.answered(hl7File, 0);
+    journal.done(hl7File);
+    assertTrue(journal.answered(hl7File).isEmpty());
+    journal.close();
+
+    journal = SendJournal.open(file, requestDir);
+    assertTrue(journal.answered(hl7File).isEmpty());
+    journal.close();
+    assertEquals(0, file.length());
+  }
+
+  @Test
+  public void forgetsFilesNoLongerWaiting() throws IOException {
+    File kept = hl7File("extract-1.hl7");
+    File sent = hl7File("extract-2.hl7");
+    SendJournal journal = SendJournal.open(file, requestDir);
+    journal.answered(kept, 1);
+    journal.answered(sent, 1);
+    journal.close();
+    Files.delete(sent.toPath());
+
+    journal = SendJournal.open(file, requestDir);
+    journal.close();
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0).startsWith("SENT\textract-1.hl7\t"));
+  }
+
+  @Test
+  public void ignoresAnswersToAFileThatHasChanged() throws IOException {
+    File hl7File = hl7File("extract-1.hl7");
+    SendJournal journal = SendJournal.open(file, requestDir);
+    journal.answered(hl7File, 0);
+    journal.close();
+    Files.write(
+        hl7File.toPath(), "MSH|more\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    journal = SendJournal.open(file, requestDir);
+    assertTrue(journal.answered(hl7File).isEmpty());
+    journal.close();
+  }
+
+  @Test
+  public void compactsToOneEntryPerAnswer() throws IOException {
+    File hl7File = hl7File("extract-1.hl7");
+    SendJournal journal = SendJournal.open(file, requestDir);
+    journal.answered(hl7File, 0);
+    journal.answered(hl7File, 0);
+    journal.answered(hl7File, 1);
+    journal.close();
+    assertEquals(3, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+
+    journal = SendJournal.open(file, requestDir);
+    journal.close();
+    assertEquals(2, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    assertFalse(new File(folder.getRoot(), ".puente.send.part").exists());
+  }
+
+  @Test
+  public void skipsATornLastEntry() throws IOException {
+    File hl7File = hl7File("extract-1.hl7");
+    SendJournal journal = SendJournal.open(file, requestDir);
+    journal.answered(hl7File, 0);
+    journal.close();
+    Files.write(
+        file.toPath(),
+        "SENT\textract-1.hl7\t".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    journal = SendJournal.open(file, requestDir);
+    assertEquals(new HashSet<Integer>(Arrays.asList(0)), journal.answered(hl7File));
+    journal.answered(hl7File, 1);
+    journal.close();
+
+    journal = SendJournal.open(file, requestDir);
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 1)), journal.answered(hl7File));
+    journal.close();
+  }
+
+  private File hl7File(String name) throws IOException {
+    File hl7File = new File(requestDir, name);
+    Files.write(
+        hl7File.toPath(), "MSH|one\nMSH|two\nMSH|three\n".getBytes(StandardCharsets.UTF_8));
+    return hl7File;
+  }
+}
@@ -0,0 +1,117 @@
+package org.immregistries.puente;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+public class XlsxRowReaderTest {
+  @Test
+  public void columnIndexCountsLettersFromZero() {
+    assertEquals(0, XlsxRowReader.columnIndex("A1"));
+    assertEquals(25, XlsxRowReader.columnIndex("Z7"));
+    assertEquals(26, XlsxRowReader.columnIndex("AA1"));
+    assertEquals(27, XlsxRowReader.columnIndex("AB12"));
+    assertEquals(701, XlsxRowReader.columnIndex("ZZ3"));
+    assertEquals(16383, XlsxRowReader.columnIndex("XFD1048576"));
+  }
+
+  @Test
+  public void civilDateCountsFromTheEpoch() {
+    assertEquals("19700101", XlsxRowReader.civilDate(0));
+    assertEquals("19691231", XlsxRowReader.civilDate(-1));
+    assertEquals("20000229", XlsxRowReader.civilDate(11016));
+    assertEquals("20210601", XlsxRowReader.civilDate(18779));
+    assertEquals("19000301", XlsxRowReader.civilDate(-25508));
+    assertEquals("18991230", XlsxRowReader.civilDate(-25569));
+    assertEquals("19040101", XlsxRowReader.civilDate(-24107));
+  }
+
+  @Test
+  public void recognizesDateFormats() {
+    assertTrue(XlsxRowReader.isDateFormat("yyyy-mm-dd"));
+    assertTrue(XlsxRowReader.isDateFormat("m/d/yy h:mm"));
+    assertTrue(XlsxRowReader.isDateFormat("[$-409]mmmm d, yyyy"));
+    assertTrue(XlsxRowReader.isDateFormat("DD.MM.YYYY"));
+    assertFalse(XlsxRowReader.isDateFormat(null));
+    assertFalse(XlsxRowReader.isDateFormat("General"));
+    assertFalse(XlsxRowReader.isDateFormat("0.00"));
+    assertFalse(XlsxRowReader.isDateFormat("\"Lot \"0"));
+    assertFalse(XlsxRowReader.isDateFormat("\\d0"));
+    assertFalse(XlsxRowReader.isDateFormat("[Red]0;[Blue]-0"));
+    assertFalse(XlsxRowReader.isDateFormat("[h]:ss"));
+  }
+
+  @Test
+  public void formatsNumbersWithoutTrailingZeros() {
+    assertEquals("49503", XlsxRowReader.formatNumber("49503"));
+    assertEquals("208", XlsxRowReader.formatNumber("208.0"));
+    assertEquals("2.5", XlsxRowReader.formatNumber("2.50"));
+    assertEquals("0", XlsxRowReader.formatNumber("0.000"));
+    assertEquals("1200000", XlsxRowReader.formatNumber("1.2E6"));
+    assertEquals("-3.25", XlsxRowReader.formatNumber(" -3.250 "));
+    assertEquals("n/a", XlsxRowReader.formatNumber("n/a"));
+  }
+
+  @Test
+  public void readsTheFirstSheet() throws IOException, URISyntaxException {
+    List<Row> rows = new ArrayList<Row>();
+    XlsxRowReader reader = new XlsxRowReader(resource("vaccinations.xlsx"));
+    try {
+      assertEquals(
+          Arrays.asList(
+              "Recipient ID",
+              "Recipient name: last",
+              "Administration date",
+              "CVX",
+              "Recipient address: zip code",
+              "Lot number",
+              "Vaccine expiration date"),
+          reader.headers());
+      Iterator<Row> iterator = reader.rows();
+      while (iterator.hasNext()) {
+        rows.add(iterator.next());
+      }
+    } finally {
+      reader.close();
+    }
+
+    // the empty row is skipped, and every row is as wide as the header
+    assertEquals(3, rows.size());
+    assertRow(rows.get(0), 1, "1001", "Sato", "20210601", "208", "49503", "42", "20210601");
+    assertRow(rows.get(1), 2, "R-2", "", "20210601", "2.5", "", "", "");
+    assertRow(rows.get(2), 3, "Smith", "TRUE", "", "", "0", "", "");
+  }
+
+  @Test
+  public void readsDatesFrom1904() throws IOException, URISyntaxException {
+    XlsxRowReader reader = new XlsxRowReader(resource("vaccinations-1904.xlsx"));
+    try {
+      Row row = reader.rows().next();
+      assertEquals("20210601", row.get(2));
+      assertEquals("20210601", row.get(6));
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void assertRow(Row row, long number, String... values) {
+    assertEquals(number, row.number());
+    assertEquals(values.length, row.size());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals("column " + i, values[i], row.get(i));
+    }
+  }
+
+  private File resource(String name) throws URISyntaxException {
+    return new File(getClass().getResource("/" + name).toURI());
+  }
+}